@@ -1,6 +1,8 @@
 package pt.ulisboa.tecnico.classes.admin;
 
 import pt.ulisboa.tecnico.classes.NamingServerFrontend;
+import pt.ulisboa.tecnico.classes.Validate;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidClassException;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -15,6 +17,7 @@ public class Admin {
     private static final String DEACTIVATE_GOSSIP_CMD = "deactivate_gossip";
     private static final String GOSSIP_CMD = "gossip";
     private static final String DUMP_CMD = "dump";
+    private static final String CLASS_CMD = "class";
 
     public static void main(String[] args) {
         boolean debug;
@@ -25,7 +28,8 @@ public class Admin {
         }else if(args.length == 1 && args[0].equals("-debug")){
             debug = true;
         }else{
-            System.err.printf("Usage: java %s [-debug]", Admin.class.getName());
+            System.err.printf("Usage: java %s [-debug]%n", Admin.class.getName());
+            System.err.println("Dumps are of the server's default class until \"class <classId>\" picks another.");
             return;
         }
 
@@ -92,6 +96,16 @@ public class Admin {
                     System.out.println(frontend.dump("P"));
                 }
             }
+            // class [<classId>], the class the next dumps are of (the default one if none)
+            else if (CLASS_CMD.equals(lineSplit[0])) {
+                String classId = lineSplit.length > 1 ? lineSplit[1] : "";
+                try {
+                    new Validate().validate_class(classId);
+                    frontend.setClassId(classId);
+                } catch (InvalidClassException ex) {
+                    System.err.println("Enter a valid class id, at most " + Validate.MAX_CLASS_ID + " characters! Try again.");
+                }
+            }
         }
         namingServerFrontend.terminate();
         System.exit(1);
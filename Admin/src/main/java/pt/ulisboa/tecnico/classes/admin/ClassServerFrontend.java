@@ -6,8 +6,8 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer;
-import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DumpRequest;
-import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DumpResponse;
+import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.ListClassStreamRequest;
+import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.ListClassStreamResponse;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.ActivateRequest;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.ActivateResponse;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DeactivateRequest;
@@ -19,7 +19,9 @@ import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.DeactivateGoss
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.GossipRequest;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.GossipResponse;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminServiceGrpc;
+import pt.ulisboa.tecnico.classes.ClassCache;
 import pt.ulisboa.tecnico.classes.Stringify;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -35,6 +37,9 @@ public class ClassServerFrontend {
 	/** List of available secondary servers. This list can contain *n* elements. */
 	private List<String> secondaryServers;
 
+	/** Class the dumps are about, the server's default class if empty. */
+	private String classId = "";
+
 	private ManagedChannel channel;
 	private AdminServiceGrpc.AdminServiceBlockingStub stub;
 
@@ -56,6 +61,20 @@ public class ClassServerFrontend {
 		return debug;
 	}
 
+	/**
+	 * @return the class the dumps are about, the server's default class if empty
+	 */
+	public String getClassId() {
+		return classId;
+	}
+
+	/**
+	 * @param classId the class the next dumps are about, the server's default class if empty
+	 */
+	public void setClassId(String classId) {
+		this.classId = classId;
+	}
+
 	/** Helper method to print debug messages. */
 	private void debug(String debugMessage) {
 		if (isDebug()) System.err.println(debugMessage);
@@ -156,35 +175,53 @@ public class ClassServerFrontend {
 	}
 
 	/**
-	 * Functions that sends the dump request with 3 tries if fail
+	 * Functions that streams the class's state with 3 tries if fail.
+	 * Each page is added to the cache as soon as it arrives, so a huge
+	 * class is never held in a single message.
 	 *
 	 * @param request
-	 * @return response null if it fail after 3 times
+	 * @param classCache receives the pages
+	 * @return code of the responses, null if it fail after 3 times
 	 */
-	public DumpResponse attemptDump(DumpRequest request) {
-		DumpResponse response = null;
+	public ClassesDefinitions.ResponseCode attemptListClassStream(
+			ListClassStreamRequest request, ClassCache classCache) {
+		ClassesDefinitions.ResponseCode code = null;
 		for (int tries = 1; tries <= 3; tries++) {
+			classCache.beginPages();
 			try {
-				// send request message and receive response
-				response = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).dump(request);
-				debug("Received dump response with status: " + response.getCode());
+				// send request message and receive the responses, page by page
+				Iterator<ListClassStreamResponse> pages =
+						stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).listClassStream(request);
+				code = OK;
+				int received = 0;
+				while (pages.hasNext() && code == OK) {
+					ListClassStreamResponse response = pages.next();
+					code = response.getCode();
+					if (code == OK) {
+						classCache.addPage(response.getPage());
+						received++;
+					}
+				}
+				debug("Received " + received + " listClassStream responses with status: " + code);
 
 				// check the response
-				if (response.getCode().equals(ClassesDefinitions.ResponseCode.INACTIVE_SERVER)) {
+				if (code.equals(ClassesDefinitions.ResponseCode.INACTIVE_SERVER)) {
 					System.err.println("Inactive Server. " + tries + " out of 3 tries completed.");
 					continue;
 				} else {
+					classCache.endPages();
 					break;
 				}
 			} catch (StatusRuntimeException e) {
+				code = null;
 				dealWithException(e, tries);
 			}
 		}
-		return response;
+		return code;
 	}
 
 	/**
-	 * Sends the dump request and receives the dump response from server
+	 * Streams the class's state from the server and formats it
 	 *
 	 * @return message to be printed to the user
 	 */
@@ -192,22 +229,23 @@ public class ClassServerFrontend {
 		chooseServer(qualifier);
 
 		// construct request message
-		DumpRequest request = DumpRequest.newBuilder().build();
-		debug("About to send dump request.");
+		ListClassStreamRequest request = ListClassStreamRequest.newBuilder().setClassId(getClassId()).build();
+		debug("About to send listClassStream request.");
 
-		DumpResponse response = attemptDump(request);
+		ClassCache classCache = new ClassCache();
+		ClassesDefinitions.ResponseCode code = attemptListClassStream(request, classCache);
 
 		// format response
-		if (response == null) {
+		if (code == null) {
 			terminate();
 			return Stringify.format(ClassesDefinitions.ResponseCode.UNRECOGNIZED) + "\n";
-		} else if (response.getCode() != OK) {
+		} else if (code != OK) {
 			terminate();
-			return Stringify.format(response.getCode()) + "\n";
+			return Stringify.format(code) + "\n";
 		}
 
 		terminate();
-		return Stringify.format(response.getClassState()) + "\n";
+		return Stringify.format(classCache.toClassState()) + "\n";
 	}
 
 	/**
@@ -6,7 +6,6 @@ import pt.ulisboa.tecnico.classes.contract.admin.AdminServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer.*;
 
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
-import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
 
 import pt.ulisboa.tecnico.classes.classserver.exceptions.*;
 import io.grpc.stub.StreamObserver;
@@ -15,7 +14,7 @@ import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCod
 
 
 public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
-    private ClassDomain class_ = ClassDomain.getInstance();
+    private final ClassRegistry registry = ClassRegistry.getInstance();
     private static final boolean TIMER = true;
     private static final boolean COMMAND = false;
 
@@ -50,11 +49,9 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
     public void activate(ActivateRequest request, StreamObserver<ActivateResponse> responseObserver){
         debug("Received a activate request message.");
 
-        synchronized (class_) {
-            class_.activate();
-            synchronized (classServerFrontend){
-                classServerFrontend.setActiveGossip(true);
-            }
+        registry.activate();
+        synchronized (classServerFrontend){
+            classServerFrontend.setActiveGossip(true);
         }
 
         //build response
@@ -75,11 +72,9 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
     public void deactivate(DeactivateRequest request, StreamObserver<DeactivateResponse> responseObserver) {
         debug("Received a deactivate request message.");
 
-        synchronized (class_) {
-            class_.deactivate();
-            synchronized (classServerFrontend){
-                classServerFrontend.setActiveGossip(false);
-            }
+        registry.deactivate();
+        synchronized (classServerFrontend){
+            classServerFrontend.setActiveGossip(false);
         }
 
         //build response
@@ -91,29 +86,6 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
         responseObserver.onCompleted();
     }
 
-    /**
-     * Build ClassState
-     * Note: this function is not syncronized, it should be syncronized when calling this function
-     * @return ClassState
-     */
-    public ClassState.Builder buildClassState(){
-        ClassState.Builder classStateBuilder = ClassState.newBuilder();
-            // Build ClassState
-            Student.Builder StudentBuilder = Student.newBuilder();
-            classStateBuilder.setCapacity(class_.getCapacity());
-            classStateBuilder.setOpenEnrollments(class_.isOpen());
-            class_.getStudentsDiscarded().forEach(
-                    (id, name) ->
-                            classStateBuilder.addDiscarded(
-                                    StudentBuilder.setStudentId(id).setStudentName(name).build()));
-            class_.getStudentsEnrolled().forEach(
-                    (id, name) ->
-                            classStateBuilder.addEnrolled(
-                                    StudentBuilder.setStudentId(id).setStudentName(name).build()));
-            classStateBuilder.build();
-        return classStateBuilder;
-    }
-
     /**
      * Process the dump request and send a response
      * @param request
@@ -128,24 +100,24 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
             return;
         }
         DumpResponse response;
-        synchronized (class_){
-            try{
-                if(!class_.isActive()){
-                    throw new InactiveServerException();
-                }
-                else{
-                    // request has no parameters so no need to validate it!
+        ClassDomain class_ = registry.getClassDomain(request.getClassId());
+        try{
+            if(!class_.isActive()){
+                throw new InactiveServerException();
+            }
+            else{
+                // request has no parameters so no need to validate it!
 
-                    ClassState.Builder classStateBuilder = buildClassState();
+                // ClassState is built once per version and shared with the other reads
+                ClassState classState = class_.getSnapshot().getClassState();
 
-                    //build response
-                    response = DumpResponse.newBuilder().setCode(OK).setClassState(classStateBuilder).build();
-                }
-            }
-            catch (InactiveServerException e) {
-                response = DumpResponse.newBuilder().setCode(INACTIVE_SERVER).build();
+                //build response
+                response = DumpResponse.newBuilder().setCode(OK).setClassState(classState).build();
             }
         }
+        catch (InactiveServerException e) {
+            response = DumpResponse.newBuilder().setCode(INACTIVE_SERVER).build();
+        }
 
         debug("About to send a dump response message with code: " + response.getCode());
 
@@ -153,6 +125,38 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
         responseObserver.onCompleted();
     }
 
+    /**
+     * Implements the rpc listClassStream, from the service AdminService, defined in the Contract,
+     * by sending the class's state in bounded pages, as the admin becomes ready for them.
+     *
+     * @param request the message received
+     * @param responseObserver special interface for the server to call with its responses
+     */
+    @Override
+    public void listClassStream(ListClassStreamRequest request, StreamObserver<ListClassStreamResponse> responseObserver) {
+        debug("Received a listClassStream request message.");
+
+        if (Context.current().isCancelled()) {
+            responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Time's up!").asRuntimeException());
+            return;
+        }
+
+        ClassDomain class_ = registry.getClassDomain(request.getClassId());
+        if(!class_.isActive()){
+            debug("About to send a listClassStream response message with code: " + INACTIVE_SERVER);
+            responseObserver.onNext(ListClassStreamResponse.newBuilder().setCode(INACTIVE_SERVER).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        ClassStateStreamer<ListClassStreamResponse> streamer = new ClassStateStreamer<>(class_, request.getPageSize(),
+                responseObserver, page -> ListClassStreamResponse.newBuilder().setCode(OK).setPage(page).build());
+
+        debug("About to stream " + streamer.getPageCount() + " listClassStream response messages with code: " + OK);
+
+        streamer.start();
+    }
+
     @Override
     public void activateGossip(ActivateGossipRequest request, StreamObserver<ActivateGossipResponse> responseObserver){
         debug("Received a activate_gossip request message.");
@@ -162,16 +166,14 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
             return;
         }
         ActivateGossipResponse response;
-        synchronized (class_ ){
+        synchronized (classServerFrontend){
             try{
-                if(!class_.isActive()){
+                if(!registry.isActive()){
                     throw new InactiveServerException();
                 }
                 else{
-                    synchronized (classServerFrontend){
-                        classServerFrontend.setActiveGossip(true);
-                        response = ActivateGossipResponse.newBuilder().setCode(OK).build();
-                    }
+                    classServerFrontend.setActiveGossip(true);
+                    response = ActivateGossipResponse.newBuilder().setCode(OK).build();
                 }
             }
             catch (InactiveServerException e) {
@@ -194,16 +196,14 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
             return;
         }
         DeactivateGossipResponse response;
-        synchronized (class_ ){
+        synchronized (classServerFrontend){
             try{
-                if(!class_.isActive()){
+                if(!registry.isActive()){
                     throw new InactiveServerException();
                 }
                 else{
-                    synchronized (classServerFrontend){
-                        classServerFrontend.setActiveGossip(false);
-                        response = DeactivateGossipResponse.newBuilder().setCode(OK).build();
-                    }
+                    classServerFrontend.setActiveGossip(false);
+                    response = DeactivateGossipResponse.newBuilder().setCode(OK).build();
                 }
             }
             catch (InactiveServerException e) {
@@ -226,18 +226,16 @@ public class AdminServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
             return;
         }
         GossipResponse response;
-        synchronized (class_ ){
+        synchronized (classServerFrontend){
             try{
-                if(!class_.isActive()){
+                if(!registry.isActive()){
                     throw new InactiveServerException();
                 }
-                synchronized (classServerFrontend){
-                    if (classServerFrontend.propagateState(COMMAND)) {
-                        response = GossipResponse.newBuilder().setCode(OK).build();
-                    }
-                    else{
-                        response = GossipResponse.newBuilder().setCode(WRITING_NOT_SUPPORTED).build();
-                    }
+                if (classServerFrontend.propagateState(COMMAND)) {
+                    response = GossipResponse.newBuilder().setCode(OK).build();
+                }
+                else{
+                    response = GossipResponse.newBuilder().setCode(WRITING_NOT_SUPPORTED).build();
                 }
             }
             catch (InactiveServerException e) {
@@ -0,0 +1,285 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.WriteRequest;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Periodically saves a compact binary snapshot of every class (capacity,
+ * open flag, enrolled and discarded students, quota of seats, how enrolls
+ * are answered) together with its Lamport clock, its version vector, its
+ * enrollment set and the writes still to be passed on to other replicas,
+ * and then drops the segments of
+ * the write-ahead log the snapshot covers. A restart loads the snapshot and
+ * replays only the log written after it, so recovery time is bounded by the
+ * size of the classes, not by the server's uptime.
+ *
+ * A checkpoint first rotates the log and only then reads the classes:
+ * every change in the older segments is already applied, so those can go,
+ * and changes in the newer segments are replayed on top of the snapshot
+ * (replaying a change the snapshot already has leaves the same state).
+ */
+public class Checkpointer {
+    public static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    private static final int MAGIC = 0x54524d53; // "TRMS"
+    private static final int FORMAT = 6; // 2: writes saved as WriteRequest messages, 3: with the version vector, 4: with the enrollment set, 5: with the quota, 6: with the consistency mode
+
+    /** Time between checks, in milliseconds */
+    private static final int PERIOD = 30 * 1000;
+
+    /** Records in the current segment worth a checkpoint, any non-zero amount after MAX_IDLE_CHECKS checks */
+    private static final long MIN_RECORDS = 10000;
+    private static final int MAX_IDLE_CHECKS = 10;
+
+    private final Path directory;
+
+    private final WriteAheadLog log;
+
+    private final ClassRegistry registry;
+
+    private final ClassServerFrontend frontend;
+
+    private final boolean debug;
+
+    private int checksSinceCheckpoint = 0;
+
+    /**
+     * Constructor
+     * @param directory the server's data directory
+     * @param log the server's write-ahead log
+     * @param registry the classes to save
+     * @param frontend holds the Lamport clocks and the writes not yet propagated
+     * @param debug true if the debug mode is active
+     */
+    public Checkpointer(Path directory, WriteAheadLog log, ClassRegistry registry, ClassServerFrontend frontend, boolean debug) {
+        this.directory = directory;
+        this.log = log;
+        this.registry = registry;
+        this.frontend = frontend;
+        this.debug = debug;
+    }
+
+    private void debug(String debugMessage) {
+        if (debug)
+            System.err.println(debugMessage);
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * RECOVERY * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * Rebuilds the classes from the latest snapshot and the log written after it
+     * @return number of log records replayed
+     */
+    public int recover() throws IOException {
+        long firstSegment = load();
+        return log.replay(registry, frontend, firstSegment);
+    }
+
+    /**
+     * @return true if a checkpoint was ever taken in the data directory
+     */
+    public boolean hasSnapshot() {
+        return Files.exists(directory.resolve(SNAPSHOT_FILE));
+    }
+
+    /**
+     * Loads the snapshot, if there is one
+     * @return number of the first log segment the snapshot doesn't cover
+     */
+    private long load() throws IOException {
+        if (!hasSnapshot()) {
+            return 0;
+        }
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file)), crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Not a class snapshot: " + file);
+            }
+            long firstSegment = in.readLong();
+            int nClasses = in.readInt();
+            for (int c = 0; c < nClasses; c++) {
+                String classId = in.readUTF();
+                int capacity = in.readInt();
+                boolean open = in.readBoolean();
+                Roster enrolled = readRoster(in);
+                Roster discarded = readRoster(in);
+                int quotaGeneration = in.readInt();
+                int quota = in.readInt();
+                boolean quorumWrites = in.readBoolean();
+                int clock = in.readInt();
+                Map<String, Integer> versionVector = new HashMap<>();
+                int nReplicas = in.readInt();
+                for (int r = 0; r < nReplicas; r++) {
+                    versionVector.put(in.readUTF(), in.readInt());
+                }
+                ClassWrites writes = frontend.get_writes(classId);
+                byte[] enrollments = new byte[in.readInt()];
+                in.readFully(enrollments);
+                writes.getEnrollments().load(enrollments);
+                int nWrites = in.readInt();
+                for (int w = 0; w < nWrites; w++) {
+                    byte[] write = new byte[in.readInt()];
+                    in.readFully(write);
+                    writes.add(WriteRequest.parseFrom(write));
+                }
+                writes.advance(versionVector);
+                // writes of this server recorded while the class was saved are in the vector, not in the clock
+                frontend.setClock(classId, Math.max(clock, versionVector.getOrDefault(frontend.getReplica(), -1) + 1));
+                ClassDomain class_ = registry.getOrCreateClassDomain(classId);
+                class_.replaceState(capacity, open, enrolled, discarded);
+                class_.restoreQuota(quotaGeneration, quota);
+                class_.setQuorumWrites(quorumWrites);
+            }
+            // renamed into place only once complete, so a bad checksum means a damaged disk
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupted class snapshot: " + file);
+            }
+            debug("Checkpoint: loaded " + nClasses + " classes, replaying the log from segment " + firstSegment + ".");
+            return firstSegment;
+        }
+    }
+
+    private static Roster readRoster(DataInputStream in) throws IOException {
+        Roster roster = new Roster();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            roster.put(Roster.decode(in.readShort()), in.readUTF());
+        }
+        return roster;
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * CHECKPOINT * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * Checks the log every PERIOD milliseconds, in the background,
+     * and takes a checkpoint when it has grown enough
+     */
+    public void start() {
+        Timer timer = new Timer("checkpointer", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    checkpointIfNeeded();
+                }
+                catch (IOException e) {
+                    System.err.println("Checkpoint failed: " + e.getMessage());
+                }
+            }
+        }, PERIOD, PERIOD);
+    }
+
+    private void checkpointIfNeeded() throws IOException {
+        long records = log.getSegmentRecords();
+        checksSinceCheckpoint++;
+        if (records >= MIN_RECORDS || (records > 0 && checksSinceCheckpoint >= MAX_IDLE_CHECKS)) {
+            checkpoint();
+            checksSinceCheckpoint = 0;
+        }
+    }
+
+    /**
+     * Saves every class and drops the log segments the snapshot covers
+     */
+    public synchronized void checkpoint() throws IOException {
+        long firstSegment = log.rotate();
+
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        CRC32 crc = new CRC32();
+        int nClasses;
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(firstSegment);
+            // classes created from now on are in the new segments
+            List<ClassDomain> classes = new ArrayList<>(registry.getClasses());
+            nClasses = classes.size();
+            out.writeInt(nClasses);
+            for (ClassDomain class_ : classes) {
+                writeClass(out, class_);
+            }
+            out.flush();
+            // the checksum itself is written past the checked stream
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.deleteSegmentsBefore(firstSegment);
+        debug("Checkpoint: saved " + nClasses + " classes, the log now starts at segment " + firstSegment + ".");
+    }
+
+    private void writeClass(DataOutputStream out, ClassDomain class_) throws IOException {
+        String classId = class_.getClassId();
+        // clock first: writes recorded while the class is read get later times
+        int clock = frontend.getClock(classId);
+        // and the version vector before the class: the class has every write it covers
+        ClassWrites classWrites = frontend.get_writes(classId);
+        Map<String, Integer> versionVector;
+        byte[] enrollments;
+        List<WriteRequest> writes;
+        synchronized (classWrites) {
+            versionVector = classWrites.getVersionVector();
+            enrollments = classWrites.getEnrollments().toByteArray();
+            writes = new ArrayList<>(classWrites.all());
+        }
+        ClassSnapshot snapshot = class_.getCurrentSnapshot();
+        // the quota after the class: a seat admitted meanwhile is taken from it
+        // twice on replay (wasted), but never handed out twice
+        int quotaGeneration = class_.getQuotaGeneration();
+        int quota = class_.getQuota();
+
+        out.writeUTF(classId);
+        out.writeInt(snapshot.getCapacity());
+        out.writeBoolean(snapshot.isOpen());
+        out.writeInt(snapshot.getEnrolledCount());
+        snapshot.forEachEnrolled((id, name) -> writeStudent(out, id, name));
+        out.writeInt(snapshot.getDiscardedCount());
+        snapshot.forEachDiscarded((id, name) -> writeStudent(out, id, name));
+        out.writeInt(quotaGeneration);
+        out.writeInt(quota);
+        out.writeBoolean(class_.isQuorumWrites());
+        out.writeInt(clock);
+        out.writeInt(versionVector.size());
+        for (Map.Entry<String, Integer> replica : versionVector.entrySet()) {
+            out.writeUTF(replica.getKey());
+            out.writeInt(replica.getValue());
+        }
+        out.writeInt(enrollments.length);
+        out.write(enrollments);
+        out.writeInt(writes.size());
+        for (WriteRequest write : writes) {
+            byte[] bytes = write.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeStudent(DataOutputStream out, String studentId, String studentName) {
+        try {
+            out.writeShort(Roster.encode(studentId));
+            out.writeUTF(studentName);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
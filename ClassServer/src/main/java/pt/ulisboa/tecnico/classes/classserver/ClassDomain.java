@@ -1,48 +1,139 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import pt.ulisboa.tecnico.classes.classserver.exceptions.*;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassChanges;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
 
 public class ClassDomain {
-    // Static variable reference of instance of type Singleton
-    // Singleton
-    private static ClassDomain instance = null;
+    private final String classId;
 
-    private int capacity;
+    // bits of the state word
+    private static final int OPEN = 1;
+    private static final int ACTIVE = 2;
 
-    private int enrolled = 0;
+    private volatile int capacity;
 
-    private boolean open;
+    // seats taken, reserved with a CAS against capacity
+    private final AtomicInteger enrolled = new AtomicInteger(0);
 
-    private boolean active = true;
+    // open/active flags, read by the lock-free enroll path; an enroll is only recorded
+    // while the open flag is still set, and a close clears it before it is recorded
+    private final AtomicInteger state = new AtomicInteger(ACTIVE);
 
-    private ConcurrentHashMap<String, String> studentsEnrolled = new ConcurrentHashMap<>();
+    // replaced in place, so an enroll under way never inserts into a roster no longer used
+    private final Roster studentsEnrolled = new Roster();
 
-    private ConcurrentHashMap<String, String> studentsDiscarded = new ConcurrentHashMap<>();
+    private final Roster studentsDiscarded = new Roster();
+
+    // bumped after every change to the state seen by readers
+    private final AtomicLong version = new AtomicLong(0);
+
+    // changes in progress, counted in and out without a lock, so a snapshot copied
+    // alongside them can tell it may have seen one half done; HELD_OFF is set while
+    // new changes wait for a current snapshot, once copying alongside them failed
+    private final AtomicInteger writing = new AtomicInteger(0);
+    private static final int HELD_OFF = 1 << 30;
+
+    // changes held off wait here for the copy, and the copy for the changes in progress
+    private final ReentrantLock holdOff = new ReentrantLock();
+    private final Condition quiet = holdOff.newCondition();
+    private final Condition resumed = holdOff.newCondition();
+
+    // times a current snapshot is copied alongside the changes before holding them off
+    private static final int COPY_ATTEMPTS = 3;
+
+    // latest published snapshot, rebuilt by a read when the version moved on
+    private final AtomicReference<ClassSnapshot> snapshot = new AtomicReference<>();
+
+    // true while a read rebuilds the snapshot: the others serve the published one meanwhile
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    // identifies this server's history of the class: versions of different epochs aren't comparable
+    private final long epoch;
+
+    // bounded history of changes: version -> id of the student it changed
+    private final ConcurrentSkipListMap<Long, String> history = new ConcurrentSkipListMap<>();
+
+    private final AtomicInteger historySize = new AtomicInteger(0);
+
+    // every change after this version is still in the history
+    private final AtomicLong historyFloor = new AtomicLong(0);
+
+    private static final int MAX_HISTORY = 1024;
+
+    // students waiting for a seat, in arrival order: id -> name (guarded by itself)
+    private final LinkedHashMap<String, String> waitlist = new LinkedHashMap<>();
+
+    // size of the waitlist, read by the lock-free enroll path
+    private volatile int waitlisted = 0;
+
+    private static final int MAX_WAITLIST = 256;
+
+    // seats this server may admit students to without asking the other replicas
+    // (its escrow quota), and the clock of the Open the quota was split at
+    private final AtomicInteger quota = new AtomicInteger(0);
+    private int quotaGeneration = -1; // guarded by the class's monitor
+
+    // true if enrolls are only answered once a majority of the replicas has them
+    private volatile boolean quorumWrites = false;
 
     /**
-     * Constructor (Singleton)
-     * Creating private constructor restricted to this class itself
+     * Constructor
+     * Classes are created by the ClassRegistry, which keeps one per class id
+     * @param classId the class's identifier
+     * @param active true if the server is currently active
      */
-    private ClassDomain() {}
+    ClassDomain(String classId, boolean active) {
+        this(classId, active, ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE));
+    }
 
     /**
-     * Static method to create instance of ClassDomain class
-     * @return instance of class itself
+     * Constructor
+     * @param classId the class's identifier
+     * @param active true if the server is currently active
+     * @param epoch identifies this server's history of the class
      */
-    public static ClassDomain getInstance(){
-        if (instance == null)
-            instance = new ClassDomain();
+    ClassDomain(String classId, boolean active, long epoch) {
+        this.classId = classId;
+        this.epoch = epoch;
+        setActive(active);
+        snapshot.set(new ClassSnapshot(0, capacity, false, studentsEnrolled, studentsDiscarded));
+    }
 
-        return instance;
+    /**
+     * @return the class's identifier
+     */
+    public String getClassId() {
+        return classId;
     }
 
     /**
      * @return number of enrolled student
      */
     public int getEnrolled() {
-        return enrolled;
+        return enrolled.get();
     }
 
     /**
@@ -50,7 +141,7 @@ public class ClassDomain {
      * @param enrolled number of enrolled student
      */
     public void setEnrolled(int enrolled) {
-        this.enrolled = enrolled;
+        this.enrolled.set(enrolled);
     }
 
     /**
@@ -65,14 +156,16 @@ public class ClassDomain {
      * @param capacity
      */
     public void setCapacity(int capacity) {
+        beginWrite();
         this.capacity = capacity;
+        endWrite(true);
     }
 
     /**
      * @return true if the enrollment is open, otherwise false
      */
     public boolean isOpen() {
-            return open;
+        return (state.get() & OPEN) != 0;
     }
 
     /**
@@ -80,59 +173,475 @@ public class ClassDomain {
      * @param open
      */
     public void setOpen(boolean open) {
-        this.open = open;
+        beginWrite();
+        setFlag(OPEN, open);
+        endWrite(true);
     }
 
     public boolean isActive() {
-        return active;
+        return (state.get() & ACTIVE) != 0;
     }
 
     public void setActive(boolean active) {
-        this.active = active;
+        setFlag(ACTIVE, active);
+    }
+
+    /**
+     * Sets or clears one bit of the state word
+     * @param flag OPEN or ACTIVE
+     * @param value true to set the bit, false to clear it
+     */
+    private void setFlag(int flag, boolean value) {
+        int current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, value ? current | flag : current & ~flag));
     }
 
     /**
      * @return collection of Enrolled Students
      */
-    public ConcurrentHashMap<String, String> getStudentsEnrolled() {
+    public Roster getStudentsEnrolled() {
         return studentsEnrolled;
     }
 
-    public void setStudentsEnrolled(ConcurrentHashMap<String, String> studentsEnrolled) {
-        this.studentsEnrolled = studentsEnrolled;
+    /**
+     * Replaces the collection of Enrolled Students, in place,
+     * keeping the number of taken seats consistent with it
+     * @param studentsEnrolled
+     */
+    public void setStudentsEnrolled(Roster studentsEnrolled) {
+        beginWrite();
+        replaceEnrolled(studentsEnrolled);
+        endReplace();
     }
 
     /**
      * @return collection of Discarded Students
      */
-    public ConcurrentHashMap<String, String> getStudentsDiscarded() { return studentsDiscarded; }
+    public Roster getStudentsDiscarded() { return studentsDiscarded; }
+
+    public void setStudentsDiscarded(Roster studentsDiscarded) {
+        beginWrite();
+        replaceDiscarded(studentsDiscarded);
+        endReplace();
+    }
+
+    /**
+     * Lock-free admission of a student: checks the state word,
+     * reserves a seat against the capacity, records the student's
+     * write and only then inserts the student. Never takes the class
+     * monitor, and never waits for other admissions.
+     * If the class is full, or students are already waiting, the
+     * student joins the waitlist instead.
+     * A close clears the open flag before it is recorded, and the write
+     * is only recorded while the flag is still set: an admission the close
+     * overtook backs out, giving its seat back, so every enroll is recorded
+     * before the close or not at all. As the student is only inserted once
+     * recorded, no merge finds it in the class without its write either.
+     * @param student_id
+     * @param student_name
+     * @param record records the student's enrollment, unless the class was
+     * closed meanwhile (checked as it is recorded): returns false then
+     * @throws InactiveServerException when the server is inactive
+     * @throws WaitlistedException when the student is waiting for a seat
+     * @throws ClassFullException when the class and the waitlist are full
+     */
+    public void enroll(String student_id, String student_name, BiPredicate<String, String> record) throws InactiveServerException, DuplicateEnrollmentException, ClassFullException, ClosedForEnrollmentsException, WaitlistedException {
+        int seen = state.get();
+        if ((seen & ACTIVE) == 0) {
+            throw new InactiveServerException();
+        }
+        if ((seen & OPEN) == 0) {
+            throw new ClosedForEnrollmentsException();
+        }
+        if (waitlisted == 0) {
+            try {
+                admit(student_id, student_name, record);
+                return;
+            }
+            catch (ClassFullException e) {
+                // a seat may free up meanwhile: decided under the waitlist's lock
+            }
+        }
+        enrollOrWait(student_id, student_name, record);
+    }
+
+    /**
+     * Admits a whole batch of students in a single step: seats for
+     * every new student are reserved with one CAS against the capacity,
+     * their writes are recorded at once, and they are inserted in a single
+     * change. Students left without a seat go to the waitlist, as in enroll.
+     * The batch is recorded before a close or not at all, as in enroll.
+     * @param students the students to enroll
+     * @param record records the enrollments of the students admitted, in the given order,
+     * unless the class was closed meanwhile: returns false then
+     * @return the result of each student's enrollment, in the given order
+     * @throws InactiveServerException when the server is inactive
+     */
+    public List<ResponseCode> enrollBatch(List<Student> students, Predicate<List<Student>> record) throws InactiveServerException {
+        int seen = state.get();
+        if ((seen & ACTIVE) == 0) {
+            throw new InactiveServerException();
+        }
+        ResponseCode[] results = new ResponseCode[students.size()];
+        if ((seen & OPEN) == 0) {
+            Arrays.fill(results, ResponseCode.ENROLLMENTS_ALREADY_CLOSED);
+            return Arrays.asList(results);
+        }
+        admitBatch(students, results, record);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Admits the students of a batch
+     * @param results receives the result of each student's enrollment
+     */
+    private void admitBatch(List<Student> students, ResponseCode[] results, Predicate<List<Student>> record) {
+        // students not enrolled yet, nor repeated in the batch
+        Set<String> seen = new HashSet<>();
+        List<Integer> admitted = new ArrayList<>();
+        for (int i = 0; i < students.size(); i++) {
+            String studentId = students.get(i).getStudentId();
+            if (!seen.add(studentId) || studentsEnrolled.containsKey(studentId)) {
+                results[i] = ResponseCode.STUDENT_ALREADY_ENROLLED;
+            }
+            else {
+                admitted.add(i);
+            }
+        }
+
+        // waitlisted students keep their turn: the batch queues behind them
+        int seats = waitlisted == 0 ? reserveSeats(admitted.size()) : 0;
+        List<Student> seated = new ArrayList<>(seats);
+        for (int i : admitted.subList(0, seats)) {
+            seated.add(students.get(i));
+        }
+        if (seats > 0 && !record.test(seated)) {
+            // overtaken by a close: none of the batch is enrolled
+            releaseSeats(seats);
+            for (int i : admitted) {
+                results[i] = ResponseCode.ENROLLMENTS_ALREADY_CLOSED;
+            }
+            return;
+        }
+
+        beginWrite();
+        List<String> changed = new ArrayList<>(seats);
+        try {
+            for (int i : admitted.subList(0, seats)) {
+                Student student = students.get(i);
+                studentsDiscarded.remove(student.getStudentId());
+                // enrolled meanwhile, by a concurrent enroll or a merge that had the write: give the seat back
+                if (studentsEnrolled.putIfAbsent(student.getStudentId(), student.getStudentName()) != null) {
+                    releaseSeats(1);
+                }
+                changed.add(student.getStudentId());
+                results[i] = ResponseCode.OK;
+            }
+        }
+        finally {
+            endWrite(changed);
+        }
 
-    public void setStudentsDiscarded(ConcurrentHashMap<String, String> studentsDiscarded) {
-        this.studentsDiscarded = studentsDiscarded;
+        for (int i : admitted.subList(seats, admitted.size())) {
+            Student student = students.get(i);
+            try {
+                enrollOrWait(student.getStudentId(), student.getStudentName(), (id, name) -> record.test(List.of(student)));
+                results[i] = ResponseCode.OK;
+            }
+            catch (WaitlistedException e) {
+                results[i] = ResponseCode.FULL_CLASS_WAITLISTED;
+            }
+            catch (ClassFullException e) {
+                results[i] = ResponseCode.FULL_CLASS;
+            }
+            catch (DuplicateEnrollmentException e) {
+                results[i] = ResponseCode.STUDENT_ALREADY_ENROLLED;
+            }
+            catch (ClosedForEnrollmentsException e) {
+                results[i] = ResponseCode.ENROLLMENTS_ALREADY_CLOSED;
+            }
+        }
+    }
+
+    /**
+     * Enrolls the student if no one is waiting and there is a seat,
+     * otherwise appends the student to the waitlist.
+     * Seats are only freed before promoteWaitlisted takes the same lock,
+     * so a student can't join the waitlist after the seat it missed was
+     * offered to the waitlist. Once enrolled, the student's write is
+     * recorded as in enroll.
+     */
+    private void enrollOrWait(String student_id, String student_name, BiPredicate<String, String> record) throws DuplicateEnrollmentException, ClassFullException, ClosedForEnrollmentsException, WaitlistedException {
+        synchronized (waitlist) {
+            if (waitlist.containsKey(student_id)) {
+                throw new WaitlistedException(student_id);
+            }
+            if (waitlist.isEmpty()) {
+                try {
+                    admit(student_id, student_name, record);
+                    return;
+                }
+                catch (ClassFullException e) {
+                    // no seat: wait for one
+                }
+            }
+            if (!isOpen()) {
+                throw new ClosedForEnrollmentsException();
+            }
+            if (studentsEnrolled.containsKey(student_id)) {
+                throw new DuplicateEnrollmentException(student_id);
+            }
+            if (waitlist.size() >= MAX_WAITLIST) {
+                throw new ClassFullException();
+            }
+            waitlist.put(student_id, student_name);
+            waitlisted = waitlist.size();
+            throw new WaitlistedException(student_id);
+        }
+    }
+
+    /**
+     * Enrolls waitlisted students, first come first served, while
+     * there are free seats. Called after a cancellation or a merge
+     * of states may have freed some.
+     * Students that were meanwhile enrolled elsewhere leave the waitlist,
+     * and the whole waitlist is dropped once enrollments are closed.
+     * Call with the class locked, and record the promotions before
+     * unlocking it: a close, recorded under the same lock, then comes
+     * after them.
+     * @return the promoted students (id -> name), in the order they were enrolled
+     */
+    public Map<String, String> promoteWaitlisted() {
+        Map<String, String> promoted = new LinkedHashMap<>();
+        synchronized (waitlist) {
+            Iterator<Map.Entry<String, String>> waiting = waitlist.entrySet().iterator();
+            while (waiting.hasNext()) {
+                Map.Entry<String, String> student = waiting.next();
+                try {
+                    addStudentEnrolled(student.getKey(), student.getValue());
+                    promoted.put(student.getKey(), student.getValue());
+                }
+                catch (DuplicateEnrollmentException e) {
+                    // already enrolled, by another server's write
+                }
+                catch (ClassFullException e) {
+                    break;
+                }
+                catch (ClosedForEnrollmentsException e) {
+                    waitlist.clear();
+                    break;
+                }
+                waiting.remove();
+            }
+            waitlisted = waitlist.size();
+        }
+        return promoted;
     }
 
+    /**
+     * @return number of students waiting for a seat
+     */
+    public int getWaitlisted() {
+        return waitlisted;
+    }
+
+    /**
+     * Replaces the whole state of the class at once, in place,
+     * so readers never see a mix of the old and the new state.
+     * Enrolls under way aren't held off: each one records its write
+     * before it inserts its student, and inserts it into the new state.
+     * @param capacity capacity of the class
+     * @param open true if the enrollments are open
+     * @param studentsEnrolled the enrolled students
+     * @param studentsDiscarded the discarded students
+     */
+    public void replaceState(int capacity, boolean open, Roster studentsEnrolled, Roster studentsDiscarded) {
+        beginWrite();
+        this.capacity = capacity;
+        setFlag(OPEN, open);
+        replaceEnrolled(studentsEnrolled);
+        replaceDiscarded(studentsDiscarded);
+        endReplace();
+    }
+
+    /**
+     * Makes the enrolled students the given ones, counting the seats
+     * freed and taken, within a change
+     */
+    private void replaceEnrolled(Roster students) {
+        studentsEnrolled.forEach((id, name) -> {
+            if (!students.containsKey(id) && studentsEnrolled.remove(id) != null) {
+                enrolled.decrementAndGet();
+            }
+        });
+        students.forEach((id, name) -> {
+            if (studentsEnrolled.put(id, name) == null) {
+                enrolled.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Makes the discarded students the given ones, within a change
+     */
+    private void replaceDiscarded(Roster students) {
+        studentsDiscarded.forEach((id, name) -> {
+            if (!students.containsKey(id)) {
+                studentsDiscarded.remove(id);
+            }
+        });
+        students.forEach(studentsDiscarded::put);
+    }
+
+    /**
+     * Brings the class in line with the other server's changes, in place,
+     * instead of replacing the whole rosters: each student in the changes
+     * takes the status it has on the other server. Enrolls under way aren't
+     * held off: one whose student is enrolled here meanwhile gives its seat
+     * back, so the student isn't counted twice.
+     * @param changes the other server's changes (not the full state)
+     */
+    public void applyChanges(ClassChanges changes) {
+        if (changes.getCapacity() != getCapacity()) {
+            setCapacity(changes.getCapacity());
+        }
+        if (changes.getOpenEnrollments() != isOpen()) {
+            setOpen(changes.getOpenEnrollments());
+        }
+        beginWrite();
+        List<String> changed = new ArrayList<>();
+        try {
+            for (Student student : changes.getEnrolledList()) {
+                if (studentsEnrolled.put(student.getStudentId(), student.getStudentName()) == null) {
+                    enrolled.incrementAndGet();
+                }
+                studentsDiscarded.remove(student.getStudentId());
+                changed.add(student.getStudentId());
+            }
+            for (Student student : changes.getDiscardedList()) {
+                if (studentsEnrolled.remove(student.getStudentId()) != null) {
+                    enrolled.decrementAndGet();
+                }
+                studentsDiscarded.put(student.getStudentId(), student.getStudentName());
+                changed.add(student.getStudentId());
+            }
+            for (String studentId : changes.getRemovedList()) {
+                if (studentsEnrolled.remove(studentId) != null) {
+                    enrolled.decrementAndGet();
+                }
+                studentsDiscarded.remove(studentId);
+                changed.add(studentId);
+            }
+        }
+        finally {
+            endWrite(changed);
+        }
+    }
+
+    /**
+     * Brings the class in line with changes worked out from its current
+     * state. An enroll records its write before it inserts its student,
+     * so no student is in the class without its write meanwhile.
+     * @param changesFrom works the changes out from the current state (null if none)
+     * @return the changes applied, or null if none
+     */
+    public ClassChanges applyChanges(Function<ClassSnapshot, ClassChanges> changesFrom) {
+        ClassChanges changes = changesFrom.apply(getCurrentSnapshot());
+        if (changes != null) {
+            applyChanges(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Enrolls a student, without recording the enrollment: the caller
+     * records it, under the class's lock, as a close is
+     */
     public void addStudentEnrolled(String student_id, String student_name) throws DuplicateEnrollmentException, ClassFullException, ClosedForEnrollmentsException {
         // make sure enrollments are opened
-        if (isOpen() == false) {
+        if (!isOpen()) {
             throw new ClosedForEnrollmentsException();
         }
+        admit(student_id, student_name, null);
+    }
 
+    /**
+     * Inserts a student, once a seat is reserved and the student's write
+     * recorded: overtaken by a close, it backs out instead
+     * @param record records the student's enrollment, unless the class was
+     * closed meanwhile; null if the caller records it, under the class's lock
+     */
+    private void admit(String student_id, String student_name, BiPredicate<String, String> record) throws DuplicateEnrollmentException, ClassFullException, ClosedForEnrollmentsException {
         // make sure student isn't already enrolled
         if (studentsEnrolled.containsKey(student_id)) {
             throw new DuplicateEnrollmentException(student_id);
         }
 
         // ensure student's enrollment doesn't exceed capacity
-        if (getCapacity() == getEnrolled()) {
+        if (!reserveSeat()) {
             throw new ClassFullException();
         }
 
-        // if student's enrollment is discarded, uncanceled
-        if (studentsDiscarded.containsKey(student_id)) {
+        if (record != null && !record.test(student_id, student_name)) {
+            releaseSeats(1);
+            throw new ClosedForEnrollmentsException();
+        }
+
+        beginWrite();
+        try {
+            // if student's enrollment is discarded, uncanceled; before the student
+            // is enrolled, so a cancel (which discards first) is never undone
             studentsDiscarded.remove(student_id);
+
+            // enrolled meanwhile, by a concurrent enroll or a merge that had the write: give the seat back
+            if (studentsEnrolled.putIfAbsent(student_id, student_name) != null) {
+                releaseSeats(1);
+                if (record == null) {
+                    throw new DuplicateEnrollmentException(student_id);
+                }
+            }
+        }
+        finally {
+            endWrite(true, student_id);
         }
-        setEnrolled(getEnrolled() + 1);
-        studentsEnrolled.put(student_id, student_name);
+    }
+
+    /**
+     * Takes one seat, if there is still room in the class
+     * @return true if the seat was reserved, false if the class is full
+     */
+    private boolean reserveSeat() {
+        return reserveSeats(1) == 1;
+    }
+
+    /**
+     * Takes as many of the wanted seats as there is still room for, in a single CAS,
+     * and only out of this server's quota, so no other replica hands out the same seats
+     * @param wanted number of seats wanted
+     * @return number of seats reserved, between 0 and wanted
+     */
+    private int reserveSeats(int wanted) {
+        int allowed = takeQuota(wanted);
+        int taken, granted;
+        do {
+            taken = enrolled.get();
+            granted = Math.max(Math.min(allowed, getCapacity() - taken), 0);
+        } while (granted > 0 && !enrolled.compareAndSet(taken, taken + granted));
+        if (granted < allowed) {
+            quota.addAndGet(allowed - granted);
+        }
+        return granted;
+    }
+
+    /**
+     * Gives back seats reserved and not taken after all
+     * @param seats number of seats to give back
+     */
+    private void releaseSeats(int seats) {
+        enrolled.addAndGet(-seats);
+        quota.addAndGet(seats);
     }
 
     /**
@@ -142,13 +651,21 @@ public class ClassDomain {
      * @throws UnknownEnrollmentException when the student isn't enrolled
      */
     public void removeStudentEnrolled(String student_id, String student_name) throws UnknownEnrollmentException {
-        // make sure student is currently enrolled
-        if (!studentsEnrolled.containsKey(student_id)) {
-            throw new UnknownEnrollmentException(student_id);
-        }
+        beginWrite();
+        boolean changed = false;
+        try {
+            // make sure student is currently enrolled
+            if (studentsEnrolled.remove(student_id) == null) {
+                throw new UnknownEnrollmentException(student_id);
+            }
+            changed = true;
 
-        setEnrolled(getEnrolled() - 1);
-        studentsEnrolled.remove(student_id, student_name);
+            // the seat freed here is this server's to hand out
+            releaseSeats(1);
+        }
+        finally {
+            endWrite(changed, student_id);
+        }
     }
 
     /**
@@ -159,15 +676,33 @@ public class ClassDomain {
      * @throws UnknownEnrollmentException when the student isn't enrolled
      */
     public void addStudentDiscarded(String student_id, String student_name) throws UnknownEnrollmentException{
-        removeStudentEnrolled(student_id, student_name);
-        studentsDiscarded.put(student_id, student_name);
+        // one change for readers: the student is never seen in neither set
+        beginWrite();
+        boolean changed = false;
+        try {
+            if (!studentsEnrolled.containsKey(student_id)) {
+                throw new UnknownEnrollmentException(student_id);
+            }
+            // discarded before unenrolled: an enroll under way, which uncancels
+            // before it enrolls, then never leaves the student in both sets
+            studentsDiscarded.put(student_id, student_name);
+            if (studentsEnrolled.remove(student_id) != null) {
+                releaseSeats(1);
+            }
+            changed = true;
+        }
+        finally {
+            endWrite(changed, student_id);
+        }
     }
 
     public void addNewDiscarded(String student_id, String student_name) throws DuplicateCancellationException {
         if (studentsDiscarded.containsKey(student_id)) {
             throw new DuplicateCancellationException(student_id);
         }
+        beginWrite();
         studentsDiscarded.put(student_id, student_name);
+        endWrite(true, student_id);
     }
 
     /**
@@ -181,7 +716,9 @@ public class ClassDomain {
         if (!studentsDiscarded.containsKey(student_id)) {
             throw new UnknownCancellationException(student_id);
         }
+        beginWrite();
         studentsDiscarded.remove(student_id);
+        endWrite(true, student_id);
     }
 
     public void openEnrollments(int capacity) throws EnrollmentsAlreadyOpenedException, FullClassException, InactiveServerException {
@@ -194,8 +731,10 @@ public class ClassDomain {
         else if(capacity<=studentsEnrolled.size()){
             throw new FullClassException(capacity);
         }
-        setCapacity(capacity);
-        setOpen(true);
+        beginWrite();
+        this.capacity = capacity;
+        setFlag(OPEN, true);
+        endWrite(true);
     }
 
     public void closeEnrollments() throws EnrollmentsAlreadyClosedException, InactiveServerException {
@@ -205,21 +744,156 @@ public class ClassDomain {
         else if(!isOpen()){
             throw new EnrollmentsAlreadyClosedException(isOpen());
         }
+        // enrolls not recorded yet find the flag cleared as they are, and back out:
+        // the ones recorded already come before the close, which is recorded next
         setOpen(false);
+
+        // no seat will be offered any more
+        synchronized (waitlist) {
+            waitlist.clear();
+            waitlisted = 0;
+        }
     }
 
     /**
      * Cancel a student's enrollments,
      * by adding the student in the discarded student Set
      * @param student_id
+     * @return the student's name
      * @throws UnknownEnrollmentException when the student isn't enrolled
      */
-    public void cancelEnrollment(String student_id) throws UnknownEnrollmentException, InactiveServerException{
+    public String cancelEnrollment(String student_id) throws UnknownEnrollmentException, InactiveServerException{
         if(!isActive()){
             throw new InactiveServerException();
         }
 
-        addStudentDiscarded(student_id, studentsEnrolled.get(student_id));
+        String student_name = studentsEnrolled.get(student_id);
+        addStudentDiscarded(student_id, student_name);
+        return student_name;
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * REPLAY * * * * * * * * * * * * * * * * * * * */
+    // Changes read back from the write-ahead log were accepted when logged:
+    // they're reapplied without the checks of a live request.
+
+    void replayEnroll(String student_id, String student_name) {
+        beginWrite();
+        if (studentsEnrolled.put(student_id, student_name) == null) {
+            enrolled.incrementAndGet();
+            quota.accumulateAndGet(1, (seats, taken) -> Math.max(seats - taken, 0));
+        }
+        studentsDiscarded.remove(student_id);
+        endWrite(true, student_id);
+    }
+
+    void replayCancel(String student_id, String student_name) {
+        beginWrite();
+        if (studentsEnrolled.remove(student_id) != null) {
+            releaseSeats(1);
+        }
+        studentsDiscarded.put(student_id, student_name);
+        endWrite(true, student_id);
+    }
+
+    void replayOpen(int capacity) {
+        beginWrite();
+        this.capacity = capacity;
+        setFlag(OPEN, true);
+        endWrite(true);
+        // the seats were split again: this server's share follows, if it was logged
+        quota.set(0);
+        quorumWrites = false;
+    }
+
+    void replayQuota(int seats) {
+        quota.set(seats);
+    }
+
+    void replayClose() {
+        setOpen(false);
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * ESCROW * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * @return the seats this server may still admit students to on its own
+     */
+    public int getQuota() {
+        return quota.get();
+    }
+
+    /**
+     * @return the clock of the Open this server's quota was split at, -1 if none
+     */
+    public synchronized int getQuotaGeneration() {
+        return quotaGeneration;
+    }
+
+    /**
+     * Adds seats to this server's quota: its share of an Open, or seats
+     * another replica handed over. A newer Open's seats replace the quota
+     * (the older seats were split again), and older ones are ignored.
+     * @param generation the clock of the Open the seats were split at
+     * @param seats the seats received
+     * @return false if the seats were ignored
+     */
+    public synchronized boolean receiveQuota(int generation, int seats) {
+        if (generation < quotaGeneration) {
+            return false;
+        }
+        if (generation > quotaGeneration) {
+            quotaGeneration = generation;
+            quota.set(seats);
+        }
+        else {
+            quota.addAndGet(seats);
+        }
+        return true;
+    }
+
+    /**
+     * Takes seats out of this server's quota, to be admitted here or handed
+     * over; none once its escrow ran out (see ClassRegistry.holdsEscrow)
+     * @param wanted number of seats wanted
+     * @return number of seats taken, between 0 and wanted
+     */
+    public int takeQuota(int wanted) {
+        if (!ClassRegistry.getInstance().holdsEscrow()) {
+            return 0;
+        }
+        int seats, taken;
+        do {
+            seats = quota.get();
+            taken = Math.max(Math.min(wanted, seats), 0);
+        } while (taken > 0 && !quota.compareAndSet(seats, seats - taken));
+        return taken;
+    }
+
+    /**
+     * Sets the quota, as saved by a checkpoint
+     */
+    public synchronized void restoreQuota(int generation, int seats) {
+        quotaGeneration = generation;
+        quota.set(seats);
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * CONSISTENCY * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * @return true if enrolls are only answered once a majority of the
+     * replicas has them, false if they are answered right away and
+     * passed on afterwards
+     */
+    public boolean isQuorumWrites() {
+        return quorumWrites;
+    }
+
+    /**
+     * Sets how enrolls are answered, as the latest Open asked
+     * @param quorumWrites true to answer them once a majority of the replicas has them
+     */
+    public void setQuorumWrites(boolean quorumWrites) {
+        this.quorumWrites = quorumWrites;
     }
 
     public void activate(){
@@ -230,15 +904,402 @@ public class ClassDomain {
         setActive(false);
     }
 
+    /* * * * * * * * * * * * * * * * * * * * SNAPSHOTS * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * @return version of the class's state, bumped after every change
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Counts a change in. Never waits, unless a current snapshot is being
+     * copied with the changes held off: the change then waits for the copy,
+     * which only waits for the changes already in progress. Not reentrant.
+     */
+    private void beginWrite() {
+        int current;
+        while (((current = writing.get()) & HELD_OFF) != 0 || !writing.compareAndSet(current, current + 1)) {
+            if ((current & HELD_OFF) != 0) {
+                awaitResumed();
+            }
+        }
+    }
+
+    /**
+     * Counts a change out, letting a copy waiting for it know once it was the last one
+     */
+    private void endChange() {
+        if (writing.decrementAndGet() == HELD_OFF) {
+            holdOff.lock();
+            try {
+                quiet.signal();
+            }
+            finally {
+                holdOff.unlock();
+            }
+        }
+    }
+
+    private void awaitResumed() {
+        holdOff.lock();
+        try {
+            while ((writing.get() & HELD_OFF) != 0) {
+                resumed.awaitUninterruptibly();
+            }
+        }
+        finally {
+            holdOff.unlock();
+        }
+    }
+
+    private void endWrite(boolean changed) {
+        endWrite(changed, null);
+    }
+
+    /**
+     * Ends a change, recording which student it changed
+     * (recorded before the change is seen as finished by readers)
+     * @param changed false if the change was given up
+     * @param studentId the student changed, or null if none
+     */
+    private void endWrite(boolean changed, String studentId) {
+        if (changed) {
+            long changedVersion = version.incrementAndGet();
+            if (studentId != null) {
+                recordChange(changedVersion, studentId);
+            }
+        }
+        endChange();
+    }
+
+    /**
+     * Ends a change to several students, recording each one under its own version
+     * @param studentIds the students changed, empty if the change was given up
+     */
+    private void endWrite(List<String> studentIds) {
+        for (String studentId : studentIds) {
+            recordChange(version.incrementAndGet(), studentId);
+        }
+        endChange();
+    }
+
+    /**
+     * Ends a change which replaced whole sets of students:
+     * earlier versions can no longer be answered with a list of changes
+     */
+    private void endReplace() {
+        long changedVersion = version.incrementAndGet();
+        historyFloor.accumulateAndGet(changedVersion, Math::max);
+        Map.Entry<Long, String> oldest;
+        while ((oldest = history.firstEntry()) != null && oldest.getKey() <= changedVersion) {
+            if (history.remove(oldest.getKey()) != null) {
+                historySize.decrementAndGet();
+            }
+        }
+        endChange();
+    }
+
+    private void recordChange(long changedVersion, String studentId) {
+        history.put(changedVersion, studentId);
+        if (historySize.incrementAndGet() > MAX_HISTORY) {
+            Map.Entry<Long, String> oldest = history.pollFirstEntry();
+            if (oldest != null) {
+                historySize.decrementAndGet();
+                historyFloor.accumulateAndGet(oldest.getKey(), Math::max);
+            }
+        }
+    }
+
+    /**
+     * @return identifier of this server's history of the class
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Describes what changed in the class since a version seen by the client.
+     * Each student changed since then is sent with its current status, from the
+     * bounded history of changes; if the history no longer reaches that version,
+     * or the version belongs to another epoch, the whole state is sent instead.
+     * @param sinceEpoch epoch of the version seen by the client
+     * @param sinceVersion version seen by the client
+     * @param omitFullState true to only flag that the whole state is needed (the client streams it)
+     * @return the changes, or "not modified"
+     */
+    public ClassChanges getChangesSince(long sinceEpoch, long sinceVersion, boolean omitFullState) {
+        return getChangesSince(sinceEpoch, sinceVersion, omitFullState, false);
+    }
+
+    /**
+     * Describes what changed in the class since a version seen by the client
+     * @param sinceEpoch epoch of the version seen by the client
+     * @param sinceVersion version seen by the client
+     * @param omitFullState true to only flag that the whole state is needed (the client streams it)
+     * @param current true to reflect every change completed before the call,
+     * as a fresh read must, instead of the latest published snapshot
+     * @return the changes, or "not modified"
+     */
+    public ClassChanges getChangesSince(long sinceEpoch, long sinceVersion, boolean omitFullState, boolean current) {
+        return changesSince(current ? getCurrentSnapshot() : getSnapshot(), sinceEpoch, sinceVersion, omitFullState,
+                List.of());
+    }
+
+    /**
+     * Describes what changed in the class since a version the other server
+     * holds a copy of, for delta gossip. Reflects every completed change, and
+     * also carries the current status of the students the other server changed
+     * on its side, so it can make them match this server's.
+     * @param sinceEpoch epoch of the version the other server holds
+     * @param sinceVersion version the other server holds
+     * @param alsoStudents students the other server changed since then
+     * @return the changes, or the whole state if they're no longer known
+     */
+    public ClassChanges getChangesSince(long sinceEpoch, long sinceVersion, Collection<String> alsoStudents) {
+        return changesSince(getCurrentSnapshot(), sinceEpoch, sinceVersion, false, alsoStudents);
+    }
+
+    private ClassChanges changesSince(ClassSnapshot snapshot, long sinceEpoch, long sinceVersion, boolean omitFullState,
+                                      Collection<String> alsoStudents) {
+        long currentVersion = snapshot.getVersion();
+        ClassChanges.Builder changes = ClassChanges.newBuilder().setEpoch(epoch).setVersion(currentVersion);
+
+        if (sinceEpoch == epoch && sinceVersion == currentVersion && alsoStudents.isEmpty()) {
+            return changes.setNotModified(true).build();
+        }
+        if (sinceEpoch != epoch || sinceVersion > currentVersion || sinceVersion < historyFloor.get()) {
+            return fullState(changes, snapshot, omitFullState);
+        }
+
+        changes.setCapacity(snapshot.getCapacity());
+        changes.setOpenEnrollments(snapshot.isOpen());
+        Set<String> changed = new TreeSet<>(history.subMap(sinceVersion, false, currentVersion, true).values());
+        // the history may have been trimmed while it was read
+        if (sinceVersion < historyFloor.get()) {
+            return fullState(changes, snapshot, omitFullState);
+        }
+        changed.addAll(alsoStudents);
+
+        Student.Builder studentBuilder = Student.newBuilder();
+        for (String studentId : changed) {
+            String name;
+            if ((name = snapshot.getEnrolledName(studentId)) != null) {
+                changes.addEnrolled(studentBuilder.setStudentId(studentId).setStudentName(name).build());
+            }
+            else if ((name = snapshot.getDiscardedName(studentId)) != null) {
+                changes.addDiscarded(studentBuilder.setStudentId(studentId).setStudentName(name).build());
+            }
+            else {
+                changes.addRemoved(studentId);
+            }
+        }
+        return changes.build();
+    }
+
+    private static ClassChanges fullState(ClassChanges.Builder changes, ClassSnapshot snapshot, boolean omitFullState) {
+        changes.setFullState(true);
+        if (!omitFullState) {
+            changes.setClassState(snapshot.getClassState());
+        }
+        return changes.build();
+    }
+
+    /**
+     * @return the digest of the class's current rosters, a hash per bucket of students
+     */
+    public long[] getDigest() {
+        return getCurrentSnapshot().getDigest();
+    }
+
+    /**
+     * Describes the class to another server which sent its digest instead of
+     * a version: only the students of the buckets whose hashes differ are
+     * sent, so two servers that mostly agree exchange little.
+     * @param digest the other server's digest, a hash per bucket
+     * @return the changes, with the buckets that differ, each one sent whole
+     */
+    public ClassChanges getChangesInBuckets(List<Long> digest) {
+        ClassSnapshot snapshot = getCurrentSnapshot();
+        long[] ownDigest = snapshot.getDigest();
+        ClassChanges.Builder changes = ClassChanges.newBuilder()
+                .setEpoch(epoch)
+                .setVersion(snapshot.getVersion())
+                .setCapacity(snapshot.getCapacity())
+                .setOpenEnrollments(snapshot.isOpen());
+
+        boolean[] differs = new boolean[ClassSnapshot.DIGEST_BUCKETS];
+        for (int bucket = 0; bucket < ClassSnapshot.DIGEST_BUCKETS; bucket++) {
+            if (ownDigest[bucket] != digest.get(bucket)) {
+                differs[bucket] = true;
+                changes.addBuckets(bucket);
+            }
+        }
+        if (changes.getBucketsCount() == 0) {
+            return changes.build();
+        }
+        Student.Builder studentBuilder = Student.newBuilder();
+        snapshot.forEachEnrolled((id, name) -> {
+            if (differs[ClassSnapshot.bucketOf(id)]) {
+                changes.addEnrolled(studentBuilder.setStudentId(id).setStudentName(name).build());
+            }
+        });
+        snapshot.forEachDiscarded((id, name) -> {
+            if (differs[ClassSnapshot.bucketOf(id)]) {
+                changes.addDiscarded(studentBuilder.setStudentId(id).setStudentName(name).build());
+            }
+        });
+        return changes.build();
+    }
+
+    /**
+     * Brings the class in line with the other server's buckets, in place:
+     * each student of the buckets that differ takes the status it has on the
+     * other server, and the ones it doesn't have there are removed.
+     * @param changes the other server's answer to this server's digest
+     */
+    public void applyBuckets(ClassChanges changes) {
+        if (changes.getBucketsCount() == 0) {
+            applyChanges(changes);
+            return;
+        }
+        boolean[] differs = new boolean[ClassSnapshot.DIGEST_BUCKETS];
+        for (int bucket : changes.getBucketsList()) {
+            if (bucket >= 0 && bucket < ClassSnapshot.DIGEST_BUCKETS) {
+                differs[bucket] = true;
+            }
+        }
+        Set<String> kept = new HashSet<>();
+        changes.getEnrolledList().forEach(student -> kept.add(student.getStudentId()));
+        changes.getDiscardedList().forEach(student -> kept.add(student.getStudentId()));
+
+        ClassChanges.Builder withRemoved = changes.toBuilder();
+        ClassSnapshot snapshot = getCurrentSnapshot();
+        snapshot.forEachEnrolled((id, name) -> {
+            if (differs[ClassSnapshot.bucketOf(id)] && !kept.contains(id)) {
+                withRemoved.addRemoved(id);
+            }
+        });
+        snapshot.forEachDiscarded((id, name) -> {
+            if (differs[ClassSnapshot.bucketOf(id)] && !kept.contains(id)) {
+                withRemoved.addRemoved(id);
+            }
+        });
+        applyChanges(withRemoved.build());
+    }
+
+    /**
+     * Returns an immutable view of the class's state, without taking any
+     * lock nor holding any change off. Once published, a snapshot is served
+     * until the next change; the first read after it copies the class
+     * alongside the changes, and publishes the copy for the others, unless
+     * a change was in progress meanwhile. It then serves the latest published
+     * snapshot, as the reads do while another one copies the class: it may
+     * lack the latest changes, but is never seen half done.
+     * Reads that must reflect every completed change use getCurrentSnapshot.
+     * @return the latest published snapshot of the class
+     */
+    public ClassSnapshot getSnapshot() {
+        ClassSnapshot current = snapshot.get();
+        if (current.getVersion() == version.get() || !rebuilding.compareAndSet(false, true)) {
+            return current;
+        }
+        try {
+            ClassSnapshot copy = tryCopy();
+            return copy != null ? publish(copy) : snapshot.get();
+        }
+        finally {
+            rebuilding.set(false);
+        }
+    }
+
+    /**
+     * Returns a snapshot which reflects every change completed before the call,
+     * as gossip and fresh reads need. The class is copied alongside the changes
+     * a few times; if a change is in progress every time, new ones are held off
+     * while the class is copied once the ones in progress end.
+     * @return a snapshot of the class's current state
+     */
+    public ClassSnapshot getCurrentSnapshot() {
+        for (int attempt = 0; attempt < COPY_ATTEMPTS; attempt++) {
+            ClassSnapshot current = snapshot.get();
+            if (current.getVersion() == version.get()) {
+                return current;
+            }
+            ClassSnapshot copy = tryCopy();
+            if (copy != null) {
+                return publish(copy);
+            }
+        }
+        return publish(copyHoldingOff());
+    }
+
+    /**
+     * Copies the class alongside the changes, without holding them off
+     * @return the copy, or null if it may have seen a change half done
+     */
+    private ClassSnapshot tryCopy() {
+        long at = version.get();
+        if (writing.get() != 0) {
+            return null;
+        }
+        ClassSnapshot copy = new ClassSnapshot(at, getCapacity(), isOpen(), studentsEnrolled, studentsDiscarded);
+        // no change started meanwhile, nor ended: a given up one changed nothing
+        return writing.get() == 0 && version.get() == at ? copy : null;
+    }
+
+    /**
+     * Copies the class with new changes held off, once the ones in progress end
+     * @return the copy
+     */
+    private ClassSnapshot copyHoldingOff() {
+        holdOff.lock();
+        try {
+            writing.getAndAdd(HELD_OFF);
+            try {
+                while (writing.get() != HELD_OFF) {
+                    quiet.awaitUninterruptibly();
+                }
+                return new ClassSnapshot(version.get(), getCapacity(), isOpen(), studentsEnrolled, studentsDiscarded);
+            }
+            finally {
+                writing.getAndAdd(-HELD_OFF);
+                resumed.signalAll();
+            }
+        }
+        finally {
+            holdOff.unlock();
+        }
+    }
+
+    /**
+     * Publishes a snapshot, unless a newer one was already published
+     * @param built the snapshot to publish
+     * @return the latest published snapshot
+     */
+    private ClassSnapshot publish(ClassSnapshot built) {
+        ClassSnapshot current;
+        do {
+            current = snapshot.get();
+            if (current != null && current.getVersion() >= built.getVersion()) {
+                return current;
+            }
+        } while (!snapshot.compareAndSet(current, built));
+        return built;
+    }
+
     @Override
     public String toString() {
         return "ClassDomain{" +
-                "capacity=" + capacity +
+                "classId='" + classId + '\'' +
+                ", capacity=" + capacity +
                 ", enrolled=" + enrolled +
-                ", open=" + open +
-                ", active=" + active +
+                ", open=" + isOpen() +
+                ", active=" + isActive() +
                 ", studentsEnrolled=" + studentsEnrolled +
                 ", studentsDiscarded=" + studentsDiscarded +
+                ", waitlisted=" + waitlisted +
                 '}';
     }
 }
\ No newline at end of file
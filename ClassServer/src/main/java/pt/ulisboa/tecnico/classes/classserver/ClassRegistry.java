@@ -0,0 +1,112 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ClassRegistry {
+    // Static variable reference of instance of type Singleton
+    private static ClassRegistry instance = null;
+
+    /** Class addressed by requests which don't specify one */
+    public static final String DEFAULT_CLASS = "";
+
+    private final ConcurrentHashMap<String, ClassDomain> classes = new ConcurrentHashMap<>();
+
+    private volatile boolean active = true;
+
+    // epoch of the classes not hosted yet, all empty: polling one keeps getting "not modified"
+    private final long unknownEpoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+    // until when the classes' quotas may be admitted to, in milliseconds (the primary's never run out)
+    private volatile long escrowUntil = Long.MAX_VALUE;
+
+    /**
+     * Constructor (Singleton)
+     * Creating private constructor restricted to this class itself
+     */
+    private ClassRegistry() {}
+
+    /**
+     * Static method to create instance of ClassRegistry class
+     * @return instance of class itself
+     */
+    public static synchronized ClassRegistry getInstance() {
+        if (instance == null)
+            instance = new ClassRegistry();
+
+        return instance;
+    }
+
+    /**
+     * Returns the class with the given id, without registering it.
+     * Unknown classes are seen as an empty class with closed enrollments,
+     * so reads don't grow the registry.
+     * @param classId the class's identifier
+     * @return the class's domain
+     */
+    public ClassDomain getClassDomain(String classId) {
+        ClassDomain class_ = classes.get(classId);
+        if (class_ == null) {
+            class_ = new ClassDomain(classId, isActive(), unknownEpoch);
+        }
+        return class_;
+    }
+
+    /**
+     * Returns the class with the given id, creating it if needed.
+     * @param classId the class's identifier
+     * @return the class's domain
+     */
+    public ClassDomain getOrCreateClassDomain(String classId) {
+        return classes.computeIfAbsent(classId, id -> new ClassDomain(id, isActive()));
+    }
+
+    /**
+     * @return every class hosted by this server
+     */
+    public Collection<ClassDomain> getClasses() {
+        return classes.values();
+    }
+
+    /**
+     * @return true if the server is active, otherwise false
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return true if students may still be admitted to the classes' quotas
+     */
+    public boolean holdsEscrow() {
+        return System.currentTimeMillis() < escrowUntil;
+    }
+
+    /**
+     * Lets students be admitted to the classes' quotas until the given time, at least
+     * @param until the time, in milliseconds
+     */
+    public void extendEscrow(long until) {
+        escrowUntil = Math.max(escrowUntil, until);
+    }
+
+    /**
+     * Stops admitting students to the classes' quotas until extendEscrow:
+     * done by a replica which isn't the primary when it starts, as its
+     * seats may have been split again while it was down
+     */
+    public void expireEscrow() {
+        escrowUntil = 0;
+    }
+
+    public void activate() {
+        active = true;
+        classes.values().forEach(ClassDomain::activate);
+    }
+
+    public void deactivate() {
+        active = false;
+        classes.values().forEach(ClassDomain::deactivate);
+    }
+}
@@ -6,13 +6,15 @@ import io.grpc.ServerBuilder;
 
 import java.util.*;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 
 public class ClassServer {
     private static final String service = "Turmas";
 
-    private static final boolean TIMER = true;
-    private static final boolean COMMAND = false;
+    /** Where each server keeps its write-ahead log and checkpoints, in a directory named after its address */
+    private static final String DATA_DIRECTORY = "data";
 
     /** Server host port. */
     private static int port;
@@ -25,10 +27,6 @@ public class ClassServer {
 
     private static String type;
 
-    private static List<String> primaryServers = new ArrayList<>();
-
-    private static List<String> secondaryServers = new ArrayList<>();
-
     public static void main(String[] args) throws IOException, InterruptedException {
         // check arguments
         if (args.length == 3 && (args[2].equals("P") || args[2].equals("S"))) {
@@ -46,6 +44,12 @@ public class ClassServer {
             return;
         }
 
+        //Open the write-ahead log, before anything can change a class
+        //(-Dclassserver.journal=mapped keeps it in memory-mapped files)
+        Path dataDirectory = Paths.get(DATA_DIRECTORY, host + "_" + port);
+        WriteAheadLog log = WriteAheadLog.open(
+                dataDirectory, System.getProperty("classserver.journal", WriteAheadLog.STREAM), debug);
+
         //Register the server
         NamingServerFrontend namingServerFrontend = new NamingServerFrontend(debug);
         namingServerFrontend.register(
@@ -55,30 +59,33 @@ public class ClassServer {
             namingServerFrontend.delete(service, host + ":" + Integer.toString(port));
         }));
 
-        //lookup for other servers
-        ClassServerFrontend frontend = null;
-        switch (type){
-            case "P":
-                while(secondaryServers.size() <= 0){
-                    secondaryServers = namingServerFrontend.lookup("Turmas", new ArrayList<>(List.of("S")));
-                }
-
-                frontend = ClassServerFrontend.getInstance(secondaryServers.get(0), debug);
-                break;
-            case "S":
-                while(primaryServers.size() <= 0){
-                    primaryServers = namingServerFrontend.lookup("Turmas", new ArrayList<>(List.of("P")));
-                }
-
-                frontend = ClassServerFrontend.getInstance(primaryServers.get(0), debug);
-                break;
+        //lookup for other servers, primary or secondary, as many as there are;
+        //the ones registered later are found on every gossip round
+        ClassServerFrontend frontend = ClassServerFrontend.getInstance(
+                String.format("%s:%d", host, port), namingServerFrontend, debug);
+        while(frontend.refreshPeers() <= 0){
         }
 
+        //Rebuild the classes from the latest checkpoint and the log written after it
+        Checkpointer checkpointer = new Checkpointer(dataDirectory, log, ClassRegistry.getInstance(), frontend, debug);
+        int replayed = checkpointer.recover();
+
+        //A new replica copies the classes from another replica, in chunks,
+        //and keeps them in a checkpoint right away
+        if (!checkpointer.hasSnapshot() && replayed == 0 && frontend.fetchSnapshot()) {
+            checkpointer.checkpoint();
+        }
+        checkpointer.start();
+
+        //Name new writes after the ones of this server the other replicas have,
+        //which the log may have missed in a crash
+        frontend.syncClocks();
+
         final BindableService adminService = new AdminServiceImpl(debug);
         final BindableService professorService = new ProfessorServiceImpl(debug, type);
         final BindableService studentService = new StudentServiceImpl(debug);
 
-        final BindableService classServerService = new ClassServerServiceImpl(debug, type);
+        final BindableService classServerService = new ClassServerServiceImpl(debug);
 
         // Create a new server to listen on port.
         Server server = ServerBuilder.forPort(port)
@@ -91,19 +98,16 @@ public class ClassServer {
         // Start the server.
         server.start();
 
-        //propagate state if primary server
-        if(type.equals("P") || type.equals("S")){
-            int MINUTES = 1; // The delay in minutes
-            Timer timer = new Timer();
-            ClassServerFrontend finalFrontend = frontend;
-            System.err.println("PROP");
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() { // Function runs every MINUTES minutes.
-                    finalFrontend.propagateState(TIMER);
-                }
-            }, 0, 1000 * 60 * MINUTES);
-            // 1000 milliseconds in a second * 60 per minute * the MINUTES variable.
+        //propagate state as writes pile up or get old, and now and then when idle
+        new GossipScheduler(frontend, debug).start();
+
+        //the primary serves the latest state on its own while the other replicas promise it their writes
+        if (type.equals("P")) {
+            frontend.startReadLease();
+        }
+        else {
+            // admits students to its seats once the primary asks it for the read lease
+            ClassRegistry.getInstance().expireEscrow();
         }
 
         // Do not exit the main thread. Wait until server is terminated.
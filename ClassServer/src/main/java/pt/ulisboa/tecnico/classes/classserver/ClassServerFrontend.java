@@ -1,56 +1,945 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
+import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.classes.Stringify;
 import pt.ulisboa.tecnico.classes.Validate;
-import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
-import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassChanges;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassStatePage;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.*;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidCapacityException;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidStudentException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
 
 public class ClassServerFrontend {
 	private static ClassServerFrontend instance = null;
 	private static final boolean TIMER = true;
 	private static final boolean COMMAND = false;
 
+	/** Time allowed for a whole snapshot transfer, in milliseconds */
+	private static final int SNAPSHOT_DEADLINE = 60 * 1000;
+
+	/** Time allowed for each try of an exchange, in milliseconds */
+	private static final int PROPAGATE_DEADLINE = 3000;
+
+	/** Time an enroll waits for a majority of the replicas, in milliseconds (within the client's deadline) */
+	private static final int QUORUM_TIMEOUT = 2000;
+
+	/** How long a replica may admit students to its seats after the primary last asked it for the read lease, in milliseconds */
+	public static final int ESCROW_DURATION = 10 * 1000;
+
+	/** Time without an answer after which the primary splits again the seats a replica holds, in milliseconds */
+	private static final int RECLAIM_AFTER = 2 * ESCROW_DURATION;
+
 	private final  String service = "Turmas";
 
 	private boolean activeGossip = true;
 
-	private ClassDomain class_ = ClassDomain.getInstance();
+	private final ClassRegistry registry = ClassRegistry.getInstance();
 
 	private final boolean debug;
 
 	private final Validate _validate = new Validate();
 
-	private ManagedChannel channel = null;
+	/** This server's address, which also names the writes it accepts */
+	private final String replica;
+
+	private final NamingServerFrontend namingServerFrontend;
+
+	// the other replicas, by address
+	private final Map<String, Peer> _peers = new ConcurrentHashMap<>();
+
+	// writes to pass on to the other replicas, and what was applied, per class
+	private final Map<String, ClassWrites> _writes = new ConcurrentHashMap<>();
+
+	// Lamport clock to help with replication, per class
+	private final Map<String, AtomicInteger> _clocks = new ConcurrentHashMap<>();
+
+	// the primary's read lease, as held or as promised by this server
+	private final ReadLease _lease = new ReadLease();
+	private volatile boolean leaseHolder = false;
+
+	// how far behind the other replicas each class is
+	private final ReplicaLag _lag = new ReplicaLag();
+
+	// the other replicas handed seats of each class's latest split (kept by the primary)
+	private final Map<String, Set<String>> _holders = new ConcurrentHashMap<>();
+
+	// builds and sends the batches of every replication stream
+	private final ExecutorService _streaming = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "replication");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * A state of another replica this server holds a copy of:
+	 * the replica's version peerVersion (of epoch peerEpoch)
+	 * had the same students as this server's version localVersion.
+	 */
+	public static final class Ack {
+		final long peerEpoch;
+		final long peerVersion;
+		final long localVersion;
+
+		Ack(long peerEpoch, long peerVersion, long localVersion) {
+			this.peerEpoch = peerEpoch;
+			this.peerVersion = peerVersion;
+			this.localVersion = localVersion;
+		}
+	}
+
+	/**
+	 * Another replica of the classes, found through the naming server
+	 */
+	private final class Peer {
+		final String target;
+		final ManagedChannel channel;
+		final ClassServerServiceGrpc.ClassServerServiceBlockingStub stub;
+		final ClassServerServiceGrpc.ClassServerServiceStub asyncStub;
+
+		// the replica's state acknowledged in the latest exchange, per class
+		final Map<String, Ack> acks = new ConcurrentHashMap<>();
+
+		// the classes with an exchange under way
+		final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+		// pushes this server's writes as they happen
+		final ReplicationStream stream;
+
+		// when the replica last answered this server, or was found, in milliseconds
+		volatile long heardAt = System.currentTimeMillis();
+
+		Peer(String target) {
+			this.target = target;
+			channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+			stub = ClassServerServiceGrpc.newBlockingStub(channel);
+			asyncStub = ClassServerServiceGrpc.newStub(channel);
+			stream = new ReplicationStream(ClassServerFrontend.this, target, asyncStub, _streaming, debug);
+		}
+	}
+
+	private AtomicInteger clockOf(String classId) { return _clocks.computeIfAbsent(classId, id -> new AtomicInteger(0)); }
+
+	public void setClock(String classId, int clock) { clockOf(classId).set(clock); }
+
+	public int getClock(String classId) { return clockOf(classId).get(); }
+
+	/**
+	 * Moves the class's clock past the clocks of writes received,
+	 * so the writes accepted here afterwards are ordered after them.
+	 */
+	private void advanceClock(String classId, Collection<WriteRequest> writes) {
+		for (WriteRequest write : writes) {
+			clockOf(classId).accumulateAndGet(write.getClock() + 1, Math::max);
+		}
+	}
+
+	/**
+	 * Moves the class's clock past this server's writes another replica
+	 * has, as told by the replica's version vector: after a restart, the
+	 * latest of them may not have been logged here.
+	 */
+	private void advanceClock(String classId, Map<String, Integer> versionVector) {
+		Integer own = versionVector.get(replica);
+		if (own != null) {
+			clockOf(classId).accumulateAndGet(own + 1, Math::max);
+		}
+	}
+
+	public ClassWrites get_writes(String classId) {
+		return _writes.computeIfAbsent(classId, id -> new ClassWrites());
+	}
+
+	/**
+	 * @return the number of writes ever kept to be passed on, of every class
+	 */
+	public long getWritesAdded() {
+		long added = 0;
+		for (ClassWrites classWrites : _writes.values()) {
+			added += classWrites.getAdded();
+		}
+		return added;
+	}
+
+	/**
+	 * @return since when writes of some class have been waiting for
+	 * every replica to have them, or 0 if none are
+	 */
+	public long getPendingSince() {
+		long since = 0;
+		for (ClassWrites classWrites : _writes.values()) {
+			long classSince = classWrites.getPendingSince();
+			if (classSince > 0 && (since == 0 || classSince < since)) {
+				since = classSince;
+			}
+		}
+		return since;
+	}
+
+	/**
+	 * @return this server's address
+	 */
+	public String getReplica() {
+		return replica;
+	}
+
+	/**
+	 * @return the classes with writes recorded
+	 */
+	public Set<String> getWrittenClasses() {
+		return _writes.keySet();
+	}
+
+	/**
+	 * Looks the other replicas up in the naming server, connecting
+	 * to the new ones and disconnecting from the ones gone, and
+	 * (re)opens the replication streams to them.
+	 * @return the number of other replicas
+	 */
+	public int refreshPeers() {
+		Set<String> targets = lookupPeers();
+		if (targets == null) {
+			return _peers.size();
+		}
+		for (String target : targets) {
+			_peers.computeIfAbsent(target, newTarget -> {
+				debug("Found replica " + newTarget + ".");
+				return new Peer(newTarget);
+			});
+		}
+		_peers.values().removeIf(peer -> {
+			if (targets.contains(peer.target)) {
+				return false;
+			}
+			debug("Replica " + peer.target + " is gone.");
+			peer.stream.close();
+			peer.channel.shutdown();
+			return true;
+		});
+		for (Peer peer : _peers.values()) {
+			peer.stream.open();
+		}
+		return _peers.size();
+	}
+
+	/**
+	 * @return the other replicas registered in the naming server, or
+	 * null if it couldn't be reached
+	 */
+	private Set<String> lookupPeers() {
+		Set<String> targets = new HashSet<>(namingServerFrontend.lookup(service, new ArrayList<>()));
+		// this server is registered before it serves: missing from the answer only if there was none
+		if (!targets.remove(replica)) {
+			return null;
+		}
+		return targets;
+	}
+
+	/**
+	 * Keeps writes received from another replica, whose effects are
+	 * already in the class, so they are passed on to the others.
+	 * @param classId the class the writes are for
+	 * @param writes the writes, any of them possibly known here already
+	 */
+	public void receiveWrites(String classId, Collection<WriteRequest> writes) {
+		ClassWrites classWrites = get_writes(classId);
+		for (WriteRequest write : writes) {
+			if (!classWrites.has(write)) {
+				classWrites.add(write);
+				receiveQuota(classId, write);
+			}
+		}
+		advanceClock(classId, writes);
+	}
+
+	/**
+	 * Merges another replica's enrollment set into the class's, sent
+	 * because it dropped writes this server may be missing, and moves
+	 * the version vector past them. Call after receiving the writes
+	 * sent with it, so their quotas are taken.
+	 * @param classId the class the set is for
+	 * @param peer the other replica
+	 * @param enrollments the other replica's set, serialized
+	 * @param versionVector the other replica's version vector
+	 */
+	public void receiveEnrollments(String classId, String peer, ByteString enrollments,
+			Map<String, Integer> versionVector) {
+		try {
+			get_writes(classId).join(enrollments.toByteArray(), versionVector);
+			debug("Merged the enrollment set of class " + classId + " from " + peer + ".");
+		}
+		catch (IOException e) {
+			// the writes it stands for aren't covered here yet, so they can still arrive
+			debug("Ignored an incomplete enrollment set of class " + classId + " from " + peer + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Keeps a write this server accepted before it restarted, read back
+	 * from the write-ahead log under the id it was accepted with, and
+	 * moves the class's clock past it.
+	 * @param classId the class the write was applied to
+	 * @param write the write, as named when accepted
+	 */
+	public void replayWrite(String classId, WriteRequest write) {
+		get_writes(classId).add(write);
+		clockOf(classId).accumulateAndGet(write.getClock() + 1, Math::max);
+	}
+
+	/**
+	 * Adds the seats a write hands this server, if any: its share
+	 * of an Open, or seats another replica handed over. An Open
+	 * also tells how enrolls are answered from then on.
+	 */
+	private void receiveQuota(String classId, WriteRequest write) {
+		if (write.hasGrant()) {
+			heldBy(classId, write.getGrant().getTo());
+		}
+		int generation, seats;
+		if (write.hasOpen() && write.getOpen().getQuotasCount() > 0) {
+			generation = write.getClock();
+			seats = write.getOpen().getQuotasOrDefault(replica, 0);
+		}
+		else if (write.hasGrant() && write.getGrant().getTo().equals(replica)) {
+			generation = write.getGrant().getGeneration();
+			seats = write.getGrant().getSeats();
+		}
+		else {
+			return;
+		}
+		ClassDomain class_ = registry.getOrCreateClassDomain(classId);
+		if (class_.receiveQuota(generation, seats)) {
+			debug("Received " + seats + " seats of class " + classId + " from " + write.getReplica()
+					+ ", " + class_.getQuota() + " in all.");
+			WriteAheadLog.getInstance().logQuota(classId, class_.getQuota());
+			if (write.hasOpen()) {
+				class_.setQuorumWrites(write.getOpen().getQuorumWrites());
+				WriteAheadLog.getInstance().logMode(classId, write.getOpen().getQuorumWrites());
+			}
+		}
+	}
+
+	/**
+	 * Records the opening of a class's enrollments, splitting its free
+	 * seats evenly among the replicas, this one included: each replica
+	 * admits students to its share without asking the others. Replicas
+	 * which stopped answering get no seats, as they couldn't use them.
+	 * @param class_ the class opened
+	 * @param capacity the class's capacity
+	 * @param quorumWrites true if enrolls are to be answered once a majority of the replicas has them
+	 * @return the sequence number of the last log record it took (the open is logged first)
+	 */
+	public long recordOpen(ClassDomain class_, int capacity, boolean quorumWrites) {
+		List<String> replicas = answeringPeers();
+		// any seats left over go to this replica, which the students are asking now
+		replicas.add(0, replica);
+		int free = Math.max(capacity - class_.getEnrolled(), 0);
+		WriteRequest.Builder open = Writes.open(capacity);
+		open.getOpenBuilder().setQuorumWrites(quorumWrites);
+		Set<String> holders = ConcurrentHashMap.newKeySet();
+		for (int r = 0; r < replicas.size(); r++) {
+			int seats = free / replicas.size() + (r < free % replicas.size() ? 1 : 0);
+			open.getOpenBuilder().putQuotas(replicas.get(r), seats);
+			if (r > 0 && seats > 0) {
+				holders.add(replicas.get(r));
+			}
+		}
+		_holders.put(class_.getClassId(), holders);
+		WriteRequest recorded = recordWrite(class_.getClassId(), open);
+		WriteAheadLog.getInstance().logWrite(class_.getClassId(), recorded);
+		class_.receiveQuota(recorded.getClock(), recorded.getOpen().getQuotasOrThrow(replica));
+		debug("Split " + free + " seats of class " + class_.getClassId() + ": " + recorded.getOpen().getQuotasMap());
+		WriteAheadLog.getInstance().logQuota(class_.getClassId(), class_.getQuota());
+		class_.setQuorumWrites(quorumWrites);
+		long logged = WriteAheadLog.getInstance().logMode(class_.getClassId(), quorumWrites);
+		promoteWaitlisted(class_);
+		return logged;
+	}
 
-	private ClassServerServiceGrpc.ClassServerServiceBlockingStub stub = null;
+	/**
+	 * Hands part of this server's quota over to another replica, as
+	 * told by the latest exchange with it: half the difference when
+	 * this server has at least 2 seats more, or a seat when it has none
+	 * left and students are waiting there. Only the holder of seats
+	 * gives them away, so replicas never need to agree on it.
+	 * @param class_ the class exchanged, locked
+	 * @param peer the other replica's address
+	 * @param theirQuota the other replica's free seats
+	 * @param theirWaitlisted the students waiting for a seat there
+	 */
+	public void rebalance(ClassDomain class_, String peer, int theirQuota, int theirWaitlisted) {
+		int ownQuota = class_.getQuota();
+		int seats = (ownQuota - theirQuota) / 2;
+		if (seats <= 0 && theirQuota == 0 && theirWaitlisted > 0 && class_.getWaitlisted() == 0) {
+			seats = Math.min(ownQuota, 1);
+		}
+		if (seats <= 0 || class_.getQuotaGeneration() < 0) {
+			return;
+		}
+		int taken = class_.takeQuota(seats);
+		if (taken == 0) {
+			return;
+		}
+		recordWrite(class_.getClassId(), Writes.grant(peer, taken, class_.getQuotaGeneration()));
+		heldBy(class_.getClassId(), peer);
+		WriteAheadLog.getInstance().logQuota(class_.getClassId(), class_.getQuota());
+		debug("Handed " + taken + " seats of class " + class_.getClassId() + " over to " + peer
+				+ ", " + class_.getQuota() + " left.");
+	}
 
-	private String target = "";
+	/**
+	 * Remembers another replica holds seats of a class's latest split
+	 */
+	private void heldBy(String classId, String holder) {
+		if (!holder.equals(replica)) {
+			_holders.computeIfAbsent(classId, id -> ConcurrentHashMap.newKeySet()).add(holder);
+		}
+	}
 
-	private Map<Integer, String> _writes = new TreeMap<>(); // writes not yet propagated
+	/**
+	 * Splits again the free seats of every open class some of whose
+	 * seats are held by a replica that stopped answering, which would
+	 * otherwise keep them for good: the new Open's seats replace every
+	 * replica's quota, the silent one's too once it gets the Open, and
+	 * it stopped admitting students to its seats by then (its escrow
+	 * runs out ESCROW_DURATION after the primary last asked it for the
+	 * read lease). Done by the primary only, which opens the classes.
+	 */
+	private void reclaimSeats() {
+		Set<String> answering = new HashSet<>(answeringPeers());
+		for (ClassDomain class_ : registry.getClasses()) {
+			// a restarted primary doesn't know who holds seats: any replica may
+			Set<String> holders = _holders.computeIfAbsent(class_.getClassId(), id -> {
+				Set<String> all = ConcurrentHashMap.newKeySet();
+				all.addAll(_peers.keySet());
+				return all;
+			});
+			if (answering.containsAll(holders)) {
+				continue;
+			}
+			synchronized (class_) {
+				// a close takes the class's lock too: a closed class isn't opened again
+				if (!class_.isOpen() || class_.getQuotaGeneration() < 0) {
+					continue;
+				}
+				Set<String> silent = new HashSet<>(holders);
+				silent.removeAll(answering);
+				debug("Splitting again the seats of class " + class_.getClassId() + ", as " + silent
+						+ " stopped answering.");
+				recordOpen(class_, class_.getCapacity(), class_.isQuorumWrites());
+			}
+		}
+	}
 
-	private int _clock = 0; // Lamport clock to help with replication
+	/**
+	 * Brings a class in line with its enrollment set: the state every
+	 * replica that applied the same writes reaches, whatever the order
+	 * it got them in. Call with the class locked.
+	 * @param class_ the class to bring in line
+	 */
+	public void reconcile(ClassDomain class_) {
+		// enrolls record their writes before inserting their students: none is in the class without its write in the set
+		EnrollmentSet enrollments = get_writes(class_.getClassId()).getEnrollments();
+		ClassChanges changes = class_.applyChanges(enrollments::changesFrom);
+		if (changes != null) {
+			debug("Enrolled " + changes.getEnrolledCount() + " and discarded " + changes.getDiscardedCount()
+					+ " students of class " + class_.getClassId() + ", as its writes decide.");
+		}
+	}
 
-	public void setClock(int clock) { this._clock = clock; }
+	/**
+	 * Remembers which writes of a class another replica has, and
+	 * forgets the writes every replica has by now.
+	 * @param classId the class exchanged
+	 * @param peer the other replica's address
+	 * @param versionVector the other replica's version vector
+	 */
+	public void acknowledge(String classId, String peer, Map<String, Integer> versionVector) {
+		advanceClock(classId, versionVector);
+		ClassWrites classWrites = get_writes(classId);
+		classWrites.acknowledge(peer, versionVector);
+		int pruned = classWrites.prune(_peers.keySet());
+		if (pruned > 0) {
+			debug("Dropped " + pruned + " writes of class " + classId + " every replica has.");
+		}
+	}
 
-	public int getClock() { return _clock; }
+	/**
+	 * Names a write after this server and the class's current clock,
+	 * and advances the clock, as a single step. Safe to call from
+	 * concurrent requests; only the class's writes are locked, briefly,
+	 * so no write is sent before an earlier one of this server.
+	 * @param classId the class the write was applied to
+	 * @param write the write to be propagated
+	 * @return the write, as named
+	 */
+	public WriteRequest recordWrite(String classId, WriteRequest.Builder write) {
+		ClassWrites classWrites = get_writes(classId);
+		WriteRequest recorded;
+		synchronized (classWrites) {
+			int time = clockOf(classId).getAndIncrement();
+			recorded = write.setClock(time).setReplica(replica).build();
+			classWrites.add(recorded);
+		}
+		streamWrites(classId);
+		return recorded;
+	}
 
-	public void clearWrites() { _writes.clear(); }
+	/**
+	 * Names several writes after this server and consecutive clock
+	 * values, advancing the class's clock once for all of them.
+	 * @param classId the class the writes were applied to
+	 * @param writes the writes to be propagated, in order
+	 * @return the writes, as named
+	 */
+	public List<WriteRequest> recordWrites(String classId, List<WriteRequest.Builder> writes) {
+		return recordWrites(classId, writes, () -> true);
+	}
 
-	public Map<Integer, String> get_writes() { return _writes; }
+	/**
+	 * Names an enroll as recordWrite does, unless the class's enrollments
+	 * were closed meanwhile: a close clears the open flag before it is
+	 * recorded, so an enroll the flag still lets through is named before it.
+	 * @param class_ the class the student is enrolled in
+	 * @param write the enroll to be propagated
+	 * @return the write, as named, or null if the class was closed
+	 */
+	public WriteRequest recordEnroll(ClassDomain class_, WriteRequest.Builder write) {
+		List<WriteRequest> recorded = recordEnrolls(class_, List.of(write));
+		return recorded == null ? null : recorded.get(0);
+	}
 
-	public void addWrite(Integer time, String write){ _writes.put(time, write); }
+	/**
+	 * Names several enrolls as recordWrites does, unless the class's
+	 * enrollments were closed meanwhile, as in recordEnroll
+	 * @param class_ the class the students are enrolled in
+	 * @param writes the enrolls to be propagated, in order
+	 * @return the writes, as named, or null if the class was closed
+	 */
+	public List<WriteRequest> recordEnrolls(ClassDomain class_, List<WriteRequest.Builder> writes) {
+		return recordWrites(class_.getClassId(), writes, class_::isOpen);
+	}
+
+	private List<WriteRequest> recordWrites(String classId, List<WriteRequest.Builder> writes, BooleanSupplier allowed) {
+		List<WriteRequest> recorded = new ArrayList<>(writes.size());
+		if (writes.isEmpty()) {
+			return recorded;
+		}
+		ClassWrites classWrites = get_writes(classId);
+		synchronized (classWrites) {
+			// checked under the lock that orders the writes
+			if (!allowed.getAsBoolean()) {
+				return null;
+			}
+			int time = clockOf(classId).getAndAdd(writes.size());
+			for (WriteRequest.Builder write : writes) {
+				WriteRequest named = write.setClock(time).setReplica(replica).build();
+				classWrites.add(named);
+				recorded.add(named);
+				time++;
+			}
+		}
+		streamWrites(classId);
+		return recorded;
+	}
+
+	/**
+	 * Moves the clock of every class past the writes of this server the
+	 * other replicas have. A write is passed on before it is on disk, so
+	 * the latest ones may be missing from the log after a crash; called
+	 * before this server accepts writes, so none is named like one the
+	 * others have already (and would take for a copy of it).
+	 * A replica unreachable now is caught up with by its next exchange.
+	 * @return the number of other replicas that answered
+	 */
+	public int syncClocks() {
+		PropagateStateRequest request = PropagateStateRequest.newBuilder().setReplica(replica).build();
+		int answered = 0;
+		for (Peer peer : _peers.values()) {
+			for (int tries = 1; tries <= 3; tries++) {
+				try {
+					PropagateStateResponse response =
+							peer.stub.withDeadlineAfter(PROPAGATE_DEADLINE, TimeUnit.MILLISECONDS).propagateState(request);
+					response.getClocksMap().forEach((classId, clock) ->
+							clockOf(classId).accumulateAndGet(clock + 1, Math::max));
+					answered++;
+					break;
+				}
+				catch (StatusRuntimeException e) {
+					debug("Asking " + peer.target + " for this server's clocks failed with status "
+							+ e.getStatus().getCode() + ". " + tries + " out of 3 tries completed.");
+				}
+			}
+		}
+		return answered;
+	}
+
+	/**
+	 * @param peer another replica
+	 * @return for each class, the clock of the latest write of the replica applied here
+	 */
+	public Map<String, Integer> getClocksOf(String peer) {
+		Map<String, Integer> clocks = new HashMap<>();
+		_writes.forEach((classId, classWrites) -> {
+			Integer clock = classWrites.getVersionVector().get(peer);
+			if (clock != null) {
+				clocks.put(classId, clock);
+			}
+		});
+		return clocks;
+	}
+
+	/**
+	 * Waits until a majority of the replicas, this one included, has a
+	 * write of this server (and so every earlier one). The write goes out
+	 * on the replication streams batched with the others recorded
+	 * meanwhile, and each acknowledgement answers all of their requests.
+	 * @param classId the class written
+	 * @param write the write, as recorded
+	 * @return true if a majority had the write within QUORUM_TIMEOUT
+	 */
+	public boolean awaitQuorum(String classId, WriteRequest write) {
+		Set<String> peers = _peers.keySet();
+		try {
+			return get_writes(classId).awaitAcknowledged(write, peers, (peers.size() + 1) / 2, QUORUM_TIMEOUT);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void streamWrites(String classId) {
+		for (Peer peer : _peers.values()) {
+			peer.stream.wake(classId);
+		}
+	}
+
+	/* * * * * * * * * * * * * * * * * * * * * STALENESS * * * * * * * * * * * * * * * * * * * */
+
+	/**
+	 * @param class_ the class
+	 * @return how old this server's copy of the class may be, in
+	 * milliseconds: 0 if it is the primary holding the read lease
+	 */
+	public long getStaleness(ClassDomain class_) {
+		if (leaseHolder && _lease.isHeld(_peers.keySet())) {
+			return 0;
+		}
+		return _lag.getStaleness(class_.getClassId(), _peers.keySet());
+	}
+
+	/**
+	 * Checks a read against how old it may be. When this server's copy
+	 * of the class is older, it starts catching up right away with the
+	 * replicas it is too far behind, so later reads can be served here.
+	 * @param class_ the class read
+	 * @param maxStalenessMs how old the read may be, in milliseconds (none if 0)
+	 * @return how old the class is, if older than asked, or -1 if it may be served
+	 */
+	public long checkStaleness(ClassDomain class_, long maxStalenessMs) {
+		if (maxStalenessMs <= 0) {
+			return -1;
+		}
+		long staleness = getStaleness(class_);
+		if (staleness <= maxStalenessMs) {
+			return -1;
+		}
+		if (isDebug()) {
+			StringBuilder behind = new StringBuilder();
+			for (String peer : _peers.keySet()) {
+				behind.append(", ").append(_lag.getBehind(class_.getClassId(), peer)).append(" behind ").append(peer);
+			}
+			debug("Class " + class_.getClassId() + " may be " + (staleness == Long.MAX_VALUE ? "any time" : staleness + " ms")
+					+ " old, more than the " + maxStalenessMs + " ms asked (writes at the latest exchanges" + behind
+					+ "): catching up.");
+		}
+		catchUp(class_, maxStalenessMs);
+		return staleness;
+	}
+
+	/**
+	 * @return a replica with the latest state of the classes (the primary,
+	 * while this server is bound by its promise of the read lease), or an
+	 * empty string if none is known
+	 */
+	public String getFresherReplica() {
+		String holder = _lease.getHolder();
+		return holder == null ? "" : holder;
+	}
+
+	/**
+	 * Exchanges a class, in the background, with every other replica
+	 * this server's copy may be older than allowed behind, and that it
+	 * isn't being exchanged with already
+	 * @param class_ the class
+	 * @param maxStalenessMs how old the copy may be, in milliseconds (with every replica if 0)
+	 */
+	public void catchUp(ClassDomain class_, long maxStalenessMs) {
+		String classId = class_.getClassId();
+		for (Peer peer : _peers.values()) {
+			if (maxStalenessMs > 0 && _lag.getStaleness(classId, List.of(peer.target)) <= maxStalenessMs) {
+				continue;
+			}
+			if (peer.inFlight.add(classId)) {
+				new Exchange(peer, class_, () -> peer.inFlight.remove(classId)).send();
+			}
+		}
+	}
+
+	/**
+	 * Keeps how far behind another replica a class is, as told by its
+	 * answer on the replication stream: its version vector once it got
+	 * the message. When this server has every write of the replica it
+	 * counts, the class misses none the replica made before the message
+	 * was sent, as after a gossip exchange; so a replica that writes
+	 * keeps its lag current between gossip rounds.
+	 * @param classId the class written
+	 * @param peer the other replica's address
+	 * @param versionVector the other replica's version vector, as answered
+	 * @param sentAt when the message was sent, in milliseconds
+	 */
+	public void caughtUpOnStream(String classId, String peer, Map<String, Integer> versionVector, long sentAt) {
+		int theirs = versionVector.getOrDefault(peer, -1);
+		if (get_writes(classId).getVersionVector().getOrDefault(peer, -1) >= theirs) {
+			_lag.caughtUp(classId, peer, sentAt, 0);
+		}
+	}
+
+	/* * * * * * * * * * * * * * * * * * * * * READ LEASE * * * * * * * * * * * * * * * * * * * */
+
+	/**
+	 * Starts asking the other replicas, in the background, for the read
+	 * lease: done by the primary only
+	 */
+	public void startReadLease() {
+		leaseHolder = true;
+		Timer timer = new Timer("read lease", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				renewReadLease();
+			}
+		}, 0, ReadLease.RENEW_PERIOD);
+	}
+
+	private void renewReadLease() {
+		for (Peer peer : _peers.values()) {
+			peer.stream.renewLease();
+		}
+		reclaimSeats();
+	}
+
+	/**
+	 * Notes another replica answered this server
+	 * @param peer the replica's address
+	 */
+	public void heardFrom(String peer) {
+		Peer known = _peers.get(peer);
+		if (known != null) {
+			known.heardAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return the other replicas that answered within RECLAIM_AFTER, sorted
+	 */
+	private List<String> answeringPeers() {
+		long now = System.currentTimeMillis();
+		List<String> answering = new ArrayList<>();
+		for (Peer peer : _peers.values()) {
+			if (now - peer.heardAt < RECLAIM_AFTER) {
+				answering.add(peer.target);
+			}
+		}
+		Collections.sort(answering);
+		return answering;
+	}
+
+	/**
+	 * Makes sure this server holds the read lease, asking for it right
+	 * away if it doesn't: while it does, it has every write another
+	 * replica answered, and its classes' latest state.
+	 * The replicas are looked up in the naming server on every call,
+	 * not taken from the last gossip round: a replica registers before
+	 * it serves, so any that answered a write before the read started
+	 * is among them, and must have promised too.
+	 * @return true if this server (the primary) holds the lease
+	 */
+	public boolean awaitReadLease() {
+		if (!leaseHolder) {
+			return false;
+		}
+		Set<String> replicas = lookupPeers();
+		if (replicas == null) {
+			return false;
+		}
+		if (!_peers.keySet().containsAll(replicas)) {
+			// connects to the new ones, so they are asked for the lease
+			refreshPeers();
+		}
+		if (_lease.isHeld(replicas)) {
+			return true;
+		}
+		renewReadLease();
+		try {
+			// a round trip on the streams, well within the client's deadline
+			return _lease.awaitHeld(replicas, ReadLease.RENEW_PERIOD);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Keeps another replica's promise of the read lease
+	 * @param peer the replica that promised
+	 * @param asked when this server asked for it, in milliseconds
+	 */
+	public void leasePromised(String peer, long asked) {
+		_lease.promised(peer, asked);
+	}
+
+	/**
+	 * Promises the read lease to the primary, if it already has every
+	 * write this server answered (or holds the lease already). Being
+	 * asked also lets this server admit students to its seats for
+	 * another ESCROW_DURATION: the primary splits them again only once
+	 * it stopped asking for longer.
+	 * @param holder the primary's address
+	 * @param duration how long the promise lasts, in milliseconds
+	 * @return true if promised
+	 */
+	public boolean promiseReadLease(String holder, int duration) {
+		registry.extendEscrow(System.currentTimeMillis() + ESCROW_DURATION);
+		boolean covered = true;
+		for (ClassWrites classWrites : _writes.values()) {
+			covered &= classWrites.isAcknowledged(holder, replica);
+		}
+		boolean promised = _lease.promise(holder, duration, covered);
+		if (!promised) {
+			debug("Refused the read lease to " + holder + ": it is missing writes answered here.");
+		}
+		return promised;
+	}
+
+	/**
+	 * Waits, while this server is bound by its promise of the read lease,
+	 * until the primary has a write of this server, or until the promise
+	 * ends. The write goes out on the replication stream to the primary.
+	 * @param classId the class written
+	 * @param write the write, as recorded
+	 * @return false if the primary didn't have the write within
+	 * QUORUM_TIMEOUT and the promise still holds
+	 */
+	public boolean awaitLeaseHolder(String classId, WriteRequest write) {
+		long deadline = System.currentTimeMillis() + QUORUM_TIMEOUT;
+		try {
+			String holder;
+			while ((holder = _lease.getHolder()) != null && !holder.equals(replica)) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				// until the promise ends, at the latest: it may have been renewed meanwhile
+				if (get_writes(classId).awaitAcknowledged(write, List.of(holder), 1,
+						Math.max(Math.min(_lease.getRemaining(), left), 1))) {
+					return true;
+				}
+			}
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Constructs the next message of a replication stream: this
+	 * server's writes of a class the other replica isn't known to
+	 * have and weren't sent on the stream yet, and this server's
+	 * version vector.
+	 * @param classId the class written
+	 * @param peer the other replica
+	 * @param sent the clock of the latest write sent on the stream
+	 * @param max the most writes to send
+	 * @return the built message, or null if there is nothing to send
+	 */
+	public PropagateStateRequest buildStreamRequest(String classId, String peer, int sent, int max) {
+		PropagateStateRequest.Builder requestBuilder = PropagateStateRequest.newBuilder();
+		requestBuilder.setClassId(classId);
+		requestBuilder.setReplica(replica);
+
+		ClassWrites classWrites = get_writes(classId);
+		synchronized (classWrites) {
+			for (WriteRequest write : classWrites.missingFrom(peer)) {
+				if (requestBuilder.getWritesCount() == max) {
+					break;
+				}
+				if (write.getReplica().equals(replica) && write.getClock() > sent) {
+					requestBuilder.addWrites(write);
+				}
+			}
+			requestBuilder.putAllVersionVector(classWrites.getVersionVector());
+			// the writes sent move the other replica's vector past earlier ones it may never get
+			if (requestBuilder.getWritesCount() > 0 && classWrites.hasDropped(peer)) {
+				requestBuilder.setEnrollments(ByteString.copyFrom(classWrites.getEnrollments().toByteArray()));
+			}
+		}
+		if (requestBuilder.getWritesCount() == 0) {
+			return null;
+		}
+		return requestBuilder.build();
+	}
+
+	/**
+	 * Promotes the waitlisted students a freed seat can take, and
+	 * records each promotion as an enrollment write, so the other
+	 * replicas learn about it like any other enrollment.
+	 * @param class_ the class that may have free seats
+	 */
+	public void promoteWaitlisted(ClassDomain class_) {
+		WriteAheadLog log = WriteAheadLog.getInstance();
+		long logged = 0;
+		// recorded under the class's lock, so a close is recorded after them
+		synchronized (class_) {
+			for (Map.Entry<String, String> student : class_.promoteWaitlisted().entrySet()) {
+				debug("Promoted waitlisted student: " + student.getKey());
+				logged = log.logWrite(class_.getClassId(),
+						recordWrite(class_.getClassId(), Writes.enroll(student.getKey(), student.getValue())));
+			}
+		}
+		log.awaitDurable(logged);
+	}
 
 	/**
 	 * @return true if the debug mode is active, otherwise false
@@ -76,16 +965,15 @@ public class ClassServerFrontend {
 			System.err.println(debugMessage);
 	}
 
-	private ClassServerFrontend(String target, boolean debug) {
-		channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
-		stub = ClassServerServiceGrpc.newBlockingStub(channel);
-		this.target = target;
+	private ClassServerFrontend(String replica, NamingServerFrontend namingServerFrontend, boolean debug) {
+		this.replica = replica;
+		this.namingServerFrontend = namingServerFrontend;
 		this.debug = debug;
 	}
 
-  	public static ClassServerFrontend getInstance(String target, boolean debug) {
+  	public static ClassServerFrontend getInstance(String replica, NamingServerFrontend namingServerFrontend, boolean debug) {
 		if (instance == null) {
-		  instance = new ClassServerFrontend(target, debug);
+		  instance = new ClassServerFrontend(replica, namingServerFrontend, debug);
 		}
 		return instance;
 	}
@@ -107,99 +995,179 @@ public class ClassServerFrontend {
 
 	/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 
-	/**
-	 * Constructs and returns a ClassState message, containing
-	 * the class's current characteristics.
-	 * @return the built message
-	 */
-	public ClassState buildClassState() {
-		ClassState.Builder classStateBuilder = ClassState.newBuilder();
-		synchronized (class_) {
-			Student.Builder studentBuilder = Student.newBuilder();
-			classStateBuilder.setCapacity(class_.getCapacity());
-			classStateBuilder.setOpenEnrollments(class_.isOpen());
-			class_.getStudentsDiscarded().forEach(
-					(id, name) ->
-							classStateBuilder.addDiscarded(
-									studentBuilder.setStudentId(id).setStudentName(name).build()));
-			class_.getStudentsEnrolled().forEach(
-					(id, name) ->
-							classStateBuilder.addEnrolled(
-									studentBuilder.setStudentId(id).setStudentName(name).build()));
-		}
-		return classStateBuilder.build();
-	}
-
 	/**
 	 * Constructs and returns a PropagateStateRequest message,
-	 * which contains the class state, as well as the writes
-	 * performed since the last propagate.
+	 * which contains the writes the other replica isn't known to
+	 * have, from any replica, this server's version vector and,
+	 * if the other replica's state was acknowledged before, the
+	 * students changed here since then, so the other replica
+	 * only answers with what changed. The class state is only
+	 * sent along with an Open write, the one write the other
+	 * replica needs it for.
+	 * @param class_ the class whose state is propagated
+	 * @param peer the other replica
+	 * @param ack the other replica's acknowledged state, or null if none
+	 * @param ownChanges this server's changes since the acknowledged state
 	 * @return the built message
 	 */
-	public PropagateStateRequest buildPropagateStateRequest() {
+	private PropagateStateRequest buildPropagateStateRequest(ClassDomain class_, Peer peer, Ack ack, ClassChanges ownChanges) {
 		PropagateStateRequest.Builder requestBuilder = PropagateStateRequest.newBuilder();
+		requestBuilder.setClassId(class_.getClassId());
+		requestBuilder.setReplica(replica);
 
-		ClassState classState = buildClassState();
-		requestBuilder.setClassState(classState);
-
-		Set<Integer> times = _writes.keySet();
-		for (Integer time : times) {
-			String write = _writes.get(time);
-			WriteRequest writeRequest = WriteRequest.newBuilder().setWrite(write).setClock(time).build();
-			requestBuilder.addWrites(writeRequest);
+		ClassWrites classWrites = get_writes(class_.getClassId());
+		synchronized (classWrites) {
+			requestBuilder.addAllWrites(classWrites.missingFrom(peer.target));
+			requestBuilder.putAllVersionVector(classWrites.getVersionVector());
+			if (classWrites.hasDropped(peer.target)) {
+				requestBuilder.setEnrollments(ByteString.copyFrom(classWrites.getEnrollments().toByteArray()));
+			}
+		}
+		if (ownChanges != null) {
+			requestBuilder.setAckedEpoch(ack.peerEpoch);
+			requestBuilder.setAckedVersion(ack.peerVersion);
+			ownChanges.getEnrolledList().forEach(student -> requestBuilder.addChanged(student.getStudentId()));
+			ownChanges.getDiscardedList().forEach(student -> requestBuilder.addChanged(student.getStudentId()));
+			requestBuilder.addAllChanged(ownChanges.getRemovedList());
+		}
+		// a large class is compared bucket by bucket, rather than received whole
+		else if (class_.getCurrentSnapshot().getStudentCount() >= ClassSnapshot.DIGEST_BUCKETS) {
+			for (long hash : class_.getDigest()) {
+				requestBuilder.addDigest(hash);
+			}
 		}
+		requestBuilder.setQuota(class_.getQuota());
+		requestBuilder.setWaitlisted(class_.getWaitlisted());
 		return requestBuilder.build();
 	}
 
 	/**
+	 * One class's exchange with one replica, sent asynchronously.
 	 * In order to strengthen our program, and to antecipate
-	 * congestions in the other server, we try to connect with
-	 * it 3 times. We will only fail after those attempts.
-	 * @param request the request message we want to send
-	 * @return null if we not successful, response otherwise
-	 */
-	public PropagateStateResponse attemptPropagateState(PropagateStateRequest request){
-		PropagateStateResponse response = null;
-		// TODO more than one other server
-		for(int tries = 1; tries <= 3; tries++){
-			try{
-				//send request message and receive response
-				debug("About to send a propagateState request. "); //TODO which server
-				response = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).propagateState(request);
-				debug("Received propagateState response with status: " + response.getCode());
-
-				// if the server is inactive, give another chance
-				if (response.getCode().equals(ResponseCode.INACTIVE_SERVER)){
-					debug("Inactive Server. " + tries + " out of 3 tries completed.");
-					continue;
-				}
-				// successful request
-				else{
-					break;
+	 * congestions in the other replica, a failed exchange is sent
+	 * again, up to 3 tries in all, from the thread that saw it fail.
+	 */
+	private final class Exchange implements StreamObserver<PropagateStateResponse> {
+		private final Peer peer;
+		private final ClassDomain class_;
+		private final Runnable done;
+
+		private int tries = 0;
+
+		// what the request in flight was built from
+		private Ack ack;
+		private ClassChanges ownChanges;
+		private Map<String, Integer> sentVersionVector;
+
+		private PropagateStateResponse response;
+
+		// when the request in flight was sent
+		private long sentAt;
+
+		Exchange(Peer peer, ClassDomain class_, Runnable done) {
+			this.peer = peer;
+			this.class_ = class_;
+			this.done = done;
+		}
+
+		void send() {
+			tries++;
+			response = null;
+
+			//what changed here since the other replica's state was last copied
+			ack = peer.acks.get(class_.getClassId());
+			ownChanges = null;
+			if (ack != null) {
+				ownChanges = class_.getChangesSince(class_.getEpoch(), ack.localVersion, true);
+				// no longer known: fall back to the full state
+				if (ownChanges.getFullState()) {
+					ownChanges = null;
 				}
 			}
-			catch(StatusRuntimeException e){
-				// timeout
-				if(Status.DEADLINE_EXCEEDED.getCode() == e.getStatus().getCode()){
-					debug("Timeout. " + tries + " out of 3 tries completed.");
-				}
-				//Server unavailble
-				else if(Status.UNAVAILABLE.getCode() == e.getStatus().getCode()){
-					debug("Server unabailable. "+ tries + " out of 3 tries completed.");
+
+			//build request
+			PropagateStateRequest request = buildPropagateStateRequest(class_, peer, ack, ownChanges);
+			sentVersionVector = request.getVersionVectorMap();
+			debug("About to send a propagateState request for class " + class_.getClassId() + " to " + peer.target + ".");
+			sentAt = System.currentTimeMillis();
+			peer.asyncStub.withDeadlineAfter(PROPAGATE_DEADLINE, TimeUnit.MILLISECONDS).propagateState(request, this);
+		}
+
+		@Override
+		public void onNext(PropagateStateResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			Status status = Status.fromThrowable(throwable);
+			// timeout
+			if(Status.DEADLINE_EXCEEDED.getCode() == status.getCode()){
+				debug("Timeout from " + peer.target + ". " + tries + " out of 3 tries completed.");
+			}
+			//Server unavailble
+			else if(Status.UNAVAILABLE.getCode() == status.getCode()){
+				debug("Server " + peer.target + " unabailable. " + tries + " out of 3 tries completed.");
+			}
+			//other exceptions
+			else{
+				debug("Caught exception with description: " + status.getDescription());
+			}
+			retry();
+		}
+
+		@Override
+		public void onCompleted() {
+			debug("Received propagateState response from " + peer.target + " with status: " + response.getCode());
+			System.out.println(Stringify.format(response.getCode()));
+			// if the server is inactive, give another chance
+			if (response.getCode().equals(ResponseCode.INACTIVE_SERVER)) {
+				debug("Inactive Server. " + tries + " out of 3 tries completed.");
+				retry();
+				return;
+			}
+			if (!response.getCode().equals(ResponseCode.OK)) {
+				done.run();
+				return;
+			}
+			try {
+				if (receive(this)) {
+					done.run();
 				}
-				//other exceptions
-				else{
-					debug("Caught exception with description: " + e.getStatus().getDescription());
+				else {
+					debug("Class " + class_.getClassId() + " changed while exchanged with " + peer.target + ". "
+							+ tries + " out of 3 tries completed.");
+					retry();
 				}
 			}
+			catch (InvalidStudentException | InvalidCapacityException e) {
+				debug("Refused an invalid state from " + peer.target + ": " + e.getMessage());
+				done.run();
+			}
+		}
+
+		private void retry() {
+			if (tries < 3) {
+				send();
+			}
+			else {
+				debug("PropagateState to " + peer.target + " failed.");
+				done.run();
+			}
 		}
-		return response;
 	}
 
 	/**
-	 * Sends the propagateState request and receives the
-	 * propagateState response from server
-	 * @param flag TIMER or COMMAND
+	 * Sends the propagateState request to every other replica, for
+	 * every class hosted by this server, all at once, and handles
+	 * each response as it arrives, so a slow replica only delays
+	 * its own exchanges. The replicas are looked up again first, so
+	 * new ones join the gossip. An exchange still under way from
+	 * the previous round isn't sent again.
+	 * Rounds are started one at a time, but a command waits for its
+	 * round without holding anything, so the timer's rounds go on.
+	 * @param flag TIMER or COMMAND; only a command waits for the
+	 *             replicas to answer (or for their exchanges to fail)
 	 * @return True if successful
 	 *
 	 */
@@ -207,48 +1175,259 @@ public class ClassServerFrontend {
 		if(!isActiveGossip() && flag == TIMER){
 			return false;
 		}
-		debug("########## Start Propagate ##########");
-		//build request
-		PropagateStateRequest request = buildPropagateStateRequest();
-		debug("About to send propagateState request");
+		CountDownLatch round = startRound();
+		if (flag == COMMAND) {
+			try {
+				round.await(3 * PROPAGATE_DEADLINE + 1000, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return true;
+	}
 
-		PropagateStateResponse response = attemptPropagateState(request);
-		if(response == null){
-			debug("PropagateState failed.");
+	/**
+	 * Sends the exchanges of a gossip round
+	 * @return counted down as each exchange ends
+	 */
+	private synchronized CountDownLatch startRound() {
+		debug("########## Start Propagate ##########");
+		refreshPeers();
+		List<Peer> peers = new ArrayList<>();
+		List<ClassDomain> classes = new ArrayList<>();
+		for (Peer peer : _peers.values()) {
+			for (ClassDomain class_ : registry.getClasses()) {
+				if (peer.inFlight.add(class_.getClassId())) {
+					peers.add(peer);
+					classes.add(class_);
+				}
+			}
 		}
-		else{
-			System.out.println(Stringify.format(response.getCode()));
+
+		CountDownLatch round = new CountDownLatch(peers.size());
+		for (int e = 0; e < peers.size(); e++) {
+			Peer peer = peers.get(e);
+			String classId = classes.get(e).getClassId();
+			new Exchange(peer, classes.get(e), () -> {
+				peer.inFlight.remove(classId);
+				round.countDown();
+				if (round.getCount() == 0) {
+					debug("########## Finish Propagate ##########");
+				}
+			}).send();
 		}
+		return round;
+	}
+
+	/**
+	 * Applies another replica's response to an exchange of a class.
+	 * A full state is only copied if the class has no writes the
+	 * replica's state may lack, received from other replicas (or
+	 * accepted here) while the exchange was under way; otherwise the
+	 * exchange has to be sent again, with those writes.
+	 * @param exchange the exchange, with the response received
+	 * @return false if the exchange has to be sent again
+	 */
+	private boolean receive(Exchange exchange) {
+		Peer peer = exchange.peer;
+		ClassDomain class_ = exchange.class_;
+		Ack ack = exchange.ack;
+		ClassChanges ownChanges = exchange.ownChanges;
+		PropagateStateResponse response = exchange.response;
+		int behind = 0; // writes received that weren't here
 
-		ClassState classState = response.getClassState();
 		validateClassState(response);
+		ClassChanges changes = response.getChanges();
+		long localVersion;
 		synchronized (class_) {
-			updateState(response);
+			if (ownChanges != null && response.hasChanges() && changes.getNotModified()) {
+				localVersion = ownChanges.getVersion();
+			}
+			else if (ownChanges != null && response.hasChanges() && !changes.getFullState()) {
+				debug("Applying " + (changes.getEnrolledCount() + changes.getDiscardedCount() + changes.getRemovedCount())
+						+ " changed students of class " + class_.getClassId() + ".");
+				class_.applyChanges(changes);
+				// later changes made here are in the history after this version
+				localVersion = ownChanges.getVersion();
+			}
+			else if (!get_writes(class_.getClassId()).getVersionVector().equals(exchange.sentVersionVector)) {
+				return false;
+			}
+			else if (response.hasChanges() && !changes.getFullState()) {
+				// the answer to our digest
+				debug("Applying " + changes.getBucketsCount() + " differing buckets ("
+						+ (changes.getEnrolledCount() + changes.getDiscardedCount()) + " students) of class "
+						+ class_.getClassId() + ".");
+				class_.applyBuckets(changes);
+				localVersion = class_.getVersion();
+			}
+			else {
+				updateState(class_, response);
+				localVersion = class_.getVersion();
+			}
+			// the class now has every write the other replica had
+			ClassWrites writes = get_writes(class_.getClassId());
+			for (WriteRequest write : response.getWritesList()) {
+				if (!writes.has(write)) {
+					behind++;
+				}
+			}
+			receiveWrites(class_.getClassId(), response.getWritesList());
+			if (response.getEnrollments().isEmpty()) {
+				writes.advance(response.getVersionVectorMap());
+			}
+			else {
+				receiveEnrollments(class_.getClassId(), peer.target, response.getEnrollments(),
+						response.getVersionVectorMap());
+			}
+			// and follows its enrollment set, should the state received miss a write made here since
+			reconcile(class_);
+			rebalance(class_, peer.target, response.getQuota(), response.getWaitlisted());
+		}
+		acknowledge(class_.getClassId(), peer.target, response.getVersionVectorMap());
+		_lag.caughtUp(class_.getClassId(), peer.target, exchange.sentAt, behind);
+		heardFrom(peer.target);
+		debug("Caught up with " + peer.target + " on class " + class_.getClassId() + ", " + behind + " writes behind.");
+		// an older server doesn't send its version: exchange full states with it
+		if (response.hasChanges()) {
+			peer.acks.put(class_.getClassId(), new Ack(changes.getEpoch(), changes.getVersion(), localVersion));
 		}
-		clearWrites();
-		debug("########## Finish Propagate ##########");
 
+		// the merged state may have freed seats (or grown the class)
+		promoteWaitlisted(class_);
 		return true;
 	}
 
 
+	/**
+	 * Copies the state of every class from another replica,
+	 * streamed in checksummed chunks, so a new replica doesn't
+	 * need a single huge message per class. Nothing is installed
+	 * unless the whole stream arrives intact. As with the other
+	 * requests, we try 3 times, before moving on to the next
+	 * replica.
+	 * @return true if the snapshot was installed
+	 */
+	public boolean fetchSnapshot() {
+		FetchSnapshotRequest request = FetchSnapshotRequest.newBuilder()
+				.setChunkSize(SnapshotStreamer.DEFAULT_CHUNK_SIZE).build();
+		for (Peer peer : _peers.values()) {
+			for(int tries = 1; tries <= 3; tries++){
+				try{
+					debug("About to send a fetchSnapshot request to " + peer.target + ".");
+					Iterator<FetchSnapshotResponse> chunks =
+							peer.stub.withDeadlineAfter(SNAPSHOT_DEADLINE, TimeUnit.MILLISECONDS).fetchSnapshot(request);
+					if (installSnapshot(peer, chunks)) {
+						return true;
+					}
+					debug("Inactive Server. " + tries + " out of 3 tries completed.");
+				}
+				catch(StatusRuntimeException e){
+					debug("FetchSnapshot failed with status " + e.getStatus().getCode() + ". " + tries + " out of 3 tries completed.");
+				}
+				catch(IOException e){
+					debug(e.getMessage() + " " + tries + " out of 3 tries completed.");
+				}
+				catch(InvalidStudentException | InvalidCapacityException e){
+					// the same state would arrive again
+					debug("Refused an invalid snapshot from " + peer.target + ": " + e.getMessage());
+					break;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Receives the chunks of a snapshot and, once every class
+	 * has arrived and matches its checksum, installs them.
+	 * @param peer the replica sending the snapshot
+	 * @param chunks the streamed chunks, the chunks of each class in order
+	 * @return false if the other replica is inactive
+	 * @throws IOException if the stream was incomplete or corrupted
+	 */
+	private boolean installSnapshot(Peer peer, Iterator<FetchSnapshotResponse> chunks) throws IOException {
+		List<FetchSnapshotResponse> heads = new ArrayList<>(); // first chunk of each class
+		List<Roster[]> rosters = new ArrayList<>();
+		List<byte[]> enrollments = new ArrayList<>(); // the enrollment set of each class
+		String classId = null; // the class being received, null between classes
+		Roster enrolled = null, discarded = null;
+		CRC32 checksum = new CRC32();
+		while (chunks.hasNext()) {
+			FetchSnapshotResponse response = chunks.next();
+			if (!response.getCode().equals(ResponseCode.OK)) {
+				return false;
+			}
+			if (classId == null) {
+				classId = response.getClassId();
+				enrolled = new Roster();
+				discarded = new Roster();
+				checksum.reset();
+				heads.add(response);
+				rosters.add(new Roster[] { enrolled, discarded });
+			}
+			else if (!classId.equals(response.getClassId())) {
+				throw new IOException("Snapshot of class " + classId + " interrupted by class " + response.getClassId() + ".");
+			}
+			ClassStatePage chunk = response.getChunk();
+			SnapshotStreamer.update(checksum, chunk);
+			for (Student student : chunk.getEnrolledList()) {
+				_validate.validate_enrollment(student.getStudentId(), student.getStudentName());
+				enrolled.put(student.getStudentId(), student.getStudentName());
+			}
+			for (Student student : chunk.getDiscardedList()) {
+				_validate.validate_enrollment(student.getStudentId(), student.getStudentName());
+				discarded.put(student.getStudentId(), student.getStudentName());
+			}
+			if (response.getLastChunk()) {
+				checksum.update(response.getEnrollments().toByteArray());
+				enrollments.add(response.getEnrollments().toByteArray());
+				if (response.getChecksum() != (int) checksum.getValue()) {
+					throw new IOException("Snapshot of class " + classId + " failed its checksum.");
+				}
+				classId = null;
+			}
+		}
+		if (classId != null) {
+			throw new IOException("Snapshot ended in the middle of class " + classId + ".");
+		}
+
+		for (int c = 0; c < heads.size(); c++) {
+			FetchSnapshotResponse head = heads.get(c);
+			ClassStatePage chunk = head.getChunk();
+			_validate.validate_capacity(chunk.getCapacity());
+			ClassDomain class_ = registry.getOrCreateClassDomain(head.getClassId());
+			synchronized (class_) {
+				class_.replaceState(chunk.getCapacity(), chunk.getOpenEnrollments(), rosters.get(c)[0], rosters.get(c)[1]);
+				// the other replica's set, dots and tombstones included: later writes are ordered as there.
+				// Writes received from now on may be in it already: the set takes them again harmlessly
+				get_writes(head.getClassId()).install(enrollments.get(c), head.getVersionVectorMap());
+				peer.acks.put(head.getClassId(), new Ack(chunk.getEpoch(), chunk.getVersion(), class_.getVersion()));
+			}
+			head.getVersionVectorMap().forEach((origin, clock) -> clockOf(head.getClassId()).accumulateAndGet(clock + 1, Math::max));
+			get_writes(head.getClassId()).acknowledge(peer.target, head.getVersionVectorMap());
+			debug("Installed snapshot of class " + head.getClassId() + ": " + class_);
+		}
+		return true;
+	}
+
 	/**
 	 * Changes the class's state to the one given by the response.
+	 * @param class_ the class to be updated
 	 * @param response the response containing the class's state.
 	 */
-	public void updateState(PropagateStateResponse response){
-		class_.setOpen(response.getClassState().getOpenEnrollments());
-		class_.setCapacity(response.getClassState().getCapacity());
-
-		ConcurrentHashMap<String,String> enrolledStudents = new ConcurrentHashMap<>();
+	public void updateState(ClassDomain class_, PropagateStateResponse response){
+		Roster enrolledStudents = new Roster();
 		response.getClassState().getEnrolledList()
 				.forEach(student -> enrolledStudents.put(student.getStudentId(), student.getStudentName()));
-		class_.setStudentsEnrolled(enrolledStudents);
 
-		ConcurrentHashMap<String,String> discardedStudents = new ConcurrentHashMap<>();
+		Roster discardedStudents = new Roster();
 		response.getClassState().getDiscardedList()
 				.forEach(student -> discardedStudents.put(student.getStudentId(), student.getStudentName()));
-		class_.setStudentsDiscarded(discardedStudents);
+
+		class_.replaceState(response.getClassState().getCapacity(), response.getClassState().getOpenEnrollments(),
+				enrolledStudents, discardedStudents);
 
 		debug("########## ClassState ##########");
 		debug(class_.toString());
@@ -264,11 +1443,28 @@ public class ClassServerFrontend {
 	public void validateClassState(PropagateStateResponse response){
 		_validate.validate_capacity(response.getClassState().getCapacity());
 
+		_validate.validate_capacity(response.getChanges().getCapacity());
+
+		response.getChanges().getDiscardedList()
+				.forEach(student -> _validate.validate_enrollment(student.getStudentId(), student.getStudentName()));
+
+		response.getChanges().getEnrolledList()
+				.forEach(student -> _validate.validate_enrollment(student.getStudentId(), student.getStudentName()));
+
 		response.getClassState().getDiscardedList()
 				.forEach(student -> _validate.validate_enrollment(student.getStudentId(), student.getStudentName()));
 
 		response.getClassState().getEnrolledList()
 				.forEach(student -> _validate.validate_enrollment(student.getStudentId(), student.getStudentName()));
+
+		for (WriteRequest write : response.getWritesList()) {
+			if (write.hasEnroll() || write.hasCancel()) {
+				_validate.validate_enrollment(Writes.studentId(write), Writes.studentName(write));
+			}
+			else if (write.hasGrant()) {
+				_validate.validate_capacity(write.getGrant().getSeats());
+			}
+		}
 	}
 
 }
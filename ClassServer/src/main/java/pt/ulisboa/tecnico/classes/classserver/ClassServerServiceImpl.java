@@ -1,22 +1,20 @@
 package pt.ulisboa.tecnico.classes.classserver;
 
+import com.google.protobuf.ByteString;
 import io.grpc.Context;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.classes.Validate;
 import pt.ulisboa.tecnico.classes.classserver.exceptions.*;
-import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
-import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassChanges;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.*;
 import pt.ulisboa.tecnico.classes.exceptions.InvalidCapacityException;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidClassException;
 import pt.ulisboa.tecnico.classes.exceptions.InvalidStudentException;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static io.grpc.Status.INVALID_ARGUMENT;
 import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode.OK;
@@ -24,21 +22,20 @@ import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCod
 
 
 public class ClassServerServiceImpl extends ClassServerServiceGrpc.ClassServerServiceImplBase{
-	private ClassDomain class_ = ClassDomain.getInstance();
+	private final ClassRegistry registry = ClassRegistry.getInstance();
 
 	private boolean debug;
 
-	private String type;
-
 	private final Debug _debugger = new Debug();
 
 	private final Validate _validate = new Validate();
 
+	private final WriteAheadLog log = WriteAheadLog.getInstance();
+
 	private ClassServerFrontend classServerFrontend = ClassServerFrontend.getInstanceWithoutArgs();
 
-	public ClassServerServiceImpl(boolean debug, String type) {
+	public ClassServerServiceImpl(boolean debug) {
 		this.debug = debug;
-		this.type = type;
 	}
 
 	public boolean isDebug() {
@@ -53,8 +50,6 @@ public class ClassServerServiceImpl extends ClassServerServiceGrpc.ClassServerSe
 			System.err.println(debugMessage);
 	}
 
-	private String getType() { return type; }
-
 	/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
 
 	/**
@@ -72,37 +67,16 @@ public class ClassServerServiceImpl extends ClassServerServiceGrpc.ClassServerSe
 			responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Time's up!").asRuntimeException());
 			return;
 		}
+		if (request.getClassId().isEmpty()) {
+			// a replica restarting, asking how far its writes got
+			PropagateStateResponse response = PropagateStateResponse.newBuilder().setCode(OK)
+					.putAllClocks(classServerFrontend.getClocksOf(request.getReplica())).build();
+			responseObserver.onNext(response);
+			responseObserver.onCompleted();
+			return;
+		}
 		try{
-			ClassState classState;
-			synchronized (class_){
-				if(!class_.isActive()){
-					throw new InactiveServerException();
-				}
-
-				//validate arguments
-				validateClassState(request);
-
-				//updateState
-
-				List<String> canceled = unifyState(request);
-				for (String student : canceled) {
-					try {
-						class_.addNewDiscarded(student.split(":")[0], student.split(":")[1]);
-					}
-					catch (DuplicateCancellationException e) {
-						debug("This shouldn't be happening.");
-					}
-				}
-				classState = buildClassState();
-			}
-
-			classServerFrontend.clearWrites();
-
-			//build response
-			PropagateStateResponse.Builder responseBuilder = PropagateStateResponse.newBuilder();
-			responseBuilder.setCode(OK);
-			responseBuilder.setClassState(classState);
-			PropagateStateResponse response = responseBuilder.build();
+			PropagateStateResponse response = merge(request, true);
 
 			debug("About to send a propagateState response message with code: " + response.getCode());
 			responseObserver.onNext(response);
@@ -114,249 +88,191 @@ public class ClassServerServiceImpl extends ClassServerServiceGrpc.ClassServerSe
 			responseObserver.onCompleted();
 		} catch (InvalidCapacityException e) {
 			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
-		} catch (InvalidStudentException e) {
+		} catch (InvalidStudentException | InvalidClassException e) {
 			responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
 		}
 	}
 
-	/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
-
-	public void debug_ClassState(String classState){
-		if(isDebug()){
-			System.err.println("########## ClassState ##########");
-			System.err.println(classState);
-			System.err.println("################################");
-		}
-	}
-
 	/**
-	 * Changes the class's state to the one given by the request.
-	 * @param request the request containing the class's state.
+	 * Implements the rpc replicate, from the service
+	 * ClassServerService, defined in the Contract, by merging
+	 * the writes another replica pushes, as they arrive, and
+	 * acknowledging each message with this server's version
+	 * vector. Messages are handled one at a time, so a replica
+	 * pushing faster than they are merged is held back.
+	 *
+	 * @param responseObserver special interface for the server to call with its responses
+	 * @return the observer of the messages received
 	 */
-	public void updateState(PropagateStateRequest request){
-		class_.setOpen(request.getClassState().getOpenEnrollments());
-		class_.setCapacity(request.getClassState().getCapacity());
-
-		ConcurrentHashMap<String,String> enrolledStudents = new ConcurrentHashMap<>();
-		request.getClassState().getEnrolledList()
-				.forEach(student -> enrolledStudents.put(student.getStudentId(), student.getStudentName()));
-		class_.setStudentsEnrolled(enrolledStudents);
+	@Override
+	public StreamObserver<PropagateStateRequest> replicate(StreamObserver<PropagateStateResponse> responseObserver){
+		debug("Opened a replication stream.");
+		return new StreamObserver<>() {
+			@Override
+			public void onNext(PropagateStateRequest request) {
+				if (request.getClassId().isEmpty()) {
+					// the primary asking for its read lease
+					responseObserver.onNext(PropagateStateResponse.newBuilder().setCode(OK).setLeaseGranted(
+							classServerFrontend.promiseReadLease(request.getReplica(), request.getLeaseDuration())).build());
+					return;
+				}
+				debug("Received " + request.getWritesCount() + " writes of class " + request.getClassId()
+						+ " from " + request.getReplica() + ".");
+				PropagateStateResponse response;
+				try {
+					response = merge(request, false);
+				} catch (InactiveServerException e) {
+					response = PropagateStateResponse.newBuilder()
+							.setCode(INACTIVE_SERVER).setClassId(request.getClassId()).build();
+				} catch (InvalidCapacityException | InvalidStudentException | InvalidClassException e) {
+					responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+					return;
+				}
+				responseObserver.onNext(response);
+			}
 
-		ConcurrentHashMap<String,String> discardedStudents = new ConcurrentHashMap<>();
-		request.getClassState().getDiscardedList()
-				.forEach(student -> discardedStudents.put(student.getStudentId(), student.getStudentName()));
-		class_.setStudentsDiscarded(discardedStudents);
+			@Override
+			public void onError(Throwable throwable) {
+				debug("Replication stream closed: " + Status.fromThrowable(throwable).getCode());
+			}
 
-		debug("########## ClassState ##########");
-		debug(class_.toString());
-		debug("################################");
+			@Override
+			public void onCompleted() {
+				debug("Replication stream completed.");
+				responseObserver.onCompleted();
+			}
+		};
 	}
 
 	/**
-	 * Updates the class's state, by adding the (possible)
-	 * enrollments made. If the request contains an open or
-	 * close enrollments message, applies it directly.
-	 * Returns a list of the refused enrollments.
-	 * This function returns the same output whether I am the
-	 * primary or the secondary servers, therefore, the replicas
-	 * become consistent.
-	 * @param request the message containing the changes the
-	 *                other server applied
-	 * @return the enrollments which were cancelled for
-	 * overflowing the class
+	 * Merges the writes another replica sent into the class
+	 * @param request the message received
+	 * @param withState true to answer with the class's state (as changes
+	 *                  since the version the other replica holds, when
+	 *                  possible) and the writes it is missing, false to
+	 *                  just acknowledge the writes
+	 * @return the response, with this server's version vector
+	 * @throws InactiveServerException if the class is inactive
 	 */
-	public List<String> unifyState(PropagateStateRequest request) {
-		List<String> cancelled = new ArrayList<>();
-		List<String> toAdd = new ArrayList<>();
-
-		// number of writes arithmetic
-		int nRecWrites = request.getWritesCount();
-		int nMyWrites = classServerFrontend.get_writes().size();
-		int nMin = Math.min(nRecWrites, nMyWrites);
-
-		// clock arithmetic
-		int myClockMin = classServerFrontend.getClock() - nMyWrites;
-		int recClockMin = getMinClock(request);
-
-		/**
-		 * When I receive a propagateState message, the writes
-		 * are concurrent. This is because we clear them on
-		 * every rpc, ensuring everything that "happened before"
-		 * is secure.
-		 * Therefore, I need to order the operations. *Bayou*
-		 */
-
-		/* 1. If the request has an "open", copy the full
-			  class state in the request.
-		 */
-		for (int i = 0; i < nRecWrites; i++) {
-			if (request.getWrites(i).getWrite().split(":")[0].equals("open")) {
-				updateState(request);
-				return cancelled;
+	private PropagateStateResponse merge(PropagateStateRequest request, boolean withState) throws InactiveServerException {
+		ClassChanges changes = null;
+		List<WriteRequest> missing = null; // writes the other replica doesn't have
+		byte[] enrollments = null; // the enrollment set, if some of them were dropped already
+		Map<String, Integer> versionVector;
+		int quota, waitlisted;
+		long[] promoted = { 0 }; // sequence number of the latest promotion logged
+		ClassDomain class_ = registry.getOrCreateClassDomain(request.getClassId());
+		ClassWrites writes = classServerFrontend.get_writes(class_.getClassId());
+		synchronized (class_){
+			if(!class_.isActive()){
+				throw new InactiveServerException();
 			}
-		}
 
-		/* 2. Join all writes. If we find a "close" operation,
-			  no other writes for that server will be added.
-			  [The problem of close->open is mitigated in 1]
-		*/
-		boolean toClose = false;
-		boolean iClosed = false;
-		int n = 0;
-		for (int i = 0; i < nMin; i++) {
-			String myWrite = classServerFrontend.get_writes().get(i + myClockMin);
-			String otWrite = getWriteGivenTime(request, i + recClockMin);
-
-			if (myWrite.split(":")[0].equals("close")) {
-				toClose = true;
-				iClosed = true;
-			}
-			if (otWrite.split(":")[0].equals("close")) {
-				toClose = true;
-			}
+			//validate arguments
+			validateClassState(request);
 
-			if (!toClose) {
-				// this ensures the final states will be the same
-				if (getType().equals("P")) {
-					toAdd.add(n, myWrite);
-					n++;
-					toAdd.add(n, otWrite);
-					n++;
-				}
-				else {
-					toAdd.add(n, otWrite);
-					n++;
-					toAdd.add(n, myWrite);
-					n++;
-				}
-			}
-			// concurrent calls -> the one who didn't close can
-			// add its writes (if there's capacity)
-			else if (iClosed) {
-				toAdd.add(n, otWrite);
-				n++;
+			classServerFrontend.heardFrom(request.getReplica());
+
+			//updateState: the writes go into the class's enrollment set, in any
+			//order, and the class follows the set
+			classServerFrontend.receiveWrites(class_.getClassId(), request.getWritesList());
+			if (!request.getEnrollments().isEmpty()) {
+				classServerFrontend.receiveEnrollments(class_.getClassId(), request.getReplica(),
+						request.getEnrollments(), request.getVersionVectorMap());
 			}
-			else {
-				toAdd.add(n, myWrite);
-				n++;
+			classServerFrontend.reconcile(class_);
+			if (withState) {
+				//seats this server can spare for the other replica
+				classServerFrontend.rebalance(class_, request.getReplica(), request.getQuota(), request.getWaitlisted());
 			}
-		}
-
-		/* 3. Calculate the possible enrollments */
-		int toEnroll;
-		toEnroll = class_.getCapacity() - class_.getEnrolled() - nRecWrites;
-
-		/* 4. If we don't exceed capacity, add */
-		if (toEnroll >= 0) {
-			for (int i = 0; i < nRecWrites; i++) {
-				String studentId = request.getWrites(i).getWrite().split(":")[0];
-				String studentName = request.getWrites(i).getWrite().split(":")[1];
-				try {
-					class_.addStudentEnrolled(studentId, studentName);
-				}
-				catch (DuplicateEnrollmentException e) {
-					cancelled.add(request.getWrites(i).getWrite());
-				}
-				catch (ClassFullException | ClosedForEnrollmentsException e) {
-					debug("This shouldn't be happening.");
+			// seats freed by the merge go to waitlisted students; the promotions
+			// are writes of this server, passed on like any other enrollment
+			class_.promoteWaitlisted().forEach((studentId, studentName) -> {
+				debug("Promoted waitlisted student: " + studentId);
+				promoted[0] = log.logWrite(class_.getClassId(),
+						classServerFrontend.recordWrite(class_.getClassId(), Writes.enroll(studentId, studentName)));
+			});
+			if (withState) {
+				//only what changed since the version the other replica holds
+				changes = class_.getChangesSince(request.getAckedEpoch(), request.getAckedVersion(), request.getChangedList());
+				//unknown version: only the buckets that differ from the other replica's digest
+				if (changes.getFullState() && request.getDigestCount() == ClassSnapshot.DIGEST_BUCKETS) {
+					changes = class_.getChangesInBuckets(request.getDigestList());
+					debug(changes.getBucketsCount() + " of " + ClassSnapshot.DIGEST_BUCKETS
+							+ " buckets of class " + class_.getClassId() + " differ.");
 				}
 			}
-			if (toClose && !iClosed) {
-				class_.setOpen(false);
+			quota = class_.getQuota();
+			waitlisted = class_.getWaitlisted();
+			synchronized (writes) {
+				if (withState) {
+					missing = writes.missingFrom(request.getVersionVectorMap());
+					if (writes.hasDropped(request.getVersionVectorMap())) {
+						enrollments = writes.getEnrollments().toByteArray();
+					}
+				}
+				versionVector = writes.getVersionVector();
 			}
-			return cancelled;
 		}
+		log.awaitDurable(promoted[0]);
 
-		/* 5. Add until full */
-		cancelled = addNEnrollments(toAdd, toAdd.size());
-
-		return cancelled;
-	}
-
-	/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+		classServerFrontend.acknowledge(class_.getClassId(), request.getReplica(), request.getVersionVectorMap());
 
-	/**
-	 * Adds the possible enrollments, until the class is full.
-	 * @param toAdd contains all the enrollments to be made
-	 * @param nToAdd contains how many enrollments we want to
-	 * make
-	 * @return the enrollments which were cancelled
-	 */
-	private List<String> addNEnrollments(List<String> toAdd, int nToAdd) {
-		List<String> cancelled = new ArrayList<>();
-		for (int i = 0; i < nToAdd; i++) {
-			String enrollment = toAdd.get(i);
-			String studentId = enrollment.split(":")[0];
-			String studentName = enrollment.split(":")[1];
-			try {
-				class_.addStudentEnrolled(studentId, studentName);
-			}
-			catch (DuplicateEnrollmentException e) {
-				// only add to cancelled if it wasn't my write
-				if (!isMyWrite(enrollment)) {
-					cancelled.add(enrollment);
-				}
-			}
-			catch (ClassFullException e) {
-				cancelled.add(enrollment);
-			}
-			catch (ClosedForEnrollmentsException e) {
-				debug("This shouldn't be happening.");
-			}
+		//build response
+		PropagateStateResponse.Builder responseBuilder = PropagateStateResponse.newBuilder();
+		responseBuilder.setClassId(class_.getClassId());
+		responseBuilder.setCode(OK);
+		responseBuilder.putAllVersionVector(versionVector);
+		if (!withState) {
+			return responseBuilder.build();
 		}
-		return cancelled;
-	}
-
-	/**
-	 * Determines if a certain enrollment was made by me.
-	 * @param enrollment the enrollment in question
-	 * @return true if I did it, false otherwise
-	 */
-	private boolean isMyWrite(String enrollment) {
-		Collection<String> writes = classServerFrontend.get_writes().values();
-		for (String write : writes) {
-			if (write.equals(enrollment)) {
-				return true;
-			}
+		responseBuilder.addAllWrites(missing);
+		if (enrollments != null) {
+			responseBuilder.setEnrollments(ByteString.copyFrom(enrollments));
 		}
-		return false;
+		responseBuilder.setQuota(quota);
+		responseBuilder.setWaitlisted(waitlisted);
+		if (changes.getFullState()) {
+			responseBuilder.setClassState(changes.getClassState());
+			responseBuilder.setChanges(changes.toBuilder().clearClassState());
+		}
+		else {
+			responseBuilder.setChanges(changes);
+		}
+		return responseBuilder.build();
 	}
 
 	/**
-	 * Calculates the first clock value for the writes sent by
-	 * the other server
-	 * @param request the propagateStateRequest I received
-	 * @return the minimum time with a write
+	 * Implements the rpc fetchSnapshot, from the service
+	 * ClassServerService, defined in the Contract, by streaming
+	 * the state of every class in chunks, to a replica being
+	 * brought up.
+	 *
+	 * @param request the message received
+	 * @param responseObserver special interface for the server to call with its responses
 	 */
-	private int getMinClock(PropagateStateRequest request) {
-		int nRecWrites = request.getWritesCount();
-		int recClockMin = -1;
-		for (int i = 0; i < nRecWrites; i++) {
-			int clock = request.getWrites(i).getClock();
-			if (clock < recClockMin || recClockMin < 0) {
-				recClockMin = clock;
-			}
+	@Override
+	public void fetchSnapshot(FetchSnapshotRequest request, StreamObserver<FetchSnapshotResponse> responseObserver){
+		debug("Received a fetchSnapshot request message.");
+		if (!registry.isActive()) {
+			FetchSnapshotResponse response = FetchSnapshotResponse.newBuilder().setCode(INACTIVE_SERVER).build();
+			debug("About to send a fetchSnapshot response message with code: " + response.getCode());
+			responseObserver.onNext(response);
+			responseObserver.onCompleted();
+			return;
 		}
-		return recClockMin;
+		debug("About to stream the snapshot of " + registry.getClasses().size() + " classes.");
+		new SnapshotStreamer(registry.getClasses(), classServerFrontend, request.getChunkSize(), responseObserver).start();
 	}
 
-	/**
-	 * Auxiliary function to determine the operation performed
-	 * on the other server at its own given time.
-	 * @param request the propagateStateRequest I received
-	 * @param time the clock's value the writing corresponds to
-	 * @return the writing performed
-	 */
-	private String getWriteGivenTime(PropagateStateRequest request, int time) {
-		String write = "";
-		int nRecWrites = request.getWritesCount();
-		for (int i = 0; i < nRecWrites; i++) {
-			if (request.getWrites(i).getClock() == time) {
-				write = request.getWrites(i).getWrite();
-				break;
-			}
+	/* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
+
+	public void debug_ClassState(String classState){
+		if(isDebug()){
+			System.err.println("########## ClassState ##########");
+			System.err.println(classState);
+			System.err.println("################################");
 		}
-		return write;
 	}
 
 	/**
@@ -365,6 +281,8 @@ public class ClassServerServiceImpl extends ClassServerServiceGrpc.ClassServerSe
 	 * @param request the message containing a class state
 	 */
 	public void validateClassState(PropagateStateRequest request){
+		_validate.validate_class(request.getClassId());
+
 		_validate.validate_capacity(request.getClassState().getCapacity());
 
 		request.getClassState().getDiscardedList()
@@ -372,31 +290,17 @@ public class ClassServerServiceImpl extends ClassServerServiceGrpc.ClassServerSe
 
 		request.getClassState().getEnrolledList()
 				.forEach(student -> _validate.validate_enrollment(student.getStudentId(), student.getStudentName()));
-	}
-
-	/**
-	 * Constructs and returns a ClassState message, containing
-	 * the class's current characteristics.
-	 * @return the built message
-	 */
-	public ClassState buildClassState() {
-		ClassState.Builder classStateBuilder = ClassState.newBuilder();
-		synchronized (class_) {
-			Student.Builder studentBuilder = Student.newBuilder();
-			classStateBuilder.setCapacity(class_.getCapacity());
-			classStateBuilder.setOpenEnrollments(class_.isOpen());
-			class_.getStudentsDiscarded().forEach(
-					(id, name) ->
-							classStateBuilder.addDiscarded(
-									studentBuilder.setStudentId(id).setStudentName(name).build()));
-			class_.getStudentsEnrolled().forEach(
-					(id, name) ->
-							classStateBuilder.addEnrolled(
-									studentBuilder.setStudentId(id).setStudentName(name).build()));
 
+		for (WriteRequest write : request.getWritesList()) {
+			if (write.hasEnroll() || write.hasCancel()) {
+				_validate.validate_enrollment(Writes.studentId(write), Writes.studentName(write));
+			}
+			else if (write.hasGrant()) {
+				_validate.validate_capacity(write.getGrant().getSeats());
+			}
 		}
-		return classStateBuilder.build();
 	}
+
 }
 
 
@@ -0,0 +1,227 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassStatePage;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable view of a class's state at a given version.
+ * Read requests serve it without taking any lock.
+ */
+public class ClassSnapshot {
+    /** Buckets the students are hashed into, for digests */
+    public static final int DIGEST_BUCKETS = 128;
+
+    private final long version;
+
+    private final int capacity;
+
+    private final boolean open;
+
+    // ids and names of the students, in ascending id order
+    private final String[] enrolledIds;
+    private final String[] enrolledNames;
+    private final String[] discardedIds;
+    private final String[] discardedNames;
+
+    // ClassState message for this version, built on first use and shared by every read and gossip
+    private volatile ClassState classState = null;
+
+    // hash of each bucket of students, computed on first use
+    private volatile long[] digest = null;
+
+    /**
+     * Constructor
+     * Copies the rosters, so later changes to the class don't affect the snapshot
+     * @param version version of the class's state being copied
+     * @param capacity capacity of the class
+     * @param open true if the enrollments are open
+     * @param enrolled the enrolled students
+     * @param discarded the discarded students
+     */
+    public ClassSnapshot(long version, int capacity, boolean open, Roster enrolled, Roster discarded) {
+        this.version = version;
+        this.capacity = capacity;
+        this.open = open;
+
+        List<String> ids = new ArrayList<>(enrolled.size());
+        List<String> names = new ArrayList<>(enrolled.size());
+        enrolled.forEach((id, name) -> { ids.add(id); names.add(name); });
+        this.enrolledIds = ids.toArray(new String[0]);
+        this.enrolledNames = names.toArray(new String[0]);
+
+        ids.clear();
+        names.clear();
+        discarded.forEach((id, name) -> { ids.add(id); names.add(name); });
+        this.discardedIds = ids.toArray(new String[0]);
+        this.discardedNames = names.toArray(new String[0]);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getEnrolledCount() {
+        return enrolledIds.length;
+    }
+
+    public int getDiscardedCount() {
+        return discardedIds.length;
+    }
+
+    /**
+     * Performs the action for each enrolled student, in ascending id order
+     * @param action receives each student's id and name
+     */
+    public void forEachEnrolled(BiConsumer<String, String> action) {
+        for (int i = 0; i < enrolledIds.length; i++) {
+            action.accept(enrolledIds[i], enrolledNames[i]);
+        }
+    }
+
+    /**
+     * Performs the action for each discarded student, in ascending id order
+     * @param action receives each student's id and name
+     */
+    public void forEachDiscarded(BiConsumer<String, String> action) {
+        for (int i = 0; i < discardedIds.length; i++) {
+            action.accept(discardedIds[i], discardedNames[i]);
+        }
+    }
+
+    /**
+     * @param studentId the student's id
+     * @return the student's name, or null if the student isn't enrolled
+     */
+    public String getEnrolledName(String studentId) {
+        int i = Arrays.binarySearch(enrolledIds, studentId);
+        return i >= 0 ? enrolledNames[i] : null;
+    }
+
+    /**
+     * @param studentId the student's id
+     * @return the student's name, or null if the student isn't discarded
+     */
+    public String getDiscardedName(String studentId) {
+        int i = Arrays.binarySearch(discardedIds, studentId);
+        return i >= 0 ? discardedNames[i] : null;
+    }
+
+    /**
+     * @return number of students in the snapshot, enrolled and discarded
+     */
+    public int getStudentCount() {
+        return enrolledIds.length + discardedIds.length;
+    }
+
+    /**
+     * Builds one page of the snapshot, for streaming large classes.
+     * Students are numbered from 0, the enrolled ones first and then
+     * the discarded ones, each in ascending id order.
+     * @param epoch the server history the snapshot belongs to
+     * @param from number of the first student in the page
+     * @param pageSize maximum number of students in the page
+     * @return the built page
+     */
+    public ClassStatePage getPage(long epoch, int from, int pageSize) {
+        ClassStatePage.Builder pageBuilder = ClassStatePage.newBuilder();
+        Student.Builder studentBuilder = Student.newBuilder();
+        pageBuilder.setEpoch(epoch);
+        pageBuilder.setVersion(version);
+        pageBuilder.setCapacity(capacity);
+        pageBuilder.setOpenEnrollments(open);
+        int to = Math.min(from + pageSize, getStudentCount());
+        for (int i = from; i < to; i++) {
+            if (i < enrolledIds.length) {
+                pageBuilder.addEnrolled(
+                        studentBuilder.setStudentId(enrolledIds[i]).setStudentName(enrolledNames[i]).build());
+            } else {
+                int j = i - enrolledIds.length;
+                pageBuilder.addDiscarded(
+                        studentBuilder.setStudentId(discardedIds[j]).setStudentName(discardedNames[j]).build());
+            }
+        }
+        return pageBuilder.build();
+    }
+
+    /**
+     * Returns the ClassState message describing this snapshot.
+     * It is built once per version and reused by every request,
+     * until a change to the class publishes a new snapshot.
+     * @return the built message
+     */
+    public ClassState getClassState() {
+        ClassState built = classState;
+        if (built == null) {
+            ClassState.Builder classStateBuilder = ClassState.newBuilder();
+            Student.Builder studentBuilder = Student.newBuilder();
+            classStateBuilder.setCapacity(capacity);
+            classStateBuilder.setOpenEnrollments(open);
+            classStateBuilder.setVersion(version);
+            forEachEnrolled(
+                    (id, name) ->
+                            classStateBuilder.addEnrolled(
+                                    studentBuilder.setStudentId(id).setStudentName(name).build()));
+            forEachDiscarded(
+                    (id, name) ->
+                            classStateBuilder.addDiscarded(
+                                    studentBuilder.setStudentId(id).setStudentName(name).build()));
+            built = classStateBuilder.build();
+            // computes and memoizes the serialized size once, instead of on every response
+            built.getSerializedSize();
+            classState = built;
+        }
+        return built;
+    }
+
+    /**
+     * @param studentId the student's id
+     * @return the bucket the student belongs to, the same on every replica
+     */
+    public static int bucketOf(String studentId) {
+        return Math.floorMod(mix(studentId.hashCode()), DIGEST_BUCKETS);
+    }
+
+    /**
+     * Returns the digest of the rosters: for each bucket, the sum of the
+     * hashes of its students (id, name and whether they are enrolled or
+     * discarded). Two replicas with the same students in a bucket have the
+     * same hash for it, so comparing digests tells which buckets differ.
+     * @return the hash of each bucket, not to be modified
+     */
+    public long[] getDigest() {
+        long[] built = digest;
+        if (built == null) {
+            long[] hashes = new long[DIGEST_BUCKETS];
+            forEachEnrolled((id, name) -> hashes[bucketOf(id)] += studentHash(id, name, true));
+            forEachDiscarded((id, name) -> hashes[bucketOf(id)] += studentHash(id, name, false));
+            built = hashes;
+            digest = built;
+        }
+        return built;
+    }
+
+    private static long studentHash(String studentId, String studentName, boolean enrolled) {
+        return mix(((long) studentId.hashCode() << 32 | studentName.hashCode() & 0xffffffffL) + (enrolled ? 1 : 2));
+    }
+
+    // spreads the bits of a hash code (the finalizer of SplitMix64)
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
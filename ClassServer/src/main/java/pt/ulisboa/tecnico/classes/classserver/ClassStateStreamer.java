@@ -0,0 +1,86 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassStatePage;
+
+import java.util.function.Function;
+
+/**
+ * Streams a snapshot of a class's state in bounded pages, so a huge
+ * roster is never held in a single message. Pages are only sent while
+ * the client's transport is ready for them (flow control), and the
+ * stream stops early if the client cancels it.
+ * @param <T> the response message of the service streaming the pages
+ */
+public class ClassStateStreamer<T> implements Runnable {
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    public static final int MAX_PAGE_SIZE = 5000;
+
+    private final ServerCallStreamObserver<T> responseObserver;
+
+    private final Function<ClassStatePage, T> toResponse;
+
+    private final ClassSnapshot snapshot;
+
+    private final long epoch;
+
+    private final int pageSize;
+
+    private int from = 0; // number of the first student of the next page
+
+    private boolean done = false;
+
+    /**
+     * Constructor
+     * @param _class the class to stream
+     * @param pageSize requested number of students per page, or 0 for the default
+     * @param responseObserver special interface for the server to call with its responses
+     * @param toResponse wraps each page in the service's response message
+     */
+    public ClassStateStreamer(ClassDomain _class, int pageSize, StreamObserver<T> responseObserver,
+                              Function<ClassStatePage, T> toResponse) {
+        this.responseObserver = (ServerCallStreamObserver<T>) responseObserver;
+        this.toResponse = toResponse;
+        // every page comes from the same version of the class
+        this.snapshot = _class.getSnapshot();
+        this.epoch = _class.getEpoch();
+        this.pageSize = pageSize <= 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * @return number of pages the class's state is split into (at least one)
+     */
+    public int getPageCount() {
+        return Math.max(1, (snapshot.getStudentCount() + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Starts streaming; later pages are sent as the client becomes ready for them
+     */
+    public void start() {
+        responseObserver.setOnCancelHandler(this::cancel);
+        responseObserver.setOnReadyHandler(this);
+        run();
+    }
+
+    /**
+     * Sends pages while the transport can take them
+     */
+    @Override
+    public synchronized void run() {
+        while (!done && responseObserver.isReady()) {
+            responseObserver.onNext(toResponse.apply(snapshot.getPage(epoch, from, pageSize)));
+            from += pageSize;
+            // an empty class is still sent as one (empty) page
+            if (from >= snapshot.getStudentCount()) {
+                done = true;
+                responseObserver.onCompleted();
+            }
+        }
+    }
+
+    private synchronized void cancel() {
+        done = true;
+    }
+}
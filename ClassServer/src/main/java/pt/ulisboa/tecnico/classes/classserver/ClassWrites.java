@@ -0,0 +1,289 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.WriteRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The writes of a class this server still has to pass on to other
+ * replicas, from any replica, together with the class's version vector:
+ * for each replica, the clock of the latest of its writes applied here.
+ * A replica's writes reach every other replica in clock order, so a
+ * write is already applied exactly when the vector covers its clock.
+ *
+ * A write is kept until every known replica has acknowledged a vector
+ * covering it. Its effect stays in the class's enrollment set, which
+ * every write applied here goes into; a replica missing writes no
+ * longer kept here is sent the set instead.
+ */
+public class ClassWrites {
+    /** The order writes are merged in: by clock, then by replica */
+    public static final Comparator<WriteRequest> ORDER =
+            Comparator.comparingInt(WriteRequest::getClock).thenComparing(WriteRequest::getReplica);
+
+    private final NavigableSet<WriteRequest> writes = new ConcurrentSkipListSet<>(ORDER);
+
+    private final Map<String, Integer> versionVector = new ConcurrentHashMap<>();
+
+    private final EnrollmentSet enrollments = new EnrollmentSet();
+
+    // the latest version vector each replica acknowledged
+    private final Map<String, Map<String, Integer>> acknowledged = new ConcurrentHashMap<>();
+
+    // per replica, the clock of the latest of its writes dropped here
+    private final Map<String, Integer> dropped = new ConcurrentHashMap<>();
+
+    // requests waiting for acknowledgements (guarded by this)
+    private int awaiting = 0;
+
+    // writes ever kept, and since when some are (0 while none are)
+    private long added = 0;
+    private volatile long pendingSince = 0;
+
+    /**
+     * @return true if the write is already applied here
+     */
+    public boolean has(WriteRequest write) {
+        return covers(versionVector, write);
+    }
+
+    private static boolean covers(Map<String, Integer> versionVector, WriteRequest write) {
+        return write.getClock() <= versionVector.getOrDefault(write.getReplica(), -1);
+    }
+
+    /**
+     * Keeps a write applied here, to be passed on
+     * @param write the write, named by its replica and clock
+     */
+    public synchronized void add(WriteRequest write) {
+        if (writes.isEmpty()) {
+            pendingSince = System.currentTimeMillis();
+        }
+        added++;
+        writes.add(write);
+        enrollments.apply(write);
+        versionVector.merge(write.getReplica(), write.getClock(), Math::max);
+    }
+
+    /**
+     * Advances the version vector past writes applied here
+     * without being kept, like the ones in an installed snapshot:
+     * as if dropped, they can't be passed on
+     * @param other the version vector to merge
+     */
+    public synchronized void advance(Map<String, Integer> other) {
+        other.forEach((replica, clock) -> {
+            if (clock > versionVector.getOrDefault(replica, -1)) {
+                dropped.merge(replica, clock, Math::max);
+                versionVector.put(replica, clock);
+            }
+        });
+    }
+
+    /**
+     * Takes the enrollment set of a snapshot installed from another
+     * replica, and advances the version vector past the writes in it.
+     * The writes kept here, received meanwhile, go into the set again:
+     * it may lack them, and has no effect of the ones it has twice.
+     * @param serialized the other replica's set, serialized
+     * @param other the version vector of the writes in it
+     * @throws IOException if the set is incomplete
+     */
+    public synchronized void install(byte[] serialized, Map<String, Integer> other) throws IOException {
+        enrollments.load(serialized);
+        for (WriteRequest write : writes) {
+            enrollments.apply(write);
+        }
+        advance(other);
+    }
+
+    /**
+     * Merges another replica's enrollment set, with the effects of writes
+     * it dropped already, and advances the version vector past them
+     * @param serialized the other replica's set, serialized
+     * @param other the other replica's version vector
+     * @throws IOException if the set is incomplete (nothing changes then)
+     */
+    public synchronized void join(byte[] serialized, Map<String, Integer> other) throws IOException {
+        enrollments.merge(serialized);
+        advance(other);
+    }
+
+    /**
+     * @param other a replica's version vector
+     * @return true if writes the replica is missing were already dropped
+     * here, so only the enrollment set can bring it their effects
+     */
+    public boolean hasDropped(Map<String, Integer> other) {
+        for (Map.Entry<String, Integer> latest : dropped.entrySet()) {
+            if (other.getOrDefault(latest.getKey(), -1) < latest.getValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if writes a replica may be missing, as far as it
+     * acknowledged, were already dropped here
+     */
+    public boolean hasDropped(String replica) {
+        return hasDropped(acknowledged.getOrDefault(replica, Map.of()));
+    }
+
+    /**
+     * @return the class's enrollment set, of every write applied here
+     */
+    public EnrollmentSet getEnrollments() {
+        return enrollments;
+    }
+
+    /**
+     * @return a copy of the version vector
+     */
+    public synchronized Map<String, Integer> getVersionVector() {
+        return new HashMap<>(versionVector);
+    }
+
+    /**
+     * @param other a replica's version vector
+     * @return the writes kept here that the replica is missing, in merge order
+     */
+    public synchronized List<WriteRequest> missingFrom(Map<String, Integer> other) {
+        List<WriteRequest> missing = new ArrayList<>();
+        for (WriteRequest write : writes) {
+            if (!covers(other, write)) {
+                missing.add(write);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return the writes a replica is missing, as far as it acknowledged
+     */
+    public List<WriteRequest> missingFrom(String replica) {
+        return missingFrom(acknowledged.getOrDefault(replica, Map.of()));
+    }
+
+    /**
+     * Remembers a replica has (at least) the writes a version vector covers
+     */
+    public void acknowledge(String replica, Map<String, Integer> other) {
+        acknowledged.merge(replica, new HashMap<>(other), (known, received) -> {
+            Map<String, Integer> merged = new HashMap<>(known);
+            received.forEach((origin, clock) -> merged.merge(origin, clock, Math::max));
+            return merged;
+        });
+        synchronized (this) {
+            if (awaiting > 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return true if a replica acknowledged every write of the given
+     * origin applied here
+     */
+    public boolean isAcknowledged(String replica, String origin) {
+        return acknowledged.getOrDefault(replica, Map.of()).getOrDefault(origin, -1)
+                >= versionVector.getOrDefault(origin, -1);
+    }
+
+    /**
+     * Waits until enough replicas acknowledged a write. An acknowledgement
+     * covers every write before it, so concurrent requests share them.
+     * @param write the write
+     * @param replicas the replicas counted
+     * @param needed how many of them must have the write
+     * @param timeout the most time to wait, in milliseconds
+     * @return true if enough replicas had the write in time
+     */
+    public synchronized boolean awaitAcknowledged(WriteRequest write, Collection<String> replicas, int needed,
+                                                  long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        awaiting++;
+        try {
+            while (true) {
+                int have = 0;
+                for (String replica : replicas) {
+                    if (covers(acknowledged.getOrDefault(replica, Map.of()), write)) {
+                        have++;
+                    }
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (have >= needed || left <= 0) {
+                    return have >= needed;
+                }
+                wait(left);
+            }
+        }
+        finally {
+            awaiting--;
+        }
+    }
+
+    /**
+     * Drops the writes every one of the given replicas acknowledged
+     * @param replicas the replicas the writes are passed on to
+     * @return the number of writes dropped
+     */
+    public int prune(Collection<String> replicas) {
+        if (replicas.isEmpty()) {
+            return 0;
+        }
+        int pruned = 0;
+        for (WriteRequest write : writes) {
+            boolean everywhere = true;
+            for (String replica : replicas) {
+                everywhere &= covers(acknowledged.getOrDefault(replica, Map.of()), write);
+            }
+            if (everywhere && writes.remove(write)) {
+                dropped.merge(write.getReplica(), write.getClock(), Math::max);
+                pruned++;
+            }
+        }
+        synchronized (this) {
+            if (writes.isEmpty()) {
+                pendingSince = 0;
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * @return the writes kept, in merge order
+     */
+    public Collection<WriteRequest> all() {
+        return writes;
+    }
+
+    /**
+     * @return the number of writes ever kept
+     */
+    public synchronized long getAdded() {
+        return added;
+    }
+
+    /**
+     * @return when the writes kept started piling up (the oldest may
+     * have been dropped since), or 0 if none are kept
+     */
+    public long getPendingSince() {
+        return pendingSince;
+    }
+
+    public int size() {
+        return writes.size();
+    }
+}
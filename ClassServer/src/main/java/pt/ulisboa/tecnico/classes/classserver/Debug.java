@@ -13,6 +13,10 @@ public class Debug {
     private static final String CLOSE_RESPONSE = "About to send an closeEnrollments response message with code: ";
     private static final String LIST_REQUEST = "Received a listClass request message.";
     private static final String LIST_RESPONSE = "About to send a listClass response message with code: ";
+    private static final String LIST_CHANGES_REQUEST = "Received a listClassChanges request message since version: ";
+    private static final String LIST_CHANGES_RESPONSE = "About to send a listClassChanges response message with code: ";
+    private static final String LIST_STREAM_REQUEST = "Received a listClassStream request message.";
+    private static final String LIST_STREAM_RESPONSE = "About to stream %d listClassStream response messages with code: ";
 
     public Debug() {
 
@@ -87,4 +91,39 @@ public class Debug {
         System.err.printf(LIST_RESPONSE);
         System.err.println(response.getCode());
     }
+
+    /**
+     * Outputs a small description of the listClassChanges request received
+     * @param request the before-mentioned request
+     */
+    public void debug_listClassChangesRequest(ProfessorClassServer.ListClassChangesRequest request) {
+        System.err.println(LIST_CHANGES_REQUEST + request.getSinceVersion());
+    }
+
+    /**
+     * Outputs a small description of the listClassChanges response to be sent
+     * @param response the before-mentioned response
+     */
+    public void debug_listClassChangesResponse(ProfessorClassServer.ListClassChangesResponse response) {
+        System.err.printf(LIST_CHANGES_RESPONSE);
+        System.err.println(response.getCode());
+    }
+
+    /**
+     * Outputs a small description of the listClassStream request received
+     * @param request the before-mentioned request
+     */
+    public void debug_listClassStreamRequest(ProfessorClassServer.ListClassStreamRequest request) {
+        System.err.println(LIST_STREAM_REQUEST);
+    }
+
+    /**
+     * Outputs a small description of the listClassStream responses to be sent
+     * @param code the code sent in every response
+     * @param pages the number of responses (pages) to be sent
+     */
+    public void debug_listClassStreamResponse(ClassesDefinitions.ResponseCode code, int pages) {
+        System.err.printf(LIST_STREAM_RESPONSE, pages);
+        System.err.println(code);
+    }
 }
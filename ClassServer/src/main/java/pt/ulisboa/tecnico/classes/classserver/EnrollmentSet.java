@@ -0,0 +1,299 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassChanges;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.WriteRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The replicated state of a class, as a set every replica converges to
+ * whatever the order (or the number of times) it receives the writes in,
+ * so replicas can exchange writes in any topology. Writes are told apart
+ * by their replica and clock (a dot), in merge order.
+ *
+ * Each student keeps the latest cancellation it got (a tombstone) and the
+ * enrollments after it; a student with any is enrolled, holding the seat
+ * of the earliest one. Opening and closing are last-writer-wins. The class
+ * state follows deterministically: seats are handed out in order until the
+ * capacity is reached, and the students left over, or enrolled after the
+ * enrollments were closed, are discarded.
+ */
+public class EnrollmentSet {
+    // a write's name: merge order, by clock and then by replica
+    private static final class Dot implements Comparable<Dot> {
+        final int clock;
+        final String replica;
+
+        Dot(int clock, String replica) {
+            this.clock = clock;
+            this.replica = replica;
+        }
+
+        @Override
+        public int compareTo(Dot other) {
+            return clock != other.clock ? Integer.compare(clock, other.clock) : replica.compareTo(other.replica);
+        }
+    }
+
+    private static final class Entry {
+        String name;
+        Dot named; // the write the name came from
+        Dot cancelled = null; // the latest cancellation, null if none
+        final TreeSet<Dot> enrolled = new TreeSet<>(); // the enrollments after it
+    }
+
+    // a student's place among the enrolled: its earliest enrollment, then its id
+    private static final class Seat implements Comparable<Seat> {
+        final Dot dot;
+        final String studentId;
+
+        Seat(Dot dot, String studentId) {
+            this.dot = dot;
+            this.studentId = studentId;
+        }
+
+        @Override
+        public int compareTo(Seat other) {
+            int order = dot.compareTo(other.dot);
+            return order != 0 ? order : studentId.compareTo(other.studentId);
+        }
+    }
+
+    private final Map<String, Entry> students = new HashMap<>();
+
+    private final TreeSet<Seat> seats = new TreeSet<>();
+
+    // the latest open or close, and the latest open
+    private Dot toggled = null;
+    private boolean open = false;
+    private Dot opened = null;
+    private int capacity = 0;
+
+    /**
+     * Adds a write to the set. Writes already added change nothing.
+     * @param write the write, named by its replica and clock
+     */
+    public synchronized void apply(WriteRequest write) {
+        Dot dot = new Dot(write.getClock(), write.getReplica());
+        if (write.hasEnroll()) {
+            enroll(Writes.studentId(write), Writes.studentName(write), dot);
+        }
+        else if (write.hasCancel()) {
+            cancel(Writes.studentId(write), Writes.studentName(write), dot);
+        }
+        else if (write.hasOpen()) {
+            toggle(true, dot);
+            if (opened == null || dot.compareTo(opened) > 0) {
+                opened = dot;
+                capacity = write.getOpen().getCapacity();
+            }
+        }
+        else if (write.hasClose()) {
+            toggle(false, dot);
+        }
+    }
+
+    private void enroll(String studentId, String studentName, Dot dot) {
+        Entry entry = entry(studentId, studentName, dot);
+        if (entry.cancelled != null && dot.compareTo(entry.cancelled) <= 0) {
+            return;
+        }
+        Dot seat = entry.enrolled.isEmpty() ? null : entry.enrolled.first();
+        entry.enrolled.add(dot);
+        if (seat == null || dot.compareTo(seat) < 0) {
+            if (seat != null) {
+                seats.remove(new Seat(seat, studentId));
+            }
+            seats.add(new Seat(dot, studentId));
+        }
+    }
+
+    private void cancel(String studentId, String studentName, Dot dot) {
+        Entry entry = entry(studentId, studentName, dot);
+        if (entry.cancelled != null && dot.compareTo(entry.cancelled) <= 0) {
+            return;
+        }
+        entry.cancelled = dot;
+        if (entry.enrolled.isEmpty()) {
+            return;
+        }
+        seats.remove(new Seat(entry.enrolled.first(), studentId));
+        entry.enrolled.headSet(dot, true).clear();
+        if (!entry.enrolled.isEmpty()) {
+            seats.add(new Seat(entry.enrolled.first(), studentId));
+        }
+    }
+
+    private Entry entry(String studentId, String studentName, Dot dot) {
+        Entry entry = students.computeIfAbsent(studentId, id -> new Entry());
+        if (entry.named == null || dot.compareTo(entry.named) > 0) {
+            entry.name = studentName;
+            entry.named = dot;
+        }
+        return entry;
+    }
+
+    private void toggle(boolean open, Dot dot) {
+        if (toggled == null || dot.compareTo(toggled) > 0) {
+            toggled = dot;
+            this.open = open;
+        }
+    }
+
+    /**
+     * Merges another replica's set into this one: the result is the set
+     * of the writes of both, whichever was merged into which, however
+     * many times
+     * @param serialized the other set, serialized by toByteArray
+     * @throws IOException if the set is incomplete (nothing changes then)
+     */
+    public synchronized void merge(byte[] serialized) throws IOException {
+        EnrollmentSet other = new EnrollmentSet();
+        other.load(serialized);
+        if (other.toggled != null) {
+            toggle(other.open, other.toggled);
+        }
+        if (other.opened != null && (opened == null || other.opened.compareTo(opened) > 0)) {
+            opened = other.opened;
+            capacity = other.capacity;
+        }
+        for (Map.Entry<String, Entry> student : other.students.entrySet()) {
+            String studentId = student.getKey();
+            Entry theirs = student.getValue();
+            entry(studentId, theirs.name, theirs.named);
+            if (theirs.cancelled != null) {
+                cancel(studentId, theirs.name, theirs.cancelled);
+            }
+            for (Dot dot : theirs.enrolled) {
+                enroll(studentId, theirs.name, dot);
+            }
+        }
+    }
+
+    /**
+     * Tells how a class differs from the state the set describes.
+     * Students the set doesn't know (whose writes are still being
+     * recorded) are left alone.
+     * @param snapshot the class's current state
+     * @return the changes that bring the class in line, or null if none
+     */
+    public synchronized ClassChanges changesFrom(ClassSnapshot snapshot) {
+        ClassChanges.Builder changes = ClassChanges.newBuilder();
+        if (toggled != null) {
+            changes.setCapacity(capacity).setOpenEnrollments(open);
+        }
+        else {
+            changes.setCapacity(snapshot.getCapacity()).setOpenEnrollments(snapshot.isOpen());
+        }
+        boolean differs = changes.getCapacity() != snapshot.getCapacity()
+                || changes.getOpenEnrollments() != snapshot.isOpen();
+
+        Student.Builder studentBuilder = Student.newBuilder();
+        Map<String, Boolean> seated = new HashMap<>();
+        int taken = 0;
+        for (Seat seat : seats) {
+            boolean afterClose = !changes.getOpenEnrollments() && toggled != null && seat.dot.compareTo(toggled) > 0;
+            boolean enrolled = !afterClose && taken < changes.getCapacity();
+            if (enrolled) {
+                taken++;
+            }
+            seated.put(seat.studentId, enrolled);
+        }
+        for (Map.Entry<String, Entry> student : students.entrySet()) {
+            String studentId = student.getKey();
+            String name = student.getValue().name;
+            if (seated.getOrDefault(studentId, false)) {
+                if (!name.equals(snapshot.getEnrolledName(studentId))) {
+                    changes.addEnrolled(studentBuilder.setStudentId(studentId).setStudentName(name).build());
+                    differs = true;
+                }
+            }
+            else if (!name.equals(snapshot.getDiscardedName(studentId))) {
+                changes.addDiscarded(studentBuilder.setStudentId(studentId).setStudentName(name).build());
+                differs = true;
+            }
+        }
+        return differs ? changes.build() : null;
+    }
+
+    /**
+     * @return the set, serialized
+     */
+    public synchronized byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeDot(out, toggled);
+            out.writeBoolean(open);
+            writeDot(out, opened);
+            out.writeInt(capacity);
+            out.writeInt(students.size());
+            for (Map.Entry<String, Entry> student : students.entrySet()) {
+                Entry entry = student.getValue();
+                out.writeShort(Roster.encode(student.getKey()));
+                out.writeUTF(entry.name);
+                writeDot(out, entry.named);
+                writeDot(out, entry.cancelled);
+                out.writeInt(entry.enrolled.size());
+                for (Dot dot : entry.enrolled) {
+                    writeDot(out, dot);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the set with a serialized one
+     * @param serialized a set serialized by toByteArray
+     * @throws IOException if the set is incomplete
+     */
+    public synchronized void load(byte[] serialized) throws IOException {
+        students.clear();
+        seats.clear();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized))) {
+            toggled = readDot(in);
+            open = in.readBoolean();
+            opened = readDot(in);
+            capacity = in.readInt();
+            int nStudents = in.readInt();
+            for (int s = 0; s < nStudents; s++) {
+                String studentId = Roster.decode(in.readShort());
+                Entry entry = new Entry();
+                entry.name = in.readUTF();
+                entry.named = readDot(in);
+                entry.cancelled = readDot(in);
+                int nEnrolled = in.readInt();
+                for (int e = 0; e < nEnrolled; e++) {
+                    entry.enrolled.add(readDot(in));
+                }
+                students.put(studentId, entry);
+                if (!entry.enrolled.isEmpty()) {
+                    seats.add(new Seat(entry.enrolled.first(), studentId));
+                }
+            }
+        }
+    }
+
+    private static void writeDot(DataOutputStream out, Dot dot) throws IOException {
+        out.writeBoolean(dot != null);
+        if (dot != null) {
+            out.writeInt(dot.clock);
+            out.writeUTF(dot.replica);
+        }
+    }
+
+    private static Dot readDot(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new Dot(in.readInt(), in.readUTF()) : null;
+    }
+}
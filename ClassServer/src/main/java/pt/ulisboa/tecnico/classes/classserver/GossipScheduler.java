@@ -0,0 +1,111 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when to start a gossip round, instead of a fixed period:
+ * right away once enough new writes piled up, when the oldest write
+ * waiting to reach every replica gets too old, and otherwise (with
+ * nothing to pass on) at an interval that doubles after every idle
+ * round. Every wait is jittered, so replicas don't gossip in lockstep.
+ */
+public class GossipScheduler {
+    private static final boolean TIMER = true;
+
+    /** Time between checks, in milliseconds */
+    private static final int CHECK_PERIOD = 1000;
+
+    /** New writes (accepted here or received) worth a round right away */
+    private static final long WRITE_THRESHOLD = 200;
+
+    /** Longest a write waits for a round, in milliseconds */
+    private static final long MAX_AGE = 5 * 1000;
+
+    /** Time between rounds with nothing to pass on, in milliseconds: doubles from MIN_IDLE up to MAX_IDLE */
+    private static final long MIN_IDLE = 15 * 1000;
+    private static final long MAX_IDLE = 4 * 60 * 1000;
+
+    /** Each wait is stretched or shrunk by up to this fraction */
+    private static final double JITTER = 0.2;
+
+    private final ClassServerFrontend frontend;
+
+    private final boolean debug;
+
+    // the latest round, started at lastRound with addedAtLastRound writes ever kept
+    private long lastRound = 0;
+    private long addedAtLastRound = 0;
+
+    private long idleInterval = MIN_IDLE;
+
+    // the waits until the next round, jittered
+    private long maxAge = jitter(MAX_AGE);
+    private long idle = jitter(MIN_IDLE);
+
+    /**
+     * Constructor
+     * @param frontend gossips with the other replicas, and holds the writes to pass on
+     * @param debug true if the debug mode is active
+     */
+    public GossipScheduler(ClassServerFrontend frontend, boolean debug) {
+        this.frontend = frontend;
+        this.debug = debug;
+    }
+
+    private void debug(String debugMessage) {
+        if (debug)
+            System.err.println(debugMessage);
+    }
+
+    private static long jitter(long wait) {
+        return Math.round(wait * (1 + ThreadLocalRandom.current().nextDouble(-JITTER, JITTER)));
+    }
+
+    /**
+     * Starts checking, in the background, whether a round is due;
+     * the first round starts right away
+     */
+    public void start() {
+        Timer timer = new Timer("gossip", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                propagateIfDue();
+            }
+        }, 0, CHECK_PERIOD);
+    }
+
+    private void propagateIfDue() {
+        long now = System.currentTimeMillis();
+        long added = frontend.getWritesAdded();
+        long pendingSince = frontend.getPendingSince();
+
+        String reason;
+        if (added - addedAtLastRound >= WRITE_THRESHOLD) {
+            reason = (added - addedAtLastRound) + " new writes";
+        }
+        // writes still waiting after a round (for a replica that didn't answer) wait again
+        else if (pendingSince > 0 && now - Math.max(pendingSince, lastRound) >= maxAge) {
+            reason = "writes waiting " + (now - pendingSince) + " ms";
+        }
+        else if (now - lastRound >= idle) {
+            reason = "idle";
+        }
+        else {
+            return;
+        }
+
+        // back off while there is nothing to pass on
+        idleInterval = pendingSince == 0 && added == addedAtLastRound
+                ? Math.min(idleInterval * 2, MAX_IDLE) : MIN_IDLE;
+        lastRound = now;
+        addedAtLastRound = added;
+        maxAge = jitter(MAX_AGE);
+        idle = jitter(idleInterval);
+
+        debug("Gossip round (" + reason + "), next idle round in " + idle + " ms.");
+        frontend.propagateState(TIMER);
+    }
+}
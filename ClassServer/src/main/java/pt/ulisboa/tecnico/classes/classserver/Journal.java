@@ -0,0 +1,105 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Storage behind the write-ahead log: an append-only sequence of records,
+ * split in numbered segment files, which can be made durable in groups.
+ */
+public interface Journal {
+    // record types
+    byte ENROLL = 1;
+    byte CANCEL = 2;
+    byte OPEN = 3;
+    byte CLOSE = 4;
+    byte QUOTA = 5; // capacity holds the class's quota of seats, as it became
+    byte MODE = 6; // capacity is 1 if enrolls wait for a majority of the replicas, 0 if not
+
+    /** Clock of a record that isn't a write of this server (QUOTA, MODE) */
+    int NO_CLOCK = -1;
+
+    String SEGMENT_PREFIX = "wal-";
+
+    /**
+     * Receives each record read back from the journal
+     */
+    interface Replayer {
+        void apply(byte type, String classId, String studentId, String studentName, int capacity, int clock)
+                throws IOException;
+    }
+
+    /**
+     * Appends a record, without waiting for it to reach the disk
+     * @param clock the clock the write was accepted with, or NO_CLOCK
+     * @return the record's sequence number, to be passed to awaitDurable
+     */
+    long append(byte type, String classId, String studentId, String studentName, int capacity, int clock);
+
+    /**
+     * Waits until the record with the given sequence number (and every
+     * record before it) is on disk
+     * @param sequence a sequence number returned by append
+     * @throws java.io.UncheckedIOException if the journal could not be written
+     */
+    void awaitDurable(long sequence);
+
+    /**
+     * @return number of records appended to the current segment
+     */
+    long getSegmentRecords();
+
+    /**
+     * Closes the current segment, once all of it is on disk, and starts a new one.
+     * Every record appended before this call is in an older segment.
+     * @return number of the new segment
+     */
+    long rotate() throws IOException;
+
+    /**
+     * Deletes the segments a checkpoint made useless
+     * @param first number of the oldest segment to keep
+     */
+    void deleteSegmentsBefore(long first) throws IOException;
+
+    /**
+     * Reads back the records, in order, starting at the given segment.
+     * A segment is read up to its first torn or corrupted record.
+     * @param first number of the first segment to read
+     * @param replayer receives each record
+     * @return number of records read
+     */
+    int replay(long first, Replayer replayer) throws IOException;
+
+    /* * * * * * * * * * * * * * * * * * * * * SEGMENTS * * * * * * * * * * * * * * * * * * * */
+
+    static Path segmentFile(Path directory, long number, String suffix) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, suffix));
+    }
+
+    /**
+     * @return numbers of the segments with the given suffix in the directory, in ascending order
+     */
+    static List<Long> segments(Path directory, String suffix) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + suffix)) {
+            for (Path segmentFile : files) {
+                String name = segmentFile.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - suffix.length())));
+                }
+                catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
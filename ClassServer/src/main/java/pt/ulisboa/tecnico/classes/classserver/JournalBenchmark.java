@@ -0,0 +1,70 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compares the journal kinds: durable enroll throughput (every thread
+ * appends a record and waits for it to be on disk, like a request does)
+ * and replay time. Runs in a temporary directory, deleted afterwards.
+ *
+ * Usage: java JournalBenchmark [threads] [records per thread]
+ */
+public class JournalBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        for (String kind : List.of(WriteAheadLog.STREAM, WriteAheadLog.MAPPED)) {
+            Path directory = Files.createTempDirectory("journal-" + kind);
+            try {
+                run(kind, directory, threads, perThread);
+            }
+            finally {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+                }
+            }
+        }
+    }
+
+    private static Journal open(String kind, Path directory) throws IOException {
+        return WriteAheadLog.MAPPED.equals(kind) ? new MappedJournal(directory, false) : new StreamJournal(directory, false);
+    }
+
+    private static void run(String kind, Path directory, int threads, int perThread) throws Exception {
+        Journal journal = open(kind, directory);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            workers.add(new Thread(() -> {
+                for (int i = first; i < first + perThread; i++) {
+                    String studentId = String.format("aluno%04d", i % 10000);
+                    journal.awaitDurable(journal.append(Journal.ENROLL, "CLASS" + (i % 8), studentId, "Student " + i, 0, i));
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double appendSeconds = (System.nanoTime() - start) / 1e9;
+        long records = (long) threads * perThread;
+
+        // replayed by a fresh journal, as on a restart
+        Journal reopened = open(kind, directory);
+        int[] replayed = {0};
+        start = System.nanoTime();
+        reopened.replay(0, (type, classId, studentId, studentName, capacity, clock) -> replayed[0]++);
+        double replaySeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-6s  %8d records  append+sync %8.0f records/s  replay %6.1f ms (%d records)%n",
+                kind, records, records / appendSeconds, replaySeconds * 1000, replayed[0]);
+    }
+}
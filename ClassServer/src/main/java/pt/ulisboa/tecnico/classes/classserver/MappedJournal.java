@@ -0,0 +1,352 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.Validate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Journal kept in memory-mapped segment files, for very high enroll rates.
+ *
+ * Every record has the same fixed layout and size, so appending is a copy
+ * into the mapping at a known offset (no stream, no framing) and replay
+ * walks the mapping slot by slot through one reused buffer, without
+ * allocating per record: only the strings the classes keep are made,
+ * the student's id and name of an enroll or a cancel, and a class's id
+ * the first time one of its records is read. A flusher thread forces the range
+ * of the mapping written since its previous pass, so concurrent requests
+ * share each force (group commit).
+ *
+ * Record layout (RECORD_SIZE bytes, big-endian):
+ *   0 checksum (crc32c of bytes 4..127)   4 type (0 marks the end)
+ *   5 class id length                     6 name length
+ *   8 student id (encoded as a short,    12 capacity
+ *     -1 if none; 10..11 unused)
+ *  16 class id (MAX_CLASS_ID chars)       64 name (MAX_NAME chars)
+ * 124 clock (Journal.NO_CLOCK if none)
+ */
+public class MappedJournal implements Journal {
+    private static final String SEGMENT_SUFFIX = ".map";
+
+    static final int RECORD_SIZE = 128;
+
+    /** Longest class id and student name a record can hold, in chars (as requests are validated) */
+    public static final int MAX_CLASS_ID = Validate.MAX_CLASS_ID;
+    public static final int MAX_NAME = 30;
+
+    private static final int SEGMENT_RECORDS = 1 << 16; // 8 MiB per segment
+
+    // class ids kept by replay, by hash (a power of two)
+    private static final int KNOWN_CLASS_IDS = 256;
+
+    // offsets of the fields in a record
+    private static final int CHECKSUM = 0;
+    private static final int TYPE = 4;
+    private static final int CLASS_ID_LENGTH = 5;
+    private static final int NAME_LENGTH = 6;
+    private static final int STUDENT_ID = 8;
+    private static final int CAPACITY = 12;
+    private static final int CLASS_ID = 16;
+    private static final int NAME = 64;
+    private static final int CLOCK = 124;
+
+    private final Path directory;
+
+    private final boolean debug;
+
+    private long segment; // number of the segment being appended to (guarded by this)
+
+    private MappedByteBuffer mapping; // the segment being appended to (guarded by this)
+
+    private int position = 0; // next free slot of the segment (guarded by this)
+
+    private int forced = 0; // slots of the segment known to be on disk (guarded by this)
+
+    private long appended = 0; // sequence number of the latest record appended (guarded by this)
+
+    private long durable = 0; // every record up to this one is on disk (guarded by this)
+
+    private IOException failure = null; // set if the journal can't be written any more (guarded by this)
+
+    // record being built, copied into the mapping once complete (guarded by this)
+    private final ByteBuffer scratch = ByteBuffer.allocate(RECORD_SIZE);
+
+    private final CRC32C crc = new CRC32C(); // guarded by this
+
+    /**
+     * Constructor
+     * Appends to the latest segment in the directory, if any
+     * @param directory the server's data directory
+     * @param debug true if the debug mode is active
+     */
+    public MappedJournal(Path directory, boolean debug) throws IOException {
+        this.directory = directory;
+        this.debug = debug;
+        Files.createDirectories(directory);
+        List<Long> segments = Journal.segments(directory, SEGMENT_SUFFIX);
+        this.segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        this.mapping = map(segment, FileChannel.MapMode.READ_WRITE);
+        // the segment's end: its first empty, torn or corrupted slot
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        while (position < SEGMENT_RECORDS && isValid(mapping, position, record, crc)) {
+            position++;
+        }
+        this.forced = position;
+
+        Thread flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void debug(String debugMessage) {
+        if (debug)
+            System.err.println(debugMessage);
+    }
+
+    private MappedByteBuffer map(long number, FileChannel.MapMode mode) throws IOException {
+        Path file = Journal.segmentFile(directory, number, SEGMENT_SUFFIX);
+        try (FileChannel channel = mode == FileChannel.MapMode.READ_ONLY
+                ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            // a new segment is created with its full size, zero-filled
+            long size = mode == FileChannel.MapMode.READ_ONLY ? channel.size() : (long) SEGMENT_RECORDS * RECORD_SIZE;
+            return channel.map(mode, 0, size);
+        }
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * APPEND * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalArgumentException if the class id or the name don't fit in a record
+     */
+    @Override
+    public synchronized long append(byte type, String classId, String studentId, String studentName, int capacity,
+                                    int clock) {
+        if (classId.length() > MAX_CLASS_ID || studentName.length() > MAX_NAME) {
+            throw new IllegalArgumentException("Record too long for the mapped journal: " + classId + ", " + studentName);
+        }
+        if (position == SEGMENT_RECORDS) {
+            try {
+                rotate();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        scratch.clear();
+        scratch.put(TYPE, type);
+        scratch.put(CLASS_ID_LENGTH, (byte) classId.length());
+        scratch.put(NAME_LENGTH, (byte) studentName.length());
+        scratch.putShort(STUDENT_ID, (short) (studentId.isEmpty() ? -1 : Roster.encode(studentId)));
+        scratch.putInt(CAPACITY, capacity);
+        for (int i = 0; i < MAX_CLASS_ID; i++) {
+            scratch.putChar(CLASS_ID + 2 * i, i < classId.length() ? classId.charAt(i) : 0);
+        }
+        for (int i = 0; i < MAX_NAME; i++) {
+            scratch.putChar(NAME + 2 * i, i < studentName.length() ? studentName.charAt(i) : 0);
+        }
+        scratch.putInt(CLOCK, clock);
+        crc.reset();
+        crc.update(scratch.array(), TYPE, RECORD_SIZE - TYPE);
+        scratch.putInt(CHECKSUM, (int) crc.getValue());
+
+        mapping.put(position * RECORD_SIZE, scratch, 0, RECORD_SIZE);
+        position++;
+        appended++;
+        notifyAll();
+        return appended;
+    }
+
+    @Override
+    public synchronized void awaitDurable(long sequence) {
+        boolean interrupted = false;
+        while (durable < sequence && failure == null) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durable < sequence) {
+            throw new UncheckedIOException("Journal failed", failure);
+        }
+    }
+
+    /**
+     * Flusher thread: forces the slots written since the previous pass
+     */
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer target;
+            long batchEnd;
+            int from, to;
+            synchronized (this) {
+                while (appended == durable) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                target = mapping;
+                batchEnd = appended;
+                from = forced;
+                to = position;
+            }
+            try {
+                target.force(from * RECORD_SIZE, (to - from) * RECORD_SIZE);
+            }
+            catch (UncheckedIOException e) {
+                synchronized (this) {
+                    failure = e.getCause();
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                // a rotation meanwhile forced the whole segment already
+                if (target == mapping) {
+                    forced = Math.max(forced, to);
+                }
+                durable = Math.max(durable, batchEnd);
+                notifyAll();
+            }
+        }
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * SEGMENTS * * * * * * * * * * * * * * * * * * * */
+
+    @Override
+    public synchronized long getSegmentRecords() {
+        return position;
+    }
+
+    @Override
+    public synchronized long rotate() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        MappedByteBuffer next = map(segment + 1, FileChannel.MapMode.READ_WRITE);
+        mapping.force();
+        durable = appended;
+        notifyAll();
+        mapping = next;
+        segment++;
+        position = 0;
+        forced = 0;
+        debug("Journal: started segment " + segment + ".");
+        return segment;
+    }
+
+    @Override
+    public void deleteSegmentsBefore(long first) throws IOException {
+        for (long old : Journal.segments(directory, SEGMENT_SUFFIX)) {
+            if (old < first) {
+                Files.deleteIfExists(Journal.segmentFile(directory, old, SEGMENT_SUFFIX));
+            }
+        }
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * REPLAY * * * * * * * * * * * * * * * * * * * */
+
+    @Override
+    public int replay(long first, Replayer replayer) throws IOException {
+        int replayed = 0;
+        // reused by every record: each slot is copied into the same buffer, and read in place
+        ByteBuffer fields = ByteBuffer.allocate(RECORD_SIZE);
+        CRC32C check = new CRC32C();
+        char[] classIdChars = new char[MAX_CLASS_ID];
+        char[] nameChars = new char[MAX_NAME];
+        String[] knownClassIds = new String[KNOWN_CLASS_IDS];
+        for (long number : Journal.segments(directory, SEGMENT_SUFFIX)) {
+            if (number < first) {
+                continue;
+            }
+            MappedByteBuffer segmentMapping;
+            synchronized (this) {
+                segmentMapping = number == segment ? mapping : map(number, FileChannel.MapMode.READ_ONLY);
+            }
+            int slots = segmentMapping.capacity() / RECORD_SIZE;
+            for (int slot = 0; slot < slots && isValid(segmentMapping, slot, fields, check); slot++) {
+                int classIdLength = fields.get(CLASS_ID_LENGTH);
+                for (int i = 0; i < classIdLength; i++) {
+                    classIdChars[i] = fields.getChar(CLASS_ID + 2 * i);
+                }
+                String classId = classIdOf(classIdChars, classIdLength, knownClassIds);
+                // opens, closes and the others carry neither a student nor a name
+                short studentId = fields.getShort(STUDENT_ID);
+                int nameLength = fields.get(NAME_LENGTH);
+                for (int i = 0; i < nameLength; i++) {
+                    nameChars[i] = fields.getChar(NAME + 2 * i);
+                }
+                replayer.apply(fields.get(TYPE), classId, studentId < 0 ? "" : Roster.decode(studentId),
+                        nameLength == 0 ? "" : new String(nameChars, 0, nameLength), fields.getInt(CAPACITY),
+                        fields.getInt(CLOCK));
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Gives the class id held in the chars, reusing the string made for an
+     * earlier record of the same class, so records of classes written in
+     * turns don't make one each
+     * @param known the class ids made so far, by hash (replaced on a collision)
+     * @return the class id
+     */
+    private static String classIdOf(char[] chars, int length, String[] known) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (known.length - 1);
+        String classId = known[index];
+        // String.hashCode is the same hash of the same chars
+        if (classId != null && classId.length() == length && classId.hashCode() == hash) {
+            int i = 0;
+            while (i < length && classId.charAt(i) == chars[i]) {
+                i++;
+            }
+            if (i == length) {
+                return classId;
+            }
+        }
+        classId = new String(chars, 0, length);
+        known[index] = classId;
+        return classId;
+    }
+
+    /**
+     * Copies a slot out of the mapping and checks it holds a whole record
+     * @param mapping the segment's mapping
+     * @param slot number of the slot
+     * @param record receives the slot's bytes (a heap buffer of RECORD_SIZE bytes)
+     * @param check checksum used for the check
+     * @return true if the slot holds a record, false if it's empty, torn or corrupted
+     */
+    private static boolean isValid(MappedByteBuffer mapping, int slot, ByteBuffer record, CRC32C check) {
+        mapping.get(slot * RECORD_SIZE, record.array(), 0, RECORD_SIZE);
+        if (record.get(TYPE) == 0) {
+            return false;
+        }
+        check.reset();
+        check.update(record.array(), TYPE, RECORD_SIZE - TYPE);
+        return record.getInt(CHECKSUM) == (int) check.getValue();
+    }
+}
@@ -13,6 +13,7 @@ import static io.grpc.Status.INVALID_ARGUMENT;
 import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode.*;
 
 import pt.ulisboa.tecnico.classes.exceptions.InvalidCapacityException;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidClassException;
 import pt.ulisboa.tecnico.classes.exceptions.InvalidStudentException;
 
 import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode.OK;
@@ -20,13 +21,15 @@ import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCod
 
 
 public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceImplBase {
-    private ClassDomain class_ = ClassDomain.getInstance();
+    private final ClassRegistry registry = ClassRegistry.getInstance();
     private boolean debug;
     private String type;
 
     private final Debug _debugger = new Debug();
     private final Validate _validate = new Validate();
 
+    private final WriteAheadLog log = WriteAheadLog.getInstance();
+
     private ClassServerFrontend classServerFrontend = ClassServerFrontend.getInstanceWithoutArgs();
 
     /**
@@ -70,6 +73,9 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
         }
 
         try{
+            // checked before the class is created: its id must fit in the log
+            _validate.validate_class(request.getClassId());
+            ClassDomain class_ = registry.getOrCreateClassDomain(request.getClassId());
             synchronized (class_){
                 //check is the server is active
                 if(!class_.isActive()){
@@ -85,8 +91,8 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
                 class_.openEnrollments(request.getCapacity());
             }
 
-            classServerFrontend.addWrite(classServerFrontend.getClock(), "open" + ":" + String.valueOf(request.getCapacity()));
-            classServerFrontend.setClock(classServerFrontend.getClock() + 1);
+            // the open is logged with its share of the seats, which replaces the seats held before
+            log.awaitDurable(classServerFrontend.recordOpen(class_, request.getCapacity(), request.getQuorumWrites()));
 
             OpenEnrollmentsResponse response = OpenEnrollmentsResponse.newBuilder().setCode(OK).build();
 
@@ -137,7 +143,7 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
-        catch (InvalidCapacityException e) {
+        catch (InvalidCapacityException | InvalidClassException e) {
             responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
         }
 
@@ -158,6 +164,8 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
         try{
             // request has no parameters so no need to validate it!
 
+            ClassDomain class_ = registry.getClassDomain(request.getClassId());
+            long logged;
             synchronized (class_){
                 //check is the server is active
                 if(!class_.isActive()){
@@ -169,10 +177,12 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
                 }
 
                 class_.closeEnrollments();
-            }
 
-            classServerFrontend.addWrite(classServerFrontend.getClock(), "close" + ":" + "0");
-            classServerFrontend.setClock(classServerFrontend.getClock() + 1);
+                // recorded after the enrolls recorded while the class was open, without waiting for
+                // the ones under way (they back out), and after the promotions, recorded under the lock
+                logged = log.logWrite(request.getClassId(), classServerFrontend.recordWrite(request.getClassId(), Writes.close()));
+            }
+            log.awaitDurable(logged);
 
             CloseEnrollmentsResponse response = CloseEnrollmentsResponse.newBuilder().setCode(OK).build();
 
@@ -230,29 +240,33 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
         try{
             // request has no parameters so no need to validate it!
 
-            ClassesDefinitions.ClassState.Builder classStateBuilder = ClassesDefinitions.ClassState.newBuilder();
-            synchronized (class_) {
-                //check is the server is active
-                if(!class_.isActive()){
-                    throw new InactiveServerException();
-                }
-
-                // Build ClassState
-                ClassesDefinitions.Student.Builder StudentBuilder = ClassesDefinitions.Student.newBuilder();
-                classStateBuilder.setCapacity(class_.getCapacity());
-                classStateBuilder.setOpenEnrollments(class_.isOpen());
-                class_.getStudentsDiscarded().forEach(
-                        (id, name) ->
-                                classStateBuilder.addDiscarded(
-                                        StudentBuilder.setStudentId(id).setStudentName(name).build()));
-                class_.getStudentsEnrolled().forEach(
-                        (id, name) ->
-                                classStateBuilder.addEnrolled(
-                                        StudentBuilder.setStudentId(id).setStudentName(name).build()));
-                classStateBuilder.build();
+            ClassDomain class_ = registry.getClassDomain(request.getClassId());
+            //check is the server is active
+            if(!class_.isActive()){
+                throw new InactiveServerException();
             }
 
-            ListClassResponse response = ListClassResponse.newBuilder().setCode(OK).setClassState(classStateBuilder).build();
+            ListClassResponse response;
+            long staleness;
+            // the latest state, only known for sure by the primary while it holds the read lease
+            if (request.getFresh() && !classServerFrontend.awaitReadLease()) {
+                response = ListClassResponse.newBuilder().setCode(NOT_FRESH).build();
+            }
+            // older than the professor accepts: refused, pointing at a fresher replica if known
+            else if ((staleness = classServerFrontend.checkStaleness(class_, request.getMaxStalenessMs())) >= 0) {
+                response = ListClassResponse.newBuilder().setCode(TOO_STALE).setStalenessMs(staleness)
+                        .setRedirect(classServerFrontend.getFresherReplica()).build();
+            }
+            else {
+                // ClassState from the latest published snapshot, without taking any lock
+                // nor holding enrolls off; it is built once per version and shared with
+                // the other reads. A fresh read reflects every write answered before it,
+                // and may hold enrolls off for a copy if they keep it from copying the class
+                ClassSnapshot snapshot = request.getFresh() ? class_.getCurrentSnapshot() : class_.getSnapshot();
+                ClassesDefinitions.ClassState classState = snapshot.getClassState();
+
+                response = ListClassResponse.newBuilder().setCode(OK).setClassState(classState).build();
+            }
 
             if(isDebug()){
                 _debugger.debug_listClassResponse(response);
@@ -274,6 +288,87 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
 
     }
 
+    /**
+     * Process the listClassChanges request and send a response
+     * containing only what changed since the version the professor last saw
+     *
+     * @param request
+     * @param responseObserver
+     */
+    @Override
+    public void listClassChanges(ListClassChangesRequest request, StreamObserver<ListClassChangesResponse> responseObserver){
+        if(isDebug()){
+            _debugger.debug_listClassChangesRequest(request);
+        }
+
+        ListClassChangesResponse response;
+        long staleness;
+        ClassDomain class_ = registry.getClassDomain(request.getClassId());
+        if(!class_.isActive()){
+            response = ListClassChangesResponse.newBuilder().setCode(INACTIVE_SERVER).build();
+        }
+        else if(request.getFresh() && !classServerFrontend.awaitReadLease()){
+            response = ListClassChangesResponse.newBuilder().setCode(NOT_FRESH).build();
+        }
+        // older than the professor accepts: refused, pointing at a fresher replica if known
+        else if((staleness = classServerFrontend.checkStaleness(class_, request.getMaxStalenessMs())) >= 0){
+            response = ListClassChangesResponse.newBuilder().setCode(TOO_STALE).setStalenessMs(staleness)
+                    .setRedirect(classServerFrontend.getFresherReplica()).build();
+        }
+        else{
+            // served from the latest published snapshot and the class's history, without taking
+            // any lock nor holding enrolls off (a fresh read may, as in listClass)
+            response = ListClassChangesResponse.newBuilder().setCode(OK)
+                    .setChanges(class_.getChangesSince(request.getEpoch(), request.getSinceVersion(),
+                            request.getOmitFullState(), request.getFresh())).build();
+        }
+
+        if(isDebug()){
+            _debugger.debug_listClassChangesResponse(response);
+        }
+
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Process the listClassStream request and stream the class's state
+     * in bounded pages, as the professor becomes ready for them
+     *
+     * @param request
+     * @param responseObserver
+     */
+    @Override
+    public void listClassStream(ListClassStreamRequest request, StreamObserver<ListClassStreamResponse> responseObserver){
+        if(isDebug()){
+            _debugger.debug_listClassStreamRequest(request);
+        }
+
+        if (Context.current().isCancelled()) {
+            responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Time's up!").asRuntimeException());
+            return;
+        }
+
+        ClassDomain class_ = registry.getClassDomain(request.getClassId());
+        if(!class_.isActive()){
+            if(isDebug()){
+                _debugger.debug_listClassStreamResponse(INACTIVE_SERVER, 1);
+            }
+            responseObserver.onNext(ListClassStreamResponse.newBuilder().setCode(INACTIVE_SERVER).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        ClassStateStreamer<ListClassStreamResponse> streamer = new ClassStateStreamer<>(class_, request.getPageSize(),
+                responseObserver, page -> ListClassStreamResponse.newBuilder().setCode(OK).setPage(page).build());
+
+        if(isDebug()){
+            _debugger.debug_listClassStreamResponse(OK, streamer.getPageCount());
+        }
+
+        streamer.start();
+    }
+
     /**
      * Process the cancelEnrollment request and send a response
      * @param request
@@ -292,6 +387,8 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
             }
 
             //check is the server is active
+            ClassDomain class_ = registry.getClassDomain(request.getClassId());
+            String studentName;
             synchronized (class_){
                 if(!class_.isActive()){
                     throw new InactiveServerException();
@@ -301,10 +398,18 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
                     throw new WritingNotSupportedException();
                 }
 
+                _validate.validate_class(request.getClassId());
                 _validate.validate_id(request.getStudentId());
 
-                class_.cancelEnrollment(request.getStudentId());
+                studentName = class_.cancelEnrollment(request.getStudentId());
             }
+            long logged = log.logWrite(request.getClassId(),
+                    classServerFrontend.recordWrite(request.getClassId(), Writes.cancel(request.getStudentId(), studentName)));
+
+            // the freed seat goes to the first waitlisted student
+            classServerFrontend.promoteWaitlisted(class_);
+
+            log.awaitDurable(logged);
 
             CancelEnrollmentResponse response = CancelEnrollmentResponse.newBuilder().setCode(OK).build();
             if(isDebug()){
@@ -342,7 +447,7 @@ public class ProfessorServiceImpl extends ProfessorServiceGrpc.ProfessorServiceI
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
-        catch (InvalidStudentException e) {
+        catch (InvalidStudentException | InvalidClassException e) {
             responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
         }
     }
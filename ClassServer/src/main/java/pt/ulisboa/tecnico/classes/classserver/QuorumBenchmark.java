@@ -0,0 +1,92 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.OpenEnrollmentsRequest;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorServiceGrpc;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.EnrollRequest;
+import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the cost of the consistency modes of a class: enroll
+ * throughput and latency when enrolls are answered right away (lazy)
+ * and when they wait for a majority of the replicas (quorum). Every
+ * thread sends enrolls one after the other, like a student does, to
+ * a running primary server, in a new class per mode.
+ *
+ * Usage: java QuorumBenchmark host:port [threads] [enrolls per thread]
+ */
+public class QuorumBenchmark {
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "localhost:8080";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        if (threads * perThread > 10000) {
+            throw new IllegalArgumentException("At most 10000 students (aluno0000 to aluno9999)");
+        }
+
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+        try {
+            run(channel, "lazy", false, threads, perThread);
+            run(channel, "quorum", true, threads, perThread);
+        }
+        finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void run(ManagedChannel channel, String mode, boolean quorumWrites, int threads, int perThread)
+            throws Exception {
+        String classId = "BENCH" + mode.toUpperCase() + System.currentTimeMillis();
+        int enrolls = threads * perThread;
+        // room for every enroll in the primary's share of the seats, however many replicas there are
+        ResponseCode opened = ProfessorServiceGrpc.newBlockingStub(channel).openEnrollments(OpenEnrollmentsRequest.newBuilder()
+                .setClassId(classId).setCapacity(enrolls * 16).setQuorumWrites(quorumWrites).build()).getCode();
+        if (opened != ResponseCode.OK) {
+            throw new IllegalStateException("Could not open class " + classId + ": " + opened);
+        }
+
+        StudentServiceGrpc.StudentServiceBlockingStub stub = StudentServiceGrpc.newBlockingStub(channel);
+        long[] latencies = new long[enrolls];
+        AtomicInteger failed = new AtomicInteger(0);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            workers.add(new Thread(() -> {
+                for (int i = first; i < first + perThread; i++) {
+                    EnrollRequest request = EnrollRequest.newBuilder().setClassId(classId).setStudent(Student.newBuilder()
+                            .setStudentId(String.format("aluno%04d", i)).setStudentName("Student " + i)).build();
+                    long start = System.nanoTime();
+                    ResponseCode code = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).enroll(request).getCode();
+                    latencies[i] = System.nanoTime() - start;
+                    if (code != ResponseCode.OK) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("%-6s  %6d enrolls  %8.0f enrolls/s  p50 %6.2f ms  p99 %6.2f ms  max %7.2f ms  (%d not OK)%n",
+                mode, enrolls, enrolls / seconds, percentile(latencies, 0.50), percentile(latencies, 0.99),
+                latencies[latencies.length - 1] / 1e6, failed.get());
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[Math.min((int) (sorted.length * fraction), sorted.length - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,114 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The primary's read lease: while every other replica has promised not
+ * to answer a write before the primary has it, the primary has every
+ * answered write, and serves the latest state of a class on its own.
+ *
+ * Both ends are kept here. The primary asks for the lease on its
+ * replication streams every RENEW_PERIOD, and counts each promise from
+ * when it asked, so it stops relying on a promise before the replica
+ * that made it (which counts from when it got the request) is freed of
+ * it, up to DRIFT of difference in how fast their clocks run.
+ *
+ * A replica only promises once the primary acknowledged every write it
+ * answered so far, so writes answered before the lease are covered too.
+ * A renewal extends the promise with writes still waiting for the
+ * primary, so those keep waiting for it.
+ */
+public class ReadLease {
+    /** How long a promise the primary asks for lasts, in milliseconds */
+    public static final int DURATION = 3000;
+
+    /** Time between renewals, in milliseconds */
+    public static final int RENEW_PERIOD = 1000;
+
+    /** Time the primary gives up on a promise early, in milliseconds */
+    private static final int DRIFT = 100;
+
+    // the primary's end: when each replica's promise ends
+    private final Map<String, Long> promises = new HashMap<>();
+
+    // a replica's end: whom it promised, and until when (0 if it didn't)
+    private String holder = null;
+    private long until = 0;
+
+    /**
+     * Keeps a replica's promise
+     * @param replica the replica that promised
+     * @param asked when the lease was asked for, in milliseconds
+     */
+    public synchronized void promised(String replica, long asked) {
+        promises.merge(replica, asked + DURATION - DRIFT, Math::max);
+        notifyAll();
+    }
+
+    /**
+     * @param replicas the other replicas
+     * @return true if every one of them is bound by its promise
+     */
+    public synchronized boolean isHeld(Collection<String> replicas) {
+        long now = System.currentTimeMillis();
+        for (String replica : replicas) {
+            if (promises.getOrDefault(replica, 0L) <= now) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every other replica is bound by its promise
+     * @param replicas the other replicas
+     * @param timeout the most time to wait, in milliseconds
+     * @return true if they were in time
+     */
+    public synchronized boolean awaitHeld(Collection<String> replicas, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!isHeld(replicas)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Promises the lease to a replica, unless another one holds it
+     * @param replica the replica asking for it
+     * @param duration how long the promise lasts, in milliseconds
+     * @param covered true if the replica has every write answered here
+     * @return true if promised
+     */
+    public synchronized boolean promise(String replica, int duration, boolean covered) {
+        long now = System.currentTimeMillis();
+        boolean renewal = replica.equals(holder) && until > now;
+        if (!renewal && (until > now || !covered)) {
+            return false;
+        }
+        holder = replica;
+        until = Math.max(until, now + duration);
+        return true;
+    }
+
+    /**
+     * @return the replica this server promised the lease to, or null if
+     * it isn't bound by a promise
+     */
+    public synchronized String getHolder() {
+        return until > System.currentTimeMillis() ? holder : null;
+    }
+
+    /**
+     * @return how long this server stays bound by its promise, in milliseconds
+     */
+    public synchronized long getRemaining() {
+        return Math.max(until - System.currentTimeMillis(), 0);
+    }
+}
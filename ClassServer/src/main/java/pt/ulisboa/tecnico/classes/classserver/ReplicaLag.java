@@ -0,0 +1,77 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How far behind the other replicas this server is, per class, as told
+ * by the gossip exchanges it starts, and by the answers to its
+ * replication streams. An exchange that went through
+ * brought every write the other replica had when it was sent, so the
+ * class misses none of its writes made before then: the class is as
+ * old as the time since, in milliseconds (counted from when it was
+ * sent, on this server's clock), and was as many writes behind as the
+ * exchange brought.
+ *
+ * A class is only as fresh as its oldest copy of another replica's
+ * writes; one never exchanged with a replica is as old as can be.
+ */
+public class ReplicaLag {
+    // a class's latest exchange with a replica that went through
+    private static final class Exchanged {
+        final long sentAt;
+        final int behind;
+
+        Exchanged(long sentAt, int behind) {
+            this.sentAt = sentAt;
+            this.behind = behind;
+        }
+    }
+
+    // by class, then by replica
+    private final Map<String, Map<String, Exchanged>> exchanged = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps an exchange that went through
+     * @param classId the class exchanged
+     * @param replica the other replica
+     * @param sentAt when the exchange was sent, in milliseconds
+     * @param behind the writes it brought that weren't here
+     */
+    public void caughtUp(String classId, String replica, long sentAt, int behind) {
+        exchanged.computeIfAbsent(classId, id -> new ConcurrentHashMap<>()).merge(replica,
+                new Exchanged(sentAt, behind), (known, received) -> received.sentAt >= known.sentAt ? received : known);
+    }
+
+    /**
+     * @param classId the class
+     * @param replicas the other replicas
+     * @return how old the class may be, in milliseconds: Long.MAX_VALUE
+     * if it was never exchanged with one of them, 0 if there are none
+     */
+    public long getStaleness(String classId, Collection<String> replicas) {
+        Map<String, Exchanged> byReplica = exchanged.getOrDefault(classId, Map.of());
+        long now = System.currentTimeMillis();
+        long staleness = 0;
+        for (String replica : replicas) {
+            Exchanged latest = byReplica.get(replica);
+            if (latest == null) {
+                return Long.MAX_VALUE;
+            }
+            staleness = Math.max(staleness, now - latest.sentAt);
+        }
+        return staleness;
+    }
+
+    /**
+     * @param classId the class
+     * @param replica the other replica
+     * @return the writes of the replica the class missed at the latest
+     * exchange with it, -1 if never exchanged
+     */
+    public int getBehind(String classId, String replica) {
+        Exchanged latest = exchanged.getOrDefault(classId, Map.of()).get(replica);
+        return latest == null ? -1 : latest.behind;
+    }
+}
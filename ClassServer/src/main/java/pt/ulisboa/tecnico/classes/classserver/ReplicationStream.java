@@ -0,0 +1,244 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerServiceGrpc;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateRequest;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.PropagateStateResponse;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes this server's writes to another replica as they happen, on one
+ * long-lived replicate stream, so they don't wait for a gossip round.
+ * Writes are sent in batches, at most WINDOW of them not yet acknowledged
+ * and only while the transport is ready for more (flow control). Each
+ * acknowledgement carries the replica's version vector, so the writes it
+ * has are no longer kept for it.
+ *
+ * A closed stream is opened again by the next write to push, at most once
+ * every REOPEN_DELAY, or on the next gossip round, which in the meantime
+ * passes the writes on as before.
+ *
+ * The primary also asks for its read lease on the stream, in a message
+ * without a class, one at a time.
+ */
+public class ReplicationStream implements ClientResponseObserver<PropagateStateRequest, PropagateStateResponse> {
+    /** Writes per message */
+    public static final int MAX_BATCH = 500;
+
+    /** Messages sent and not acknowledged yet */
+    public static final int WINDOW = 4;
+
+    /** Least time between attempts to open the stream, in milliseconds */
+    public static final long REOPEN_DELAY = 1000;
+
+    private final ClassServerFrontend frontend;
+
+    private final String target;
+
+    private final ClassServerServiceGrpc.ClassServerServiceStub stub;
+
+    // where batches are built and sent, off the threads recording writes
+    private final Executor executor;
+
+    private final boolean debug;
+
+    private ClientCallStreamObserver<PropagateStateRequest> requests = null; // null while closed
+
+    // classes with writes to push
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // the clock of the latest write of this server sent, per class
+    private final Map<String, Integer> sent = new HashMap<>();
+
+    private int unacknowledged = 0;
+
+    private long lastOpened = 0;
+
+    // when the read lease being asked for was asked for, 0 if it isn't
+    private long leaseAsked = 0;
+
+    // when each message still to be answered was sent, oldest first
+    private final ArrayDeque<Long> sentAt = new ArrayDeque<>();
+
+    /**
+     * Constructor
+     * @param frontend holds the writes to push
+     * @param target the replica's address
+     * @param stub the replica's asynchronous stub
+     * @param executor where batches are built and sent
+     * @param debug true if the debug mode is active
+     */
+    public ReplicationStream(ClassServerFrontend frontend, String target, ClassServerServiceGrpc.ClassServerServiceStub stub,
+                             Executor executor, boolean debug) {
+        this.frontend = frontend;
+        this.target = target;
+        this.stub = stub;
+        this.executor = executor;
+        this.debug = debug;
+    }
+
+    private void debug(String debugMessage) {
+        if (debug)
+            System.err.println(debugMessage);
+    }
+
+    /**
+     * Opens the stream, unless it is open, and pushes
+     * every write the replica wasn't known to have
+     */
+    public synchronized void open() {
+        if (requests != null) {
+            return;
+        }
+        debug("Opening a replication stream to " + target + ".");
+        lastOpened = System.currentTimeMillis();
+        stub.replicate(this);
+        for (String classId : frontend.getWrittenClasses()) {
+            wake(classId);
+        }
+    }
+
+    /**
+     * Closes the stream, if open
+     */
+    public synchronized void close() {
+        if (requests != null) {
+            requests.onCompleted();
+            closed();
+        }
+    }
+
+    private void closed() {
+        requests = null;
+        sent.clear();
+        unacknowledged = 0;
+        leaseAsked = 0;
+        sentAt.clear();
+    }
+
+    /**
+     * Asks the replica for the read lease, unless an earlier request
+     * is still to be answered
+     */
+    public synchronized void renewLease() {
+        long now = System.currentTimeMillis();
+        if (requests == null && now - lastOpened >= REOPEN_DELAY) {
+            open();
+        }
+        if (requests == null || (leaseAsked != 0 && now - leaseAsked < ReadLease.DURATION)) {
+            return;
+        }
+        leaseAsked = now;
+        unacknowledged++;
+        sentAt.add(now);
+        requests.onNext(PropagateStateRequest.newBuilder()
+                .setReplica(frontend.getReplica()).setLeaseDuration(ReadLease.DURATION).build());
+    }
+
+    /**
+     * Pushes the writes of a class recorded since the last push, soon
+     * @param classId the class written
+     */
+    public void wake(String classId) {
+        dirty.add(classId);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                scheduled.set(false);
+                drain();
+            });
+        }
+    }
+
+    /**
+     * Sends batches while the window and the transport allow
+     */
+    private synchronized void drain() {
+        if (requests == null && System.currentTimeMillis() - lastOpened >= REOPEN_DELAY) {
+            open();
+        }
+        Iterator<String> classIds = dirty.iterator();
+        while (requests != null && unacknowledged < WINDOW && requests.isReady() && classIds.hasNext()) {
+            String classId = classIds.next();
+            // removed first: a write recorded from now on wakes the class again
+            classIds.remove();
+            PropagateStateRequest request =
+                    frontend.buildStreamRequest(classId, target, sent.getOrDefault(classId, -1), MAX_BATCH);
+            if (request == null) {
+                continue;
+            }
+            sent.put(classId, request.getWrites(request.getWritesCount() - 1).getClock());
+            if (request.getWritesCount() == MAX_BATCH) {
+                dirty.add(classId);
+            }
+            unacknowledged++;
+            sentAt.add(System.currentTimeMillis());
+            requests.onNext(request);
+        }
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<PropagateStateRequest> requestStream) {
+        requests = requestStream;
+        requestStream.setOnReadyHandler(this::schedule);
+    }
+
+    @Override
+    public void onNext(PropagateStateResponse response) {
+        frontend.heardFrom(target);
+        long asked = 0;
+        Long answeredSentAt;
+        synchronized (this) {
+            unacknowledged = Math.max(unacknowledged - 1, 0);
+            // answered in the order sent
+            answeredSentAt = sentAt.poll();
+            if (response.getClassId().isEmpty()) {
+                asked = leaseAsked;
+                leaseAsked = 0;
+            }
+            else if (!response.getCode().equals(ResponseCode.OK)) {
+                // left for the next gossip round
+                debug("Replica " + target + " answered the replication stream with " + response.getCode() + ".");
+                sent.remove(response.getClassId());
+            }
+        }
+        if (response.getClassId().isEmpty()) {
+            if (response.getLeaseGranted() && asked != 0) {
+                frontend.leasePromised(target, asked);
+            }
+        }
+        else if (response.getCode().equals(ResponseCode.OK)) {
+            frontend.acknowledge(response.getClassId(), target, response.getVersionVectorMap());
+            if (answeredSentAt != null) {
+                frontend.caughtUpOnStream(response.getClassId(), target, response.getVersionVectorMap(), answeredSentAt);
+            }
+        }
+        schedule();
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        debug("Replication stream to " + target + " failed: " + Status.fromThrowable(throwable).getCode());
+        closed();
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        closed();
+    }
+}
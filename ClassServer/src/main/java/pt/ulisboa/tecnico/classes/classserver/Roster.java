@@ -0,0 +1,270 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.exceptions.InvalidStudentException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Compact set of students, keyed by student id.
+ * Ids have the form "aluno" plus four digits, so each one is encoded as
+ * an int between 0 and 9999 and used as a direct index: a slot holds the
+ * student's name, and a bitset of members is kept for iteration in id
+ * order. Slots and bits are allocated in chunks, the first time an id
+ * in the chunk is used, so a roster only takes room for the ranges of
+ * ids it holds, and nothing outlives it.
+ * Membership checks neither allocate nor hash strings, and every
+ * operation is lock-free.
+ */
+public class Roster {
+    private static final String PREFIX = "aluno";
+    private static final int ID_DIGITS = 4;
+    private static final int MAX_IDS = 10000;
+
+    // slots are allocated in chunks, the first time an id in the chunk is used
+    private static final int CHUNK_SIZE = 128;
+    private static final int N_CHUNKS = (MAX_IDS + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+    /**
+     * The students of CHUNK_SIZE consecutive ids
+     */
+    private static final class Chunk {
+        // name of each student, null if absent
+        final AtomicReferenceArray<String> names = new AtomicReferenceArray<>(CHUNK_SIZE);
+
+        // one bit per id, set while the student is in the roster
+        final AtomicLongArray members = new AtomicLongArray(CHUNK_SIZE / 64);
+    }
+
+    private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(N_CHUNKS);
+
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /* * * * * * * * * * * * * * * * * * * * ENCODING * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * Encodes a student id as an int, without allocating
+     * @param studentId the id to encode (eg. aluno1234)
+     * @return the encoded id (eg. 1234), or -1 if it's not a valid id
+     */
+    public static int encode(String studentId) {
+        if (studentId == null || studentId.length() != PREFIX.length() + ID_DIGITS || !studentId.startsWith(PREFIX)) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = PREFIX.length(); i < studentId.length(); i++) {
+            char c = studentId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    /**
+     * Decodes an int produced by encode back into a student id
+     * @param id the encoded id (eg. 1234)
+     * @return the student id (eg. aluno1234)
+     */
+    public static String decode(int id) {
+        char[] chars = new char[PREFIX.length() + ID_DIGITS];
+        PREFIX.getChars(0, PREFIX.length(), chars, 0);
+        for (int i = chars.length - 1; i >= PREFIX.length(); i--) {
+            chars[i] = (char) ('0' + id % 10);
+            id /= 10;
+        }
+        return new String(chars);
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * ROSTER * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * @return number of students in the roster
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @param studentId the student's id
+     * @return true if the student is in the roster
+     */
+    public boolean containsKey(String studentId) {
+        int id = encode(studentId);
+        return id >= 0 && slot(id) != null;
+    }
+
+    /**
+     * @param studentId the student's id
+     * @return the student's name, or null if the student isn't in the roster
+     */
+    public String get(String studentId) {
+        int id = encode(studentId);
+        if (id < 0) {
+            return null;
+        }
+        return slot(id);
+    }
+
+    /**
+     * Adds a student, unless already present
+     * @param studentId the student's id
+     * @param studentName the student's name
+     * @return the name already in the roster, or null if the student was added
+     */
+    public String putIfAbsent(String studentId, String studentName) {
+        int id = checkedEncode(studentId, studentName);
+        Chunk chunk = chunk(id, true);
+        int offset = id % CHUNK_SIZE;
+        while (!chunk.names.compareAndSet(offset, null, studentName)) {
+            String current = chunk.names.get(offset);
+            if (current != null) {
+                return current;
+            }
+        }
+        size.incrementAndGet();
+        setMember(chunk, offset, true);
+        return null;
+    }
+
+    /**
+     * Adds a student, replacing the name if already present
+     * @param studentId the student's id
+     * @param studentName the student's name
+     * @return the name previously in the roster, or null if there was none
+     */
+    public String put(String studentId, String studentName) {
+        int id = checkedEncode(studentId, studentName);
+        Chunk chunk = chunk(id, true);
+        int offset = id % CHUNK_SIZE;
+        String previous = chunk.names.getAndSet(offset, studentName);
+        if (previous != null) {
+            return previous;
+        }
+        size.incrementAndGet();
+        setMember(chunk, offset, true);
+        return null;
+    }
+
+    /**
+     * Removes a student
+     * @param studentId the student's id
+     * @return the removed student's name, or null if the student wasn't in the roster
+     */
+    public String remove(String studentId) {
+        int id = encode(studentId);
+        if (id < 0) {
+            return null;
+        }
+        Chunk chunk = chunk(id, false);
+        if (chunk == null) {
+            return null;
+        }
+        int offset = id % CHUNK_SIZE;
+        String previous = chunk.names.getAndSet(offset, null);
+        if (previous == null) {
+            return null;
+        }
+        setMember(chunk, offset, false);
+        // the student may have been added back meanwhile
+        if (chunk.names.get(offset) != null) {
+            setMember(chunk, offset, true);
+        }
+        size.decrementAndGet();
+        return previous;
+    }
+
+    /**
+     * Removes every student
+     */
+    public void clear() {
+        forEachId(id -> remove(decode(id)));
+    }
+
+    /**
+     * Performs the action for each student, in ascending id order
+     * @param action receives each student's id and name
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        forEachId(id -> {
+            String name = slot(id);
+            if (name != null) {
+                action.accept(decode(id), name);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        forEach((id, name) -> {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(id).append('=').append(name);
+        });
+        return builder.append('}').toString();
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * AUXILIARIES * * * * * * * * * * * * * * * * * * */
+
+    private static int checkedEncode(String studentId, String studentName) {
+        int id = encode(studentId);
+        if (id < 0) {
+            throw new InvalidStudentException(studentId, studentName);
+        }
+        return id;
+    }
+
+    private String slot(int id) {
+        Chunk chunk = chunk(id, false);
+        return chunk == null ? null : chunk.names.get(id % CHUNK_SIZE);
+    }
+
+    private Chunk chunk(int id, boolean create) {
+        int index = id / CHUNK_SIZE;
+        Chunk chunk = chunks.get(index);
+        if (chunk == null && create) {
+            chunks.compareAndSet(index, null, new Chunk());
+            chunk = chunks.get(index);
+        }
+        return chunk;
+    }
+
+    private static void setMember(Chunk chunk, int offset, boolean member) {
+        int word = offset >>> 6;
+        long bit = 1L << (offset & 63);
+        long current;
+        do {
+            current = chunk.members.get(word);
+        } while (!chunk.members.compareAndSet(word, current, member ? current | bit : current & ~bit));
+    }
+
+    private interface IdConsumer {
+        void accept(int id);
+    }
+
+    private void forEachId(IdConsumer action) {
+        for (int index = 0; index < chunks.length(); index++) {
+            Chunk chunk = chunks.get(index);
+            if (chunk == null) {
+                continue;
+            }
+            for (int word = 0; word < chunk.members.length(); word++) {
+                long bits = chunk.members.get(word);
+                while (bits != 0) {
+                    int bit = Long.numberOfTrailingZeros(bits);
+                    action.accept(index * CHUNK_SIZE + word * 64 + bit);
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassStatePage;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.FetchSnapshotResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode.OK;
+
+/**
+ * Streams the state of every class to a replica being brought up, in
+ * bounded chunks, one class after the other. Each class is sent together
+ * with its version vector at the time it was read, so the replica knows
+ * which writes of every replica the snapshot already includes, and its last chunk
+ * carries a checksum of all its students and the class's enrollment set,
+ * of the same writes, so the replica orders later writes as this one does. Chunks are only sent while the
+ * replica's transport is ready for them (flow control).
+ */
+public class SnapshotStreamer implements Runnable {
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+    public static final int MAX_CHUNK_SIZE = 5000;
+
+    private final ServerCallStreamObserver<FetchSnapshotResponse> responseObserver;
+
+    private final ClassServerFrontend frontend;
+
+    private final Iterator<ClassDomain> classes;
+
+    private final int chunkSize;
+
+    private final CRC32 checksum = new CRC32(); // of the chunks sent for the current class
+
+    // the class being streamed, null between classes
+    private ClassSnapshot snapshot = null;
+    private String classId;
+    private Map<String, Integer> versionVector;
+    private byte[] enrollments;
+    private long epoch;
+
+    private int from = 0; // number of the first student of the next chunk
+
+    private boolean done = false;
+
+    /**
+     * Constructor
+     * @param classes the classes to stream
+     * @param frontend holds the classes' version vectors
+     * @param chunkSize requested number of students per chunk, or 0 for the default
+     * @param responseObserver special interface for the server to call with its responses
+     */
+    public SnapshotStreamer(Collection<ClassDomain> classes, ClassServerFrontend frontend, int chunkSize,
+                            StreamObserver<FetchSnapshotResponse> responseObserver) {
+        this.responseObserver = (ServerCallStreamObserver<FetchSnapshotResponse>) responseObserver;
+        this.frontend = frontend;
+        this.classes = new ArrayList<>(classes).iterator();
+        this.chunkSize = chunkSize <= 0 ? DEFAULT_CHUNK_SIZE : Math.min(chunkSize, MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * Starts streaming; later chunks are sent as the replica becomes ready for them
+     */
+    public void start() {
+        responseObserver.setOnCancelHandler(this::cancel);
+        responseObserver.setOnReadyHandler(this);
+        run();
+    }
+
+    /**
+     * Sends chunks while the transport can take them
+     */
+    @Override
+    public synchronized void run() {
+        while (!done && responseObserver.isReady()) {
+            if (snapshot == null) {
+                if (!classes.hasNext()) {
+                    done = true;
+                    responseObserver.onCompleted();
+                    return;
+                }
+                nextClass(classes.next());
+            }
+            ClassStatePage chunk = snapshot.getPage(epoch, from, chunkSize);
+            update(checksum, chunk);
+            from += chunkSize;
+
+            FetchSnapshotResponse.Builder responseBuilder = FetchSnapshotResponse.newBuilder()
+                    .setCode(OK).setClassId(classId).putAllVersionVector(versionVector).setChunk(chunk);
+            // an empty class is still sent as one (empty) chunk
+            if (from >= snapshot.getStudentCount()) {
+                checksum.update(enrollments);
+                responseBuilder.setLastChunk(true).setChecksum((int) checksum.getValue())
+                        .setEnrollments(ByteString.copyFrom(enrollments));
+                snapshot = null;
+            }
+            responseObserver.onNext(responseBuilder.build());
+        }
+    }
+
+    private void nextClass(ClassDomain class_) {
+        classId = class_.getClassId();
+        // under the class's lock, so no merge of another replica's state (which
+        // takes it) lands between the version vector and the snapshot
+        synchronized (class_) {
+            // version vector first: no write it covers is missing from the snapshot.
+            // The enrollment set holds exactly the writes it covers
+            ClassWrites classWrites = frontend.get_writes(classId);
+            synchronized (classWrites) {
+                versionVector = classWrites.getVersionVector();
+                enrollments = classWrites.getEnrollments().toByteArray();
+            }
+            snapshot = class_.getCurrentSnapshot();
+            epoch = class_.getEpoch();
+        }
+        from = 0;
+        checksum.reset();
+    }
+
+    private synchronized void cancel() {
+        done = true;
+    }
+
+    /**
+     * Adds the students of a chunk to a class's checksum.
+     * Used by both ends of the transfer.
+     * @param checksum the checksum of the class's previous chunks
+     * @param chunk the next chunk
+     */
+    public static void update(CRC32 checksum, ClassStatePage chunk) {
+        for (Student student : chunk.getEnrolledList()) {
+            update(checksum, 'E', student);
+        }
+        for (Student student : chunk.getDiscardedList()) {
+            update(checksum, 'D', student);
+        }
+    }
+
+    private static void update(CRC32 checksum, char list, Student student) {
+        checksum.update((list + student.getStudentId() + ":" + student.getStudentName() + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+}
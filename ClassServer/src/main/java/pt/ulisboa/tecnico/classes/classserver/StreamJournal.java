@@ -0,0 +1,274 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Journal written with plain stream writes (FileOutputStream).
+ *
+ * Records are written by a single flusher thread which takes everything
+ * appended while the previous fsync was running and syncs it at once
+ * (group commit), so concurrent requests share fsyncs instead of paying
+ * one each.
+ *
+ * Each record is framed as [length][crc32][payload], so a record torn
+ * by a crash is detected and ignored on replay.
+ */
+public class StreamJournal implements Journal {
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int MAX_RECORD = 1 << 16;
+
+    private final Path directory;
+
+    private long segment; // number of the segment being appended to (guarded by this)
+
+    private FileOutputStream out; // the segment being appended to (guarded by this)
+
+    private long segmentRecords = 0; // records appended to the current segment (guarded by this)
+
+    private final boolean debug;
+
+    // records appended but not yet handed to the flusher (guarded by this)
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream flushing = new ByteArrayOutputStream();
+
+    private long appended = 0; // sequence number of the latest record appended (guarded by this)
+
+    private long durable = 0; // every record up to this one is on disk (guarded by this)
+
+    private IOException failure = null; // set if the log can't be written any more (guarded by this)
+
+    private final DataOutputStream record; // reused to serialize records (guarded by this)
+    private final ByteArrayOutputStream recordBytes;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Constructor
+     * Appends to the latest segment in the directory, if any
+     * @param directory the server's data directory
+     * @param debug true if the debug mode is active
+     */
+    public StreamJournal(Path directory, boolean debug) throws IOException {
+        this.directory = directory;
+        this.debug = debug;
+        this.recordBytes = new ByteArrayOutputStream();
+        this.record = new DataOutputStream(recordBytes);
+        Files.createDirectories(directory);
+        List<Long> segments = Journal.segments(directory, SEGMENT_SUFFIX);
+        this.segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        this.out = new FileOutputStream(segmentFile(segment).toFile(), true);
+
+        Thread flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void debug(String debugMessage) {
+        if (debug)
+            System.err.println(debugMessage);
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * APPEND * * * * * * * * * * * * * * * * * * * */
+
+    @Override
+    public synchronized long append(byte type, String classId, String studentId, String studentName, int capacity,
+                                    int clock) {
+        try {
+            recordBytes.reset();
+            record.writeByte(type);
+            record.writeUTF(classId);
+            record.writeUTF(studentId);
+            record.writeUTF(studentName == null ? "" : studentName);
+            record.writeInt(capacity);
+            record.writeInt(clock);
+            record.flush();
+
+            crc.reset();
+            crc.update(recordBytes.toByteArray());
+            DataOutputStream frame = new DataOutputStream(pending);
+            frame.writeInt(recordBytes.size());
+            frame.writeInt((int) crc.getValue());
+            recordBytes.writeTo(frame);
+            frame.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e); // in memory: never happens
+        }
+        appended++;
+        segmentRecords++;
+        notifyAll();
+        return appended;
+    }
+
+    @Override
+    public synchronized void awaitDurable(long sequence) {
+        boolean interrupted = false;
+        while (durable < sequence && failure == null) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durable < sequence) {
+            throw new UncheckedIOException("Write-ahead log failed", failure);
+        }
+    }
+
+    /**
+     * Flusher thread: writes and syncs every record appended while the
+     * previous batch was being synced
+     */
+    private void flushLoop() {
+        while (true) {
+            long batchEnd;
+            ByteArrayOutputStream batch;
+            FileOutputStream target;
+            synchronized (this) {
+                while (appended == durable) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batchEnd = appended;
+                target = out;
+                batch = pending;
+                pending = flushing;
+                flushing = batch;
+            }
+            try {
+                batch.writeTo(target);
+                target.getFD().sync();
+            }
+            catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                batch.reset();
+                durable = batchEnd;
+                notifyAll();
+            }
+        }
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * SEGMENTS * * * * * * * * * * * * * * * * * * * */
+
+    @Override
+    public synchronized long getSegmentRecords() {
+        return segmentRecords;
+    }
+
+    @Override
+    public synchronized long rotate() throws IOException {
+        boolean interrupted = false;
+        while (durable < appended && failure == null) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        FileOutputStream next = new FileOutputStream(segmentFile(segment + 1).toFile(), true);
+        out.close();
+        out = next;
+        segment++;
+        segmentRecords = 0;
+        debug("Write-ahead log: started segment " + segment + ".");
+        return segment;
+    }
+
+    @Override
+    public void deleteSegmentsBefore(long first) throws IOException {
+        for (long old : Journal.segments(directory, SEGMENT_SUFFIX)) {
+            if (old < first) {
+                Files.deleteIfExists(segmentFile(old));
+            }
+        }
+    }
+
+    private Path segmentFile(long number) {
+        return Journal.segmentFile(directory, number, SEGMENT_SUFFIX);
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * REPLAY * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * {@inheritDoc}
+     * In the current segment, a torn record is cut off the file,
+     * so new records aren't appended after it.
+     */
+    @Override
+    public int replay(long first, Replayer replayer) throws IOException {
+        int replayed = 0;
+        for (long number : Journal.segments(directory, SEGMENT_SUFFIX)) {
+            if (number >= first) {
+                replayed += replaySegment(number, replayer);
+            }
+        }
+        return replayed;
+    }
+
+    private int replaySegment(long number, Replayer replayer) throws IOException {
+        Path file = segmentFile(number);
+        int replayed = 0;
+        long valid = 0; // length of the segment up to the last good record
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            CRC32 check = new CRC32();
+            while (true) {
+                int length, checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        break;
+                    }
+                    payload = in.readNBytes(length);
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                check.reset();
+                check.update(payload);
+                if (payload.length != length || (int) check.getValue() != checksum) {
+                    debug("Write-ahead log: ignoring torn record after " + replayed + " records of segment " + number + ".");
+                    break;
+                }
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+                replayer.apply(fields.readByte(), fields.readUTF(), fields.readUTF(), fields.readUTF(), fields.readInt(),
+                        fields.readInt());
+                replayed++;
+                valid += 2 * Integer.BYTES + length;
+            }
+        }
+        synchronized (this) {
+            if (number == segment && valid < Files.size(file)) {
+                out.getChannel().truncate(valid);
+                out.getFD().sync();
+            }
+        }
+        return replayed;
+    }
+}
@@ -10,14 +10,16 @@ import pt.ulisboa.tecnico.classes.classserver.exceptions.*;
 import pt.ulisboa.tecnico.classes.Validate;
 import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.*;
 import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.WriteRequest;
 import io.grpc.stub.StreamObserver;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidClassException;
 import pt.ulisboa.tecnico.classes.exceptions.InvalidStudentException;
 import static io.grpc.Status.INVALID_ARGUMENT;
 import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode.*;
 import static pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
 
 public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBase {
-    private final ClassDomain _class = ClassDomain.getInstance();
+    private final ClassRegistry _registry = ClassRegistry.getInstance();
 
     private boolean _debug; // debug flag
 
@@ -25,6 +27,8 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
 
     private final Validate _validate = new Validate();
 
+    private final WriteAheadLog _log = WriteAheadLog.getInstance();
+
     public StudentServiceImpl(boolean debug) { _debug = debug; }
 
     public boolean isDebug() { return _debug; }
@@ -59,35 +63,33 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
         ListClassResponse.Builder builderResponse = ListClassResponse.newBuilder();
 
         try {
-            // response contains a ClassState -> which is also a message
-            ClassState.Builder classState = ClassState.newBuilder();
-
-            synchronized (_class) {
-                if (!_class.isActive()) {
-                    throw new InactiveServerException();
-                }
+            ClassDomain _class = _registry.getClassDomain(request.getClassId());
+            if (!_class.isActive()) {
+                throw new InactiveServerException();
+            }
 
+            // the latest state, only known for sure by the primary while it holds the read lease
+            long staleness;
+            if (request.getFresh() && !classServerFrontend.awaitReadLease()) {
+                builderResponse.setCode(NOT_FRESH);
+                builderResponse.setClassState(ClassState.getDefaultInstance());
+            }
+            // older than the student accepts: refused, pointing at a fresher replica if known
+            else if ((staleness = classServerFrontend.checkStaleness(_class, request.getMaxStalenessMs())) >= 0) {
+                builderResponse.setCode(TOO_STALE).setStalenessMs(staleness)
+                        .setRedirect(classServerFrontend.getFresherReplica());
+                builderResponse.setClassState(ClassState.getDefaultInstance());
+            }
+            else {
                 builderResponse.setCode(OK);
 
-                // classState contains capacity
-                int capacity = _class.getCapacity();
-                classState.setCapacity(capacity);
-
-                // classState contains openEnrollments
-                boolean openEnrollments = _class.isOpen();
-                classState.setOpenEnrollments(openEnrollments);
-
-                // classState contains enrolled students
-                ConcurrentHashMap<String, String> enrolledStudents = _class.getStudentsEnrolled();
-
-                enrolledStudents.forEach((studentId, studentName) -> classState.addEnrolled(Student.newBuilder().setStudentId(studentId).setStudentName(studentName).build()));
-
-                // classState contains discarded students
-                ConcurrentHashMap<String, String> discardedStudents = _class.getStudentsDiscarded();
-
-                discardedStudents.forEach((studentId, studentName) -> classState.addDiscarded(Student.newBuilder().setStudentId(studentId).setStudentName(studentName).build()));
+                // response contains a ClassState -> served from the latest published snapshot,
+                // without taking any lock nor holding enrolls off, and built once per version;
+                // a fresh read reflects every write answered before it, and may hold
+                // enrolls off for a copy if they keep it from copying the class alongside them
+                ClassSnapshot snapshot = request.getFresh() ? _class.getCurrentSnapshot() : _class.getSnapshot();
+                builderResponse.setClassState(snapshot.getClassState());
             }
-            builderResponse.setClassState(classState.build());
         }
         catch (InactiveServerException e) {
             builderResponse.setCode(INACTIVE_SERVER);
@@ -102,6 +104,81 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
         responseObserver.onCompleted();
     }
 
+    /**
+     * Implements the rpc listClassChanges, from the service StudentService, defined in the Contract,
+     * by sending only what changed in the class since the version the student last saw.
+     *
+     * @param request the message received
+     * @param responseObserver special interface for the server to call with its response
+     */
+    @Override
+    public void listClassChanges(ListClassChangesRequest request, StreamObserver<ListClassChangesResponse> responseObserver) {
+        if (Context.current().isCancelled()) {
+            responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Time's up!").asRuntimeException());
+            return;
+        }
+
+        debug("Received a listClassChanges request message since version: " + request.getSinceVersion());
+
+        ListClassChangesResponse response;
+        long staleness;
+        ClassDomain _class = _registry.getClassDomain(request.getClassId());
+        if (!_class.isActive()) {
+            response = ListClassChangesResponse.newBuilder().setCode(INACTIVE_SERVER).build();
+        }
+        else if (request.getFresh() && !classServerFrontend.awaitReadLease()) {
+            response = ListClassChangesResponse.newBuilder().setCode(NOT_FRESH).build();
+        }
+        else if ((staleness = classServerFrontend.checkStaleness(_class, request.getMaxStalenessMs())) >= 0) {
+            response = ListClassChangesResponse.newBuilder().setCode(TOO_STALE).setStalenessMs(staleness)
+                    .setRedirect(classServerFrontend.getFresherReplica()).build();
+        }
+        else {
+            // served from the latest published snapshot and the class's history, without taking
+            // any lock nor holding enrolls off (a fresh read may, as in listClass)
+            response = ListClassChangesResponse.newBuilder().setCode(OK)
+                    .setChanges(_class.getChangesSince(request.getEpoch(), request.getSinceVersion(),
+                            request.getOmitFullState(), request.getFresh())).build();
+        }
+
+        debug("About to send a listClassChanges response message with code: " + response.getCode());
+
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Implements the rpc listClassStream, from the service StudentService, defined in the Contract,
+     * by sending the class's state in bounded pages, as the student becomes ready for them.
+     *
+     * @param request the message received
+     * @param responseObserver special interface for the server to call with its responses
+     */
+    @Override
+    public void listClassStream(ListClassStreamRequest request, StreamObserver<ListClassStreamResponse> responseObserver) {
+        if (Context.current().isCancelled()) {
+            responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Time's up!").asRuntimeException());
+            return;
+        }
+
+        debug("Received a listClassStream request message.");
+
+        ClassDomain _class = _registry.getClassDomain(request.getClassId());
+        if (!_class.isActive()) {
+            debug("About to send a listClassStream response message with code: " + INACTIVE_SERVER);
+            responseObserver.onNext(ListClassStreamResponse.newBuilder().setCode(INACTIVE_SERVER).build());
+            responseObserver.onCompleted();
+            return;
+        }
+
+        ClassStateStreamer<ListClassStreamResponse> streamer = new ClassStateStreamer<>(_class, request.getPageSize(),
+                responseObserver, page -> ListClassStreamResponse.newBuilder().setCode(OK).setPage(page).build());
+
+        debug("About to stream " + streamer.getPageCount() + " listClassStream response messages with code: " + OK);
+
+        streamer.start();
+    }
+
     /**
      * Implements the rpc enroll, from the service StudentService, defined in the Contract,
      * by (1) enrolling the student passed in the message, if possible, and (2) sending a
@@ -124,21 +201,29 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
             String studentId = request.getStudent().getStudentId();
             String studentName = request.getStudent().getStudentName();
 
+            _validate.validate_class(request.getClassId());
             _validate.validate_enrollment(studentId, studentName);
 
             EnrollResponse.Builder builderResponse = EnrollResponse.newBuilder();
 
-            synchronized (_class) {
-                if (!_class.isActive()) {
-                    throw new InactiveServerException();
-                }
-                _class.addStudentEnrolled(studentId, studentName);
-            }
+            // lock-free admission: doesn't take the class monitor
+            // UPDATE LOGICAL CLOCK AND WRITES, only while the class is open, so before a close
+            ClassDomain _class = _registry.getClassDomain(request.getClassId());
+            WriteRequest[] admitted = new WriteRequest[1];
+            _class.enroll(studentId, studentName, (id, name) ->
+                    (admitted[0] = classServerFrontend.recordEnroll(_class, Writes.enroll(id, name))) != null);
+            WriteRequest recorded = admitted[0];
             builderResponse.setCode(OK);
 
-            // UPDATE LOGICAL CLOCK AND WRITES
-            classServerFrontend.addWrite(classServerFrontend.getClock(), studentId + ":" + studentName);
-            classServerFrontend.setClock(classServerFrontend.getClock() + 1);
+            // only answered once durable (the fsync is shared with concurrent requests)
+            _log.awaitDurable(_log.logWrite(request.getClassId(), recorded));
+
+            // and, in a class opened for quorum writes, once a majority of the replicas has it,
+            // and, while the primary holds the read lease, once the primary has it
+            if ((_class.isQuorumWrites() && !classServerFrontend.awaitQuorum(request.getClassId(), recorded))
+                    || !classServerFrontend.awaitLeaseHolder(request.getClassId(), recorded)) {
+                builderResponse.setCode(NOT_REPLICATED);
+            }
 
             EnrollResponse response = builderResponse.build();
 
@@ -161,6 +246,13 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
+        catch (WaitlistedException e) {
+            EnrollResponse response = EnrollResponse.newBuilder().setCode(FULL_CLASS_WAITLISTED).build();
+            debug("About to send an enroll response message with code: " + response.getCode());
+
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
         catch (ClassFullException e) {
             EnrollResponse response = EnrollResponse.newBuilder().setCode(FULL_CLASS).build();
             debug("About to send an enroll response message with code: " + response.getCode());
@@ -175,7 +267,80 @@ public class StudentServiceImpl extends StudentServiceGrpc.StudentServiceImplBas
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
-        catch (InvalidStudentException e) {
+        catch (InvalidStudentException | InvalidClassException e) {
+            responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    /**
+     * Implements the rpc enrollBatch, from the service StudentService, defined in the Contract,
+     * by (1) validating every student of the batch, (2) enrolling them in a single admission
+     * step, and (3) sending the result of each student's enrollment.
+     *
+     * @param request the message received
+     * @param responseObserver special interface for the server to call with its response
+     */
+    @Override
+    public void enrollBatch(EnrollBatchRequest request, StreamObserver<EnrollBatchResponse> responseObserver) {
+        if (Context.current().isCancelled()) {
+            responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Time's up!").asRuntimeException());
+            return;
+        }
+
+        debug("Received an enrollBatch request message with " + request.getStudentsCount() + " students.");
+
+        try {
+            _validate.validate_class(request.getClassId());
+            for (Student student : request.getStudentsList()) {
+                _validate.validate_enrollment(student.getStudentId(), student.getStudentName());
+            }
+
+            // UPDATE LOGICAL CLOCK AND WRITES, once for the students seated at once
+            // (and once for each one taking a seat later), only while the class is open
+            ClassDomain _class = _registry.getClassDomain(request.getClassId());
+            List<WriteRequest> written = new ArrayList<>();
+            List<ResponseCode> results = _class.enrollBatch(request.getStudentsList(), admitted -> {
+                List<WriteRequest.Builder> writes = new ArrayList<>();
+                for (Student student : admitted) {
+                    writes.add(Writes.enroll(student.getStudentId(), student.getStudentName()));
+                }
+                List<WriteRequest> recorded = classServerFrontend.recordEnrolls(_class, writes);
+                if (recorded == null) {
+                    return false;
+                }
+                written.addAll(recorded);
+                return true;
+            });
+
+            WriteRequest recorded = null;
+            long logged = 0;
+            for (WriteRequest write : written) {
+                logged = _log.logWrite(request.getClassId(), write);
+                recorded = write;
+            }
+
+            // the whole batch is made durable at once, and replicated to a majority at once if asked
+            _log.awaitDurable(logged);
+            boolean replicated = recorded == null
+                    || ((!_class.isQuorumWrites() || classServerFrontend.awaitQuorum(request.getClassId(), recorded))
+                        && classServerFrontend.awaitLeaseHolder(request.getClassId(), recorded));
+
+            EnrollBatchResponse response = EnrollBatchResponse.newBuilder().setCode(replicated ? OK : NOT_REPLICATED)
+                    .addAllResults(results).build();
+            debug("About to send an enrollBatch response message with code: " + response.getCode()
+                    + " (" + written.size() + " enrolled)");
+
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+        catch (InactiveServerException e) {
+            EnrollBatchResponse response = EnrollBatchResponse.newBuilder().setCode(INACTIVE_SERVER).build();
+            debug("About to send an enrollBatch response message with code: " + response.getCode());
+
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+        catch (InvalidStudentException | InvalidClassException e) {
             responseObserver.onError(INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
         }
     }
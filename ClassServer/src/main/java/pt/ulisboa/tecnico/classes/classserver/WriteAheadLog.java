@@ -0,0 +1,232 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.WriteRequest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Durable, append-only log of the changes made to the classes
+ * (enroll, cancel, open and close, each under the clock of the write it
+ * was recorded as, the class's quota of seats whenever
+ * seats are handed over, and how enrolls are answered), replayed when
+ * the server starts.
+ *
+ * Changes are applied first and logged afterwards; a request is only
+ * answered once its record is on disk. Concurrent requests share the
+ * cost of making their records durable (group commit).
+ *
+ * The records are kept by a Journal: plain stream writes by default, or
+ * a memory-mapped file. The log is split in numbered segments: a checkpoint
+ * rotates to a new segment, saves the classes, and then deletes the older
+ * segments.
+ */
+public class WriteAheadLog {
+    private static WriteAheadLog instance = null;
+
+    /** Journal kinds, chosen with the classserver.journal system property */
+    public static final String STREAM = "stream";
+    public static final String MAPPED = "mapped";
+
+    private final Journal journal; // null if the log is disabled
+
+    private final boolean debug;
+
+    /**
+     * Constructor (Singleton)
+     * @param journal where the records are kept, or null to keep the log disabled
+     * @param debug true if the debug mode is active
+     */
+    private WriteAheadLog(Journal journal, boolean debug) {
+        this.journal = journal;
+        this.debug = debug;
+    }
+
+    /**
+     * Opens (creating if needed) the log kept in the given directory.
+     * Must be called before the services are created.
+     * @param directory the server's data directory
+     * @param kind STREAM or MAPPED
+     * @param debug true if the debug mode is active
+     * @return the opened log
+     */
+    public static synchronized WriteAheadLog open(Path directory, String kind, boolean debug) throws IOException {
+        if (instance == null || instance.journal == null) {
+            Journal journal = MAPPED.equals(kind) ? new MappedJournal(directory, debug) : new StreamJournal(directory, debug);
+            instance = new WriteAheadLog(journal, debug);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the log opened by the server, or a disabled log (which
+     * keeps nothing) if none was opened
+     */
+    public static synchronized WriteAheadLog getInstance() {
+        if (instance == null)
+            instance = new WriteAheadLog(null, false);
+
+        return instance;
+    }
+
+    private void debug(String debugMessage) {
+        if (debug)
+            System.err.println(debugMessage);
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * APPEND * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * Logs a write accepted here (an enroll, cancel, open or close), under
+     * the clock it was named with, so replay gives it back the same id
+     * @param classId the class written
+     * @param write the write, as recorded
+     * @return the record's sequence number, 0 if the write isn't logged
+     */
+    public long logWrite(String classId, WriteRequest write) {
+        if (write.hasEnroll()) {
+            return append(Journal.ENROLL, classId, Writes.studentId(write), Writes.studentName(write), 0, write.getClock());
+        }
+        else if (write.hasCancel()) {
+            return append(Journal.CANCEL, classId, Writes.studentId(write), Writes.studentName(write), 0, write.getClock());
+        }
+        else if (write.hasOpen()) {
+            return append(Journal.OPEN, classId, "", "", write.getOpen().getCapacity(), write.getClock());
+        }
+        else if (write.hasClose()) {
+            return append(Journal.CLOSE, classId, "", "", 0, write.getClock());
+        }
+        // a grant: the quota it leaves is logged instead
+        return 0;
+    }
+
+    public long logQuota(String classId, int quota) {
+        return append(Journal.QUOTA, classId, "", "", quota, Journal.NO_CLOCK);
+    }
+
+    public long logMode(String classId, boolean quorumWrites) {
+        return append(Journal.MODE, classId, "", "", quorumWrites ? 1 : 0, Journal.NO_CLOCK);
+    }
+
+    private long append(byte type, String classId, String studentId, String studentName, int capacity, int clock) {
+        if (journal == null) {
+            return 0;
+        }
+        return journal.append(type, classId, studentId, studentName == null ? "" : studentName, capacity, clock);
+    }
+
+    /**
+     * Waits until the record with the given sequence number (and every
+     * record before it) is on disk
+     * @param sequence a sequence number returned by one of the log methods
+     * @throws java.io.UncheckedIOException if the log could not be written
+     */
+    public void awaitDurable(long sequence) {
+        if (journal != null && sequence > 0) {
+            journal.awaitDurable(sequence);
+        }
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * SEGMENTS * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * @return number of records appended to the current segment
+     */
+    public long getSegmentRecords() {
+        return journal == null ? 0 : journal.getSegmentRecords();
+    }
+
+    /**
+     * Closes the current segment, once all of it is on disk, and starts a new one.
+     * Every change logged before this call is in an older segment.
+     * @return number of the new segment
+     */
+    public long rotate() throws IOException {
+        return journal == null ? 0 : journal.rotate();
+    }
+
+    /**
+     * Deletes the segments a checkpoint made useless
+     * @param first number of the oldest segment to keep
+     */
+    public void deleteSegmentsBefore(long first) throws IOException {
+        if (journal != null) {
+            journal.deleteSegmentsBefore(first);
+        }
+    }
+
+    /* * * * * * * * * * * * * * * * * * * * * REPLAY * * * * * * * * * * * * * * * * * * * */
+
+    /**
+     * Reapplies the records of the log to the classes, in order, starting
+     * at the given segment (the older ones are covered by a checkpoint).
+     * Replayed changes are kept as writes again, under the ids they were
+     * accepted with, so the ones the other replicas never received are
+     * still passed on, and the other replicas tell the ones they have apart.
+     * @param registry the classes to rebuild
+     * @param frontend keeps the replayed writes
+     * @param first number of the first segment to replay
+     * @return number of records replayed
+     */
+    public int replay(ClassRegistry registry, ClassServerFrontend frontend, long first) throws IOException {
+        if (journal == null) {
+            return 0;
+        }
+        // the clock of the latest write of this server the checkpoint restored, per class
+        Map<String, Integer> checkpointed = new HashMap<>();
+        int replayed = journal.replay(first, (type, classId, studentId, studentName, capacity, clock) ->
+                apply(registry, frontend, checkpointed, type, classId, studentId, studentName, capacity, clock));
+        debug("Write-ahead log: replayed " + replayed + " records.");
+        return replayed;
+    }
+
+    private static void apply(ClassRegistry registry, ClassServerFrontend frontend, Map<String, Integer> checkpointed,
+                              byte type, String classId, String studentId, String studentName, int capacity, int clock)
+            throws IOException {
+        ClassDomain class_ = registry.getOrCreateClassDomain(classId);
+        switch (type) {
+            case Journal.ENROLL:
+                class_.replayEnroll(studentId, studentName);
+                replayWrite(frontend, checkpointed, classId, Writes.enroll(studentId, studentName), clock);
+                break;
+            case Journal.CANCEL:
+                class_.replayCancel(studentId, studentName);
+                replayWrite(frontend, checkpointed, classId, Writes.cancel(studentId, studentName), clock);
+                break;
+            case Journal.OPEN:
+                class_.replayOpen(capacity);
+                replayWrite(frontend, checkpointed, classId, Writes.open(capacity), clock);
+                break;
+            case Journal.CLOSE:
+                class_.replayClose();
+                replayWrite(frontend, checkpointed, classId, Writes.close(), clock);
+                break;
+            case Journal.QUOTA:
+                // the seats handed over meanwhile were passed on already
+                class_.replayQuota(capacity);
+                break;
+            case Journal.MODE:
+                class_.setQuorumWrites(capacity != 0);
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log record: " + type);
+        }
+    }
+
+    /**
+     * Keeps a replayed write under its id, unless the checkpoint restored
+     * it already. Writes are logged in the order they were answered, not
+     * in clock order, so only the version vector the checkpoint restored
+     * (not the one replay advances) tells which ones it had.
+     */
+    private static void replayWrite(ClassServerFrontend frontend, Map<String, Integer> checkpointed, String classId,
+                                    WriteRequest.Builder write, int clock) {
+        int covered = checkpointed.computeIfAbsent(classId,
+                id -> frontend.get_writes(id).getVersionVector().getOrDefault(frontend.getReplica(), -1));
+        if (clock > covered) {
+            frontend.replayWrite(classId, write.setClock(clock).setReplica(frontend.getReplica()).build());
+        }
+    }
+}
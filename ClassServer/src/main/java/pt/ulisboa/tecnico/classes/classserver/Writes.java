@@ -0,0 +1,54 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.*;
+
+/**
+ * Builds and reads the typed writes the servers gossip to each other.
+ * Student ids travel encoded as integers (see Roster.encode).
+ */
+public final class Writes {
+    private static final int MAX_STUDENT_ID = 9999;
+
+    private Writes() {}
+
+    public static WriteRequest.Builder enroll(String studentId, String studentName) {
+        return WriteRequest.newBuilder().setEnroll(
+                Enroll.newBuilder().setStudentId(Roster.encode(studentId)).setStudentName(studentName));
+    }
+
+    public static WriteRequest.Builder cancel(String studentId, String studentName) {
+        return WriteRequest.newBuilder().setCancel(
+                Cancel.newBuilder().setStudentId(Roster.encode(studentId)).setStudentName(studentName));
+    }
+
+    public static WriteRequest.Builder open(int capacity) {
+        return WriteRequest.newBuilder().setOpen(Open.newBuilder().setCapacity(capacity));
+    }
+
+    public static WriteRequest.Builder close() {
+        return WriteRequest.newBuilder().setClose(Close.getDefaultInstance());
+    }
+
+    public static WriteRequest.Builder grant(String to, int seats, int generation) {
+        return WriteRequest.newBuilder().setGrant(
+                Grant.newBuilder().setTo(to).setSeats(seats).setGeneration(generation));
+    }
+
+    /**
+     * @param write an enroll or cancel write
+     * @return the id of the student the write is about (not a valid
+     * student id if the encoded one is out of range)
+     */
+    public static String studentId(WriteRequest write) {
+        int studentId = write.hasEnroll() ? write.getEnroll().getStudentId() : write.getCancel().getStudentId();
+        return studentId >= 0 && studentId <= MAX_STUDENT_ID ? Roster.decode(studentId) : String.valueOf(studentId);
+    }
+
+    /**
+     * @param write an enroll or cancel write
+     * @return the name of the student the write is about
+     */
+    public static String studentName(WriteRequest write) {
+        return write.hasEnroll() ? write.getEnroll().getStudentName() : write.getCancel().getStudentName();
+    }
+}
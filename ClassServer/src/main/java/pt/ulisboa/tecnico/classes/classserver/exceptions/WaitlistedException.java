@@ -0,0 +1,13 @@
+package pt.ulisboa.tecnico.classes.classserver.exceptions;
+
+public class WaitlistedException extends Exception {
+    private String student;
+
+    public WaitlistedException (String student) {
+        this.student = student;
+    }
+    public String getStudent() {
+        return this.student;
+    }
+
+}
@@ -0,0 +1,158 @@
+package pt.ulisboa.tecnico.classes.classserver;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassChanges;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+import org.junit.jupiter.api.Test;
+import pt.ulisboa.tecnico.classes.contract.classserver.ClassServerClassServer.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the enrollment set converges: random writes of three replicas
+ * (enrolls, cancellations, opens and closes of a small class) are added
+ * in many orders, some of them twice, and every order must give the
+ * class state merge order does. So must a set loaded from a copy of a
+ * set with part of the writes, as a snapshot installs it, once it gets
+ * the rest (and some of the copied ones again), and two sets of parts
+ * of the writes merged into each other.
+ */
+class EnrollmentSetTest {
+    private static final String[] REPLICAS = { "localhost:8080", "localhost:8081", "localhost:8082" };
+    private static final int ROUNDS = 100;
+    private static final int WRITES_PER_ROUND = 60;
+
+    @Test
+    void anyOrderConverges() {
+        Random random = new Random(42);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<WriteRequest> writes = randomWrites(random, WRITES_PER_ROUND);
+            String expected = inMergeOrder(writes);
+
+            // commutative and idempotent: any order, writes added twice
+            for (int order = 0; order < 10; order++) {
+                List<WriteRequest> shuffled = new ArrayList<>(writes);
+                for (int i = 0; i < writes.size() / 4; i++) {
+                    shuffled.add(writes.get(random.nextInt(writes.size())));
+                }
+                Collections.shuffle(shuffled, random);
+                assertEquals(expected, describe(applied(shuffled)), "round " + round + ", order " + order);
+            }
+        }
+    }
+
+    @Test
+    void copyThenRestConverges() throws Exception {
+        Random random = new Random(43);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<WriteRequest> writes = randomWrites(random, WRITES_PER_ROUND);
+            String expected = inMergeOrder(writes);
+
+            // a copy of part of the writes, then the rest
+            List<WriteRequest> shuffled = new ArrayList<>(writes);
+            Collections.shuffle(shuffled, random);
+            int split = random.nextInt(shuffled.size() + 1);
+            EnrollmentSet copied = new EnrollmentSet();
+            copied.load(applied(shuffled.subList(0, split)).toByteArray());
+            for (WriteRequest write : shuffled.subList(split, shuffled.size())) {
+                copied.apply(write);
+            }
+            for (int i = 0; i < split / 4; i++) {
+                copied.apply(shuffled.get(random.nextInt(split)));
+            }
+            assertEquals(expected, describe(copied), "round " + round + ", copy after " + split + " writes");
+        }
+    }
+
+    @Test
+    void mergeEitherWayConverges() throws Exception {
+        Random random = new Random(44);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<WriteRequest> writes = randomWrites(random, WRITES_PER_ROUND);
+            String expected = inMergeOrder(writes);
+
+            // two replicas' parts of the writes, some in both, merged either way, once or twice
+            List<WriteRequest> ours = new ArrayList<>();
+            List<WriteRequest> theirs = new ArrayList<>();
+            for (WriteRequest write : writes) {
+                int side = random.nextInt(3);
+                if (side != 1) {
+                    ours.add(write);
+                }
+                if (side != 0) {
+                    theirs.add(write);
+                }
+            }
+            EnrollmentSet merged = applied(ours);
+            merged.merge(applied(theirs).toByteArray());
+            assertEquals(expected, describe(merged), "round " + round + ", merge of theirs into ours");
+            merged = applied(theirs);
+            merged.merge(applied(ours).toByteArray());
+            merged.merge(applied(ours).toByteArray());
+            assertEquals(expected, describe(merged), "round " + round + ", merge of ours into theirs, twice");
+        }
+    }
+
+    private static String inMergeOrder(List<WriteRequest> writes) {
+        List<WriteRequest> ordered = new ArrayList<>(writes);
+        ordered.sort(ClassWrites.ORDER);
+        return describe(applied(ordered));
+    }
+
+    /**
+     * Writes as the replicas would name them: each replica's clocks
+     * increase, and move past the ones it received
+     */
+    private static List<WriteRequest> randomWrites(Random random, int count) {
+        int[] clocks = new int[REPLICAS.length];
+        List<WriteRequest> writes = new ArrayList<>();
+        writes.add(Writes.open(2 + random.nextInt(5)).setClock(clocks[0]++).setReplica(REPLICAS[0]).build());
+        for (int i = 1; i < count; i++) {
+            int r = random.nextInt(REPLICAS.length);
+            if (random.nextInt(4) == 0) {
+                // received another replica's writes
+                clocks[r] = Math.max(clocks[r], clocks[random.nextInt(REPLICAS.length)]);
+            }
+            String studentId = String.format("aluno%04d", random.nextInt(10));
+            int kind = random.nextInt(20);
+            WriteRequest.Builder write = kind < 12 ? Writes.enroll(studentId, "Student " + random.nextInt(3))
+                    : kind < 18 ? Writes.cancel(studentId, "Student " + random.nextInt(3))
+                    : kind < 19 ? Writes.close() : Writes.open(2 + random.nextInt(5));
+            writes.add(write.setClock(clocks[r]++).setReplica(REPLICAS[r]).build());
+        }
+        return writes;
+    }
+
+    private static EnrollmentSet applied(List<WriteRequest> writes) {
+        EnrollmentSet enrollments = new EnrollmentSet();
+        for (WriteRequest write : writes) {
+            enrollments.apply(write);
+        }
+        return enrollments;
+    }
+
+    /**
+     * @return the class state the set gives, in a canonical form
+     */
+    private static String describe(EnrollmentSet enrollments) {
+        ClassChanges state = enrollments.changesFrom(new ClassSnapshot(0, 0, false, new Roster(), new Roster()));
+        if (state == null) {
+            return "empty";
+        }
+        TreeSet<String> enrolled = new TreeSet<>();
+        for (Student student : state.getEnrolledList()) {
+            enrolled.add(student.getStudentId() + ":" + student.getStudentName());
+        }
+        TreeSet<String> discarded = new TreeSet<>();
+        for (Student student : state.getDiscardedList()) {
+            discarded.add(student.getStudentId() + ":" + student.getStudentName());
+        }
+        return "capacity " + state.getCapacity() + ", open " + state.getOpenEnrollments()
+                + ", enrolled " + enrolled + ", discarded " + discarded;
+    }
+}
@@ -4,6 +4,7 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import pt.ulisboa.tecnico.classes.ClassCache;
 import pt.ulisboa.tecnico.classes.Stringify;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.CancelEnrollmentRequest;
@@ -12,12 +13,15 @@ import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.OpenEn
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.OpenEnrollmentsResponse;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.CloseEnrollmentsRequest;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.CloseEnrollmentsResponse;
-import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.ListClassRequest;
-import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.ListClassResponse;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.ListClassChangesRequest;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.ListClassChangesResponse;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.ListClassStreamRequest;
+import pt.ulisboa.tecnico.classes.contract.professor.ProfessorClassServer.ListClassStreamResponse;
 import pt.ulisboa.tecnico.classes.contract.professor.ProfessorServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -44,6 +48,13 @@ public class ClassServerFrontend {
 
     private int clock = 0; // Lamport's logical clock
 
+    private String classId = ""; // class the requests are about, the server's default class if empty
+
+    private ClassCache classCache = new ClassCache(); // class state seen on the latest listClass
+
+    // server the cached class state came from: only its versions apply to it, so reads go back to it
+    private String classCacheServer = null;
+
     private static ManagedChannel channel;
     private static ProfessorServiceGrpc.ProfessorServiceBlockingStub stub;
     private final boolean debug; // determines if debug option is activated
@@ -83,6 +94,19 @@ public class ClassServerFrontend {
 
     public int getNSecondaries() { return nSecondaries; }
 
+    public String getClassId() { return classId; }
+
+    /**
+     * Makes the next requests about another class: the state
+     * cached for the previous one is dropped.
+     * @param classId the class's id, the server's default class if empty
+     */
+    public void setClassId(String classId) {
+        this.classId = classId;
+        this.classCache = new ClassCache();
+        this.classCacheServer = null;
+    }
+
     /**
      * Helper method to print debug messages.
      */
@@ -273,11 +297,13 @@ public class ClassServerFrontend {
      * Sends the openEnrollments request and receives the openEnrollments response from server
      *
      * @param number, capacity for the class
+     * @param quorumWrites, true if enrolls should only be answered once a majority of the replicas has them
      * @return the response code
      */
-    public String openEnrollments(int number){
+    public String openEnrollments(int number, boolean quorumWrites){
         // construct request message
-        OpenEnrollmentsRequest request = OpenEnrollmentsRequest.newBuilder().setCapacity(number).build();
+        OpenEnrollmentsRequest request = OpenEnrollmentsRequest.newBuilder().setClassId(getClassId()).setCapacity(number)
+                .setQuorumWrites(quorumWrites).build();
 
         // send request message and receive response
         OpenEnrollmentsResponse response = attemptOpenEnrollment(request);
@@ -341,7 +367,7 @@ public class ClassServerFrontend {
      */
     public String closeEnrollments(){
         // construct request message
-        CloseEnrollmentsRequest request = CloseEnrollmentsRequest.newBuilder().build();
+        CloseEnrollmentsRequest request = CloseEnrollmentsRequest.newBuilder().setClassId(getClassId()).build();
 
         // send request message and receive response
         CloseEnrollmentsResponse response = attemptCloseEnrollment(request);
@@ -364,9 +390,20 @@ public class ClassServerFrontend {
      * @return either null (request not successful) or a valid
      * response (request successful)
      */
-    private ListClassResponse attemptListClass(ListClassRequest request) {
+    private ListClassChangesResponse attemptListClassChanges(ListClassChangesRequest request) {
         int tries = 0;
-        String server = nextAccess();
+        // only the primary serves the latest state; otherwise the server my cached state came
+        // from answers with just what changed, unless I've just written elsewhere
+        String server;
+        if (request.getFresh() && getNPrimaries() > 0) {
+            server = primaryServers.get(0);
+        }
+        else if (classCacheServer != null && getLatestOperation() != WRITE) {
+            server = classCacheServer;
+        }
+        else {
+            server = nextAccess();
+        }
         connectServer(server);
 
         List<String> usedServers = new ArrayList<>();
@@ -376,9 +413,23 @@ public class ClassServerFrontend {
             try {
                 tries++;
                 addOperation(server, READ);
-                debug("About to attempt listClass on server: " + server);
-                ListClassResponse response = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).listClass(request);
-                debug("Received listClass response with status: " + response.getCode());
+                debug("About to attempt listClassChanges on server: " + server);
+                ListClassChangesResponse response = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).listClassChanges(request);
+                debug("Received listClassChanges response with status: " + response.getCode());
+                // too old there: ask the replica it points at instead, once
+                if (response.getCode() == ResponseCode.TOO_STALE && !response.getRedirect().isEmpty()
+                        && !usedServers.contains(response.getRedirect())) {
+                    debug("Server " + server + " is " + response.getStalenessMs() + " ms behind, redirected to "
+                            + response.getRedirect());
+                    terminate();
+                    server = response.getRedirect();
+                    connectServer(server);
+                    usedServers.add(server);
+                    continue;
+                }
+                if (response.getCode() == ResponseCode.OK) {
+                    classCacheServer = server;
+                }
                 if (response.getCode() != ResponseCode.INACTIVE_SERVER) {
                     return response;
                 }
@@ -403,15 +454,58 @@ public class ClassServerFrontend {
     }
 
     /**
-     * Sends a listClass request message and waits for a
-     * response containing the class's state.
+     * Receives the whole class's state in bounded pages, adding
+     * each one to the cached state as soon as it arrives, so a
+     * huge class is never held in a single message.
+     * @param request the request message we want to send
+     * @return the code of the responses, or UNRECOGNIZED if the
+     * stream was interrupted
+     */
+    private ResponseCode listClassStream(ListClassStreamRequest request) {
+        classCache.beginPages();
+        try {
+            debug("About to attempt listClassStream");
+            Iterator<ListClassStreamResponse> pages = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).listClassStream(request);
+            int received = 0;
+            while (pages.hasNext()) {
+                ListClassStreamResponse response = pages.next();
+                if (response.getCode() != ResponseCode.OK) {
+                    debug("Received listClassStream response with status: " + response.getCode());
+                    return response.getCode();
+                }
+                classCache.addPage(response.getPage());
+                received++;
+            }
+            debug("Received " + received + " listClassStream responses with status: " + ResponseCode.OK);
+            classCache.endPages();
+            return ResponseCode.OK;
+        }
+        catch (StatusRuntimeException e) {
+            debug("Caught exception with description: " + e.getStatus().getDescription());
+            return ResponseCode.UNRECOGNIZED;
+        }
+    }
+
+    /**
+     * Sends a listClassChanges request message and waits for a
+     * response containing what changed in the class since the
+     * state I last saw, which is then printed in full.
+     * @param fresh true to ask the primary for the latest state
+     * @param maxStalenessMs how old the state may be, in milliseconds (none if 0)
      */
-    public void listClass() {
-        // construct request message
-        ListClassRequest request = ListClassRequest.newBuilder().build();
+    public void listClass(boolean fresh, long maxStalenessMs) {
+        // construct request message, with the version I already have
+        ListClassChangesRequest request = ListClassChangesRequest.newBuilder()
+                .setClassId(getClassId())
+                .setEpoch(classCache.getEpoch())
+                .setSinceVersion(classCache.getVersion())
+                // a whole class may be huge: if needed, it's streamed in pages instead
+                .setOmitFullState(true)
+                .setFresh(fresh)
+                .setMaxStalenessMs(maxStalenessMs).build();
 
         // send request message and receive response
-        ListClassResponse response = attemptListClass(request);
+        ListClassChangesResponse response = attemptListClassChanges(request);
         if (response == null) {
             System.out.println(Stringify.format(ResponseCode.UNRECOGNIZED) + "\n");
             terminate();
@@ -421,7 +515,20 @@ public class ClassServerFrontend {
         // print response
         ResponseCode status = response.getCode();
         if (status == ResponseCode.OK) {
-            System.out.println(Stringify.format(response.getClassState()) + "\n");
+            if (response.getChanges().getFullState() && !response.getChanges().hasClassState()) {
+                // from the server that just answered, still connected
+                status = listClassStream(ListClassStreamRequest.newBuilder().setClassId(request.getClassId()).build());
+            }
+            else {
+                classCache.apply(response.getChanges());
+            }
+        }
+        if (status == ResponseCode.OK) {
+            System.out.println(Stringify.format(classCache.toClassState()) + "\n");
+        }
+        else if (status == ResponseCode.UNRECOGNIZED || status == ResponseCode.NOT_FRESH
+                || status == ResponseCode.TOO_STALE) {
+            System.out.println(Stringify.format(status) + "\n");
         }
         terminate();
     }
@@ -475,7 +582,7 @@ public class ClassServerFrontend {
      */
     public String cancelEnrollment(String student_id){
         // construct request message
-        CancelEnrollmentRequest request = CancelEnrollmentRequest.newBuilder().setStudentId(student_id).build();
+        CancelEnrollmentRequest request = CancelEnrollmentRequest.newBuilder().setClassId(getClassId()).setStudentId(student_id).build();
 
         // send request message and receive response
         CancelEnrollmentResponse response = attemptCancelEnrollment(request);
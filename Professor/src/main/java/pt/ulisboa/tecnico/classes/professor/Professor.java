@@ -1,6 +1,8 @@
 package pt.ulisboa.tecnico.classes.professor;
 
 import pt.ulisboa.tecnico.classes.NamingServerFrontend;
+import pt.ulisboa.tecnico.classes.Validate;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidClassException;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -12,9 +14,12 @@ public class Professor {
 
   private static final String EXIT_CMD = "exit";
   private static final String OPEN_CMD = "openEnrollments";
+  private static final String QUORUM_OPTION = "quorum";
   private static final String CLOSE_CMD = "closeEnrollments";
   private static final String CANCEL_CMD = "cancelEnrollment";
   private static final String LIST_CMD = "list";
+  private static final String LIST_FRESH_CMD = "list fresh";
+  private static final String CLASS_CMD = "class";
 
   /**
    * Main
@@ -33,7 +38,8 @@ public class Professor {
       debug = true;
     }
     else {
-      System.out.printf("Usage: java %s [-debug]", Professor.class.getName());
+      System.out.printf("Usage: java %s [-debug]%n", Professor.class.getName());
+      System.out.println("Commands are about the server's default class until \"class <classId>\" picks another.");
       return;
     }
 
@@ -59,7 +65,9 @@ public class Professor {
       else if (OPEN_CMD.equals(lineSplit[0])) {
         try{
           int number = Integer.parseInt(lineSplit[1]);
-          System.out.println(frontend.openEnrollments(number));
+          // openEnrollments <capacity> quorum: enrolls wait for a majority of the replicas
+          boolean quorumWrites = lineSplit.length > 2 && QUORUM_OPTION.equals(lineSplit[2]);
+          System.out.println(frontend.openEnrollments(number, quorumWrites));
         }
         catch (NumberFormatException ex){
           System.err.println("Enter a valid capacity! Try again.");
@@ -72,7 +80,23 @@ public class Professor {
         System.out.println(frontend.closeEnrollments());
       }
       else if (LIST_CMD.equals(line)) {
-        frontend.listClass();
+        frontend.listClass(false, 0);
+      }
+      // list, the latest state (from the primary)
+      else if (LIST_FRESH_CMD.equals(line)) {
+        frontend.listClass(true, 0);
+      }
+      // list <maxStalenessMs>, a state at most that old
+      else if (LIST_CMD.equals(lineSplit[0])) {
+        try{
+          frontend.listClass(false, Long.parseLong(lineSplit[1]));
+        }
+        catch (NumberFormatException ex){
+          System.err.println("Enter a valid staleness, in milliseconds! Try again.");
+        }
+        catch (ArrayIndexOutOfBoundsException ex){
+          System.err.println("Missing Arguments! Try Again.");
+        }
       }
       else if(CANCEL_CMD.equals(lineSplit[0])){
         try{
@@ -82,6 +106,17 @@ public class Professor {
           System.err.println("Missing Arguments! Try Again.");
         }
       }
+      // class [<classId>], the class the next commands are about (the default one if none)
+      else if (CLASS_CMD.equals(lineSplit[0])) {
+        String classId = lineSplit.length > 1 ? lineSplit[1] : "";
+        try {
+          new Validate().validate_class(classId);
+          frontend.setClassId(classId);
+        }
+        catch (InvalidClassException ex) {
+          System.err.println("Enter a valid class id, at most " + Validate.MAX_CLASS_ID + " characters! Try again.");
+        }
+      }
     }
 
     namingServerFrontend.terminate();
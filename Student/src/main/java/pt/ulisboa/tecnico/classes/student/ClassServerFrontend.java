@@ -4,15 +4,20 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import pt.ulisboa.tecnico.classes.ClassCache;
 import pt.ulisboa.tecnico.classes.Stringify;
 import pt.ulisboa.tecnico.classes.contract.admin.AdminClassServer;
 import pt.ulisboa.tecnico.classes.contract.student.StudentServiceGrpc;
 import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.EnrollRequest;
 import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.EnrollResponse;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.EnrollBatchRequest;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.EnrollBatchResponse;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
 import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ResponseCode;
-import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassRequest;
-import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassResponse;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassChangesRequest;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassChangesResponse;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassStreamRequest;
+import pt.ulisboa.tecnico.classes.contract.student.StudentClassServer.ListClassStreamResponse;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -56,6 +61,13 @@ public class ClassServerFrontend {
 
     private int clock = 0; // Lamport's logical clock
 
+    private String classId = ""; // class the requests are about, the server's default class if empty
+
+    private ClassCache classCache = new ClassCache(); // class state seen on the latest listClass
+
+    // server the cached class state came from: only its versions apply to it, so reads go back to it
+    private String classCacheServer = null;
+
     private static ManagedChannel channel;
 
     private static StudentServiceGrpc.StudentServiceBlockingStub stub;
@@ -85,6 +97,19 @@ public class ClassServerFrontend {
 
     public int getNSecondaries() { return nSecondaries; }
 
+    public String getClassId() { return classId; }
+
+    /**
+     * Makes the next requests about another class: the state
+     * cached for the previous one is dropped.
+     * @param classId the class's id, the server's default class if empty
+     */
+    public void setClassId(String classId) {
+        this.classId = classId;
+        this.classCache = new ClassCache();
+        this.classCacheServer = null;
+    }
+
     /**
      * Helper method to print debug messages.
      */
@@ -242,9 +267,20 @@ public class ClassServerFrontend {
      * @return either null (request not successful) or a valid
      * response (request successful)
      */
-    private ListClassResponse attemptListClass(ListClassRequest request) {
+    private ListClassChangesResponse attemptListClassChanges(ListClassChangesRequest request) {
         int tries = 0;
-        String server = nextAccess();
+        // only the primary serves the latest state; otherwise the server my cached state came
+        // from answers with just what changed, unless I've just written elsewhere
+        String server;
+        if (request.getFresh() && getNPrimaries() > 0) {
+            server = primaryServers.get(0);
+        }
+        else if (classCacheServer != null && getLatestOperation() != WRITE) {
+            server = classCacheServer;
+        }
+        else {
+            server = nextAccess();
+        }
         connectServer(server);
 
         List<String> usedServers = new ArrayList<>();
@@ -254,9 +290,23 @@ public class ClassServerFrontend {
             try {
                 tries++;
                 addOperation(server, READ);
-                debug("About to attempt listClass on server: " + server);
-                ListClassResponse response = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).listClass(request);
-                debug("Received listClass response with status: " + response.getCode());
+                debug("About to attempt listClassChanges on server: " + server);
+                ListClassChangesResponse response = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).listClassChanges(request);
+                debug("Received listClassChanges response with status: " + response.getCode());
+                // too old there: ask the replica it points at instead, once
+                if (response.getCode() == ResponseCode.TOO_STALE && !response.getRedirect().isEmpty()
+                        && !usedServers.contains(response.getRedirect())) {
+                    debug("Server " + server + " is " + response.getStalenessMs() + " ms behind, redirected to "
+                            + response.getRedirect());
+                    terminate();
+                    server = response.getRedirect();
+                    connectServer(server);
+                    usedServers.add(server);
+                    continue;
+                }
+                if (response.getCode() == ResponseCode.OK) {
+                    classCacheServer = server;
+                }
                 if (response.getCode() != ResponseCode.INACTIVE_SERVER) {
                     return response;
                 }
@@ -281,15 +331,58 @@ public class ClassServerFrontend {
     }
 
     /**
-     * Sends a listClass request message and waits for a
-     * response containing the class's state.
+     * Receives the whole class's state in bounded pages, adding
+     * each one to the cached state as soon as it arrives, so a
+     * huge class is never held in a single message.
+     * @param request the request message we want to send
+     * @return the code of the responses, or UNRECOGNIZED if the
+     * stream was interrupted
      */
-    public void listClass() {
-        // construct request message
-        ListClassRequest request = ListClassRequest.newBuilder().build();
+    private ResponseCode listClassStream(ListClassStreamRequest request) {
+        classCache.beginPages();
+        try {
+            debug("About to attempt listClassStream");
+            Iterator<ListClassStreamResponse> pages = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).listClassStream(request);
+            int received = 0;
+            while (pages.hasNext()) {
+                ListClassStreamResponse response = pages.next();
+                if (response.getCode() != ResponseCode.OK) {
+                    debug("Received listClassStream response with status: " + response.getCode());
+                    return response.getCode();
+                }
+                classCache.addPage(response.getPage());
+                received++;
+            }
+            debug("Received " + received + " listClassStream responses with status: " + ResponseCode.OK);
+            classCache.endPages();
+            return ResponseCode.OK;
+        }
+        catch (StatusRuntimeException e) {
+            debug("Caught exception with description: " + e.getStatus().getDescription());
+            return ResponseCode.UNRECOGNIZED;
+        }
+    }
+
+    /**
+     * Sends a listClassChanges request message and waits for a
+     * response containing what changed in the class since the
+     * state I last saw, which is then printed in full.
+     * @param fresh true to ask the primary for the latest state
+     * @param maxStalenessMs how old the state may be, in milliseconds (none if 0)
+     */
+    public void listClass(boolean fresh, long maxStalenessMs) {
+        // construct request message, with the version I already have
+        ListClassChangesRequest request = ListClassChangesRequest.newBuilder()
+                .setClassId(getClassId())
+                .setEpoch(classCache.getEpoch())
+                .setSinceVersion(classCache.getVersion())
+                // a whole class may be huge: if needed, it's streamed in pages instead
+                .setOmitFullState(true)
+                .setFresh(fresh)
+                .setMaxStalenessMs(maxStalenessMs).build();
 
         // send request message and receive response
-        ListClassResponse response = attemptListClass(request);
+        ListClassChangesResponse response = attemptListClassChanges(request);
         if (response == null) {
             System.out.println(Stringify.format(ResponseCode.UNRECOGNIZED) + "\n");
             terminate();
@@ -299,7 +392,20 @@ public class ClassServerFrontend {
         // print response
         ResponseCode status = response.getCode();
         if (status == ResponseCode.OK) {
-            System.out.println(Stringify.format(response.getClassState()) + "\n");
+            if (response.getChanges().getFullState() && !response.getChanges().hasClassState()) {
+                // from the server that just answered, still connected
+                status = listClassStream(ListClassStreamRequest.newBuilder().setClassId(request.getClassId()).build());
+            }
+            else {
+                classCache.apply(response.getChanges());
+            }
+        }
+        if (status == ResponseCode.OK) {
+            System.out.println(Stringify.format(classCache.toClassState()) + "\n");
+        }
+        else if (status == ResponseCode.UNRECOGNIZED || status == ResponseCode.NOT_FRESH
+                || status == ResponseCode.TOO_STALE) {
+            System.out.println(Stringify.format(status) + "\n");
         }
         terminate();
     }
@@ -359,7 +465,7 @@ public class ClassServerFrontend {
     public void enroll(String studentId, String studentName) {
 
         // construct request message
-        EnrollRequest request = EnrollRequest.newBuilder().setStudent(Student.newBuilder().setStudentId(studentId).setStudentName(studentName).build()).build();
+        EnrollRequest request = EnrollRequest.newBuilder().setClassId(getClassId()).setStudent(Student.newBuilder().setStudentId(studentId).setStudentName(studentName).build()).build();
 
         // send request message and receive response
         EnrollResponse response = attemptEnroll(request);
@@ -374,6 +480,82 @@ public class ClassServerFrontend {
         terminate();
     }
 
+    /**
+     * Same as attemptEnroll, for a whole batch of enrollments.
+     * @param request the request message we want to send
+     * @return either null (request not successful) or a valid
+     * response (request successful)
+     */
+    private EnrollBatchResponse attemptEnrollBatch(EnrollBatchRequest request) {
+        int tries = 0;
+        String server = nextAccess();
+        connectServer(server);
+
+        List<String> usedServers = new ArrayList<>();
+        usedServers.add(server);
+
+        while (tries < getNServers() * 3) {
+            try {
+                tries++;
+                addOperation(server, WRITE);
+                debug("About to attempt enrollBatch on server: " + server);
+                EnrollBatchResponse response = stub.withDeadlineAfter(3000, TimeUnit.MILLISECONDS).enrollBatch(request);
+                debug("Received enrollBatch response with status: " + response.getCode());
+                if (response.getCode() != ResponseCode.INACTIVE_SERVER) {
+                    return response;
+                }
+                else if (tries == getNServers() * 3) {
+                    return response;
+                }
+            }
+            catch (StatusRuntimeException e) {
+                if (dealWithException(e, tries) == false) {
+                    return null;
+                }
+            }
+            if (tries % 3 == 0) {
+                debug("Attempting request on another server");
+                terminate();
+                server = chooseAnotherServer(usedServers);
+                connectServer(server);
+                usedServers.add(server);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends an enrollBatch request message, containing many
+     * students to be enrolled at once (eg. a registrar's import),
+     * and waits for a response containing the status of each
+     * student's enrollment.
+     * @param students the students to be enrolled
+     */
+    public void enrollBatch(List<Student> students) {
+
+        // construct request message
+        EnrollBatchRequest request = EnrollBatchRequest.newBuilder().setClassId(getClassId()).addAllStudents(students).build();
+
+        // send request message and receive response
+        EnrollBatchResponse response = attemptEnrollBatch(request);
+        if (response == null) {
+            System.out.println(Stringify.format(ResponseCode.UNRECOGNIZED) + "\n");
+            terminate();
+            return;
+        }
+
+        // print response: each student's result, whenever the server got to them
+        // (eg. admitted, but not replicated in time), and the batch's code if not OK
+        for (int i = 0; i < response.getResultsCount() && i < students.size(); i++) {
+            System.out.println(students.get(i).getStudentId() + ": " + Stringify.format(response.getResults(i)));
+        }
+        if (response.getCode() != ResponseCode.OK) {
+            System.out.println(Stringify.format(response.getCode()));
+        }
+        System.out.println();
+        terminate();
+    }
+
     /* * * * * * * * * * * * * * * * * * AUXILIARIES * * * * * * * * * * * * * * * * * * * */
 
     /**
@@ -1,10 +1,15 @@
 package pt.ulisboa.tecnico.classes.student;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Scanner;
 
 import pt.ulisboa.tecnico.classes.NamingServerFrontend;
 import pt.ulisboa.tecnico.classes.Validate;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidClassException;
 import pt.ulisboa.tecnico.classes.exceptions.InvalidStudentException;
 import java.util.List;
 
@@ -19,6 +24,7 @@ public class Student {
   private static String id; // student's id
   private static String name; // student's name
   private static final Validate validate = new Validate();
+  private static final int ID_LENGTH = "alunoXXXX".length();
 
   public static boolean isDebug() {
     return debug;
@@ -46,7 +52,10 @@ public class Student {
 
   private static final String EXIT_CMD = "exit";
   private static final String LIST_CMD = "list";
+  private static final String LIST_FRESH_CMD = "list fresh";
   private static final String ENROLL_CMD = "enroll";
+  private static final String ENROLL_BATCH_CMD = "enrollBatch";
+  private static final String CLASS_CMD = "class";
 
   /**
    * Evaluates wether the argument is the -debug flag and sets it accordingly.
@@ -60,11 +69,43 @@ public class Student {
     return isDebug();
   }
 
+  /**
+   * Reads the students to enroll at once from a file, one per line:
+   * the student's id, then the name (eg. aluno1234 Ana Silva)
+   * @param file the file's path
+   * @return the students, or null if a line isn't a valid student
+   */
+  public static List<ClassesDefinitions.Student> readBatch(String file) throws IOException {
+    List<ClassesDefinitions.Student> students = new ArrayList<>();
+    for (String line : Files.readAllLines(Path.of(file))) {
+      if (line.isBlank()) {
+        continue;
+      }
+      String[] fields = line.trim().split("\\s+", 2);
+      // an id and a name, the id as long as one (the validation assumes it)
+      if (fields.length < 2 || fields[0].length() != ID_LENGTH) {
+        System.err.println("Wrong format for student: " + line);
+        return null;
+      }
+      try {
+        validate.validate_enrollment(fields[0], fields[1].trim());
+      }
+      catch (InvalidStudentException e) {
+        System.err.println("Wrong format for student: " + line);
+        return null;
+      }
+      students.add(ClassesDefinitions.Student.newBuilder()
+          .setStudentId(fields[0]).setStudentName(fields[1].trim()).build());
+    }
+    return students;
+  }
+
   public static void main(String[] args) {
     // check arguments
     if (args.length < 2) {
       System.out.println("Argument(s) missing!");
       System.out.printf("Usage: java %s alunoXXXX name [-debug]%n", Student.class.getName());
+      System.out.println("Commands are about the server's default class until \"class <classId>\" picks another.");
       return;
     }
 
@@ -115,13 +156,53 @@ public class Student {
 
       // list
       else if (LIST_CMD.equals(line)) {
-        classServerFrontend.listClass();
+        classServerFrontend.listClass(false, 0);
+      }
+
+      // list, the latest state (from the primary)
+      else if (LIST_FRESH_CMD.equals(line)) {
+        classServerFrontend.listClass(true, 0);
+      }
+
+      // list <maxStalenessMs>, a state at most that old
+      else if (line.startsWith(LIST_CMD + " ")) {
+        try {
+          classServerFrontend.listClass(false, Long.parseLong(line.substring(LIST_CMD.length() + 1).trim()));
+        }
+        catch (NumberFormatException ex) {
+          System.err.println("Enter a valid staleness, in milliseconds! Try again.");
+        }
       }
 
       // enroll
       else if (ENROLL_CMD.equals(line)) {
         classServerFrontend.enroll(getId(), getName());
       }
+
+      // enrollBatch <file>, the students listed in the file, at once
+      else if (line.startsWith(ENROLL_BATCH_CMD + " ")) {
+        try {
+          List<ClassesDefinitions.Student> students = readBatch(line.substring(ENROLL_BATCH_CMD.length() + 1).trim());
+          if (students != null) {
+            classServerFrontend.enrollBatch(students);
+          }
+        }
+        catch (IOException e) {
+          System.err.println("Couldn't read the file: " + e.getMessage());
+        }
+      }
+
+      // class [<classId>], the class the next commands are about (the default one if none)
+      else if (CLASS_CMD.equals(line) || line.startsWith(CLASS_CMD + " ")) {
+        String classId = line.substring(CLASS_CMD.length()).trim();
+        try {
+          validate.validate_class(classId);
+          classServerFrontend.setClassId(classId);
+        }
+        catch (InvalidClassException e) {
+          System.err.println("Enter a valid class id, at most " + Validate.MAX_CLASS_ID + " characters! Try again.");
+        }
+      }
     }
 
     namingServerFrontend.terminate();
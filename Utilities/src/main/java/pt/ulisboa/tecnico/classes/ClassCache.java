@@ -0,0 +1,126 @@
+package pt.ulisboa.tecnico.classes;
+
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassChanges;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassState;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.ClassStatePage;
+import pt.ulisboa.tecnico.classes.contract.ClassesDefinitions.Student;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Client-side copy of a class's state, kept up to date with the
+ * changes sent by the server, so polling doesn't download the
+ * whole class every time.
+ */
+public class ClassCache {
+    private long epoch = 0; // server history the version belongs to, 0 if nothing cached
+
+    private long version = 0;
+
+    private int capacity;
+
+    private boolean openEnrollments;
+
+    private final Map<String, String> enrolled = new TreeMap<>();
+
+    private final Map<String, String> discarded = new TreeMap<>();
+
+    private long streamedEpoch = 0; // epoch of the pages being streamed, until they're all received
+
+    public long getEpoch() { return epoch; }
+
+    public long getVersion() { return version; }
+
+    /**
+     * Replaces the cached state with a whole class state
+     * @param epoch the server history the state belongs to
+     * @param classState the class's state
+     */
+    public void reset(long epoch, ClassState classState) {
+        this.epoch = epoch;
+        this.version = classState.getVersion();
+        this.capacity = classState.getCapacity();
+        this.openEnrollments = classState.getOpenEnrollments();
+        enrolled.clear();
+        discarded.clear();
+        classState.getEnrolledList().forEach(student -> enrolled.put(student.getStudentId(), student.getStudentName()));
+        classState.getDiscardedList().forEach(student -> discarded.put(student.getStudentId(), student.getStudentName()));
+    }
+
+    /**
+     * Brings the cached state up to date
+     * @param changes the changes sent by the server since the cached version
+     */
+    public void apply(ClassChanges changes) {
+        if (changes.getNotModified()) {
+            return;
+        }
+        if (changes.getFullState()) {
+            reset(changes.getEpoch(), changes.getClassState());
+            return;
+        }
+        capacity = changes.getCapacity();
+        openEnrollments = changes.getOpenEnrollments();
+        for (Student student : changes.getEnrolledList()) {
+            discarded.remove(student.getStudentId());
+            enrolled.put(student.getStudentId(), student.getStudentName());
+        }
+        for (Student student : changes.getDiscardedList()) {
+            enrolled.remove(student.getStudentId());
+            discarded.put(student.getStudentId(), student.getStudentName());
+        }
+        for (String studentId : changes.getRemovedList()) {
+            enrolled.remove(studentId);
+            discarded.remove(studentId);
+        }
+        epoch = changes.getEpoch();
+        version = changes.getVersion();
+    }
+
+    /**
+     * Drops the cached state, before receiving it again page by page
+     */
+    public void beginPages() {
+        epoch = 0;
+        version = 0;
+        streamedEpoch = 0;
+        enrolled.clear();
+        discarded.clear();
+    }
+
+    /**
+     * Adds one page of a streamed class state to the cache
+     * @param page the page received
+     */
+    public void addPage(ClassStatePage page) {
+        streamedEpoch = page.getEpoch();
+        version = page.getVersion();
+        capacity = page.getCapacity();
+        openEnrollments = page.getOpenEnrollments();
+        page.getEnrolledList().forEach(student -> enrolled.put(student.getStudentId(), student.getStudentName()));
+        page.getDiscardedList().forEach(student -> discarded.put(student.getStudentId(), student.getStudentName()));
+    }
+
+    /**
+     * Marks the streamed state as complete, so later polls only ask for changes.
+     * Until then, an interrupted stream leaves nothing the server could build changes on.
+     */
+    public void endPages() {
+        epoch = streamedEpoch;
+    }
+
+    /**
+     * @return the cached state, as a ClassState message
+     */
+    public ClassState toClassState() {
+        ClassState.Builder classStateBuilder = ClassState.newBuilder()
+                .setCapacity(capacity)
+                .setOpenEnrollments(openEnrollments)
+                .setVersion(version);
+        Student.Builder studentBuilder = Student.newBuilder();
+        enrolled.forEach((id, name) -> classStateBuilder.addEnrolled(studentBuilder.setStudentId(id).setStudentName(name).build()));
+        discarded.forEach((id, name) -> classStateBuilder.addDiscarded(studentBuilder.setStudentId(id).setStudentName(name).build()));
+        return classStateBuilder.build();
+    }
+}
@@ -35,11 +35,15 @@ public class Stringify {
       case OK -> "The action completed successfully.";
       case NON_EXISTING_STUDENT -> "The student does not exist.";
       case FULL_CLASS -> "The class has reached its maximum capacity.";
+      case FULL_CLASS_WAITLISTED -> "The class is full, the student will be enrolled when a seat is freed.";
       case STUDENT_ALREADY_ENROLLED -> "The student is already enrolled.";
       case ENROLLMENTS_ALREADY_OPENED -> "Enrollments are already open.";
       case ENROLLMENTS_ALREADY_CLOSED -> "Enrollments are already closed.";
       case INACTIVE_SERVER -> "The server is down.";
       case WRITING_NOT_SUPPORTED -> "The server you contacted does not support writes.";
+      case NOT_REPLICATED -> "The enrollment was not confirmed by enough servers in time, it may still go through.";
+      case NOT_FRESH -> "The server could not guarantee the class's latest state, try again later.";
+      case TOO_STALE -> "The server's copy of the class is older than asked, try again later or another server.";
       default -> "Unknown error.";
     };
   }
@@ -1,9 +1,13 @@
 package pt.ulisboa.tecnico.classes;
 
 import pt.ulisboa.tecnico.classes.exceptions.InvalidCapacityException;
+import pt.ulisboa.tecnico.classes.exceptions.InvalidClassException;
 import pt.ulisboa.tecnico.classes.exceptions.InvalidStudentException;
 
 public class Validate {
+    /** Longest class id a server keeps, in chars (as its write-ahead log records them) */
+    public static final int MAX_CLASS_ID = 24;
+
     public Validate() {}
     /**
      * Checks wether the arguments are valid studentId and studentName
@@ -64,6 +68,16 @@ public class Validate {
         }
     }
 
+    /**
+     * Checks if the argument is a valid class id, short enough to be logged
+     * @param classId the class id to be verified
+     */
+    public void validate_class(String classId) throws InvalidClassException {
+        if (classId.length() > MAX_CLASS_ID) {
+            throw new InvalidClassException(classId);
+        }
+    }
+
     /**
      * Checks if the argument  is a valid capacity.
      * @param capacity the capacity to be verified
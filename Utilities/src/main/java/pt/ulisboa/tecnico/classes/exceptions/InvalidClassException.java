@@ -0,0 +1,12 @@
+package pt.ulisboa.tecnico.classes.exceptions;
+
+public class InvalidClassException extends IllegalArgumentException {
+    private final String classId;
+
+    public InvalidClassException(String classId) {
+        super("Wrong class id: " + classId);
+        this.classId = classId;
+    }
+
+    public String getClassId() { return classId; }
+}